@@ -1,10 +1,16 @@
 package org.peergos;
 
 import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import io.prometheus.client.Histogram;
 import io.prometheus.client.exporter.HTTPServer;
 import org.peergos.util.Logging;
 
 import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 /**
@@ -32,6 +38,58 @@ public class AggregatedMetrics {
     public static final Counter API_FIND_PROVS  = build("api_dht_findprovs", "Total calls to dht/findprovs.");
     public static final Counter API_IPNS_GET  = build("api_ipns_get", "Total calls to ipns/get.");
 
+    /**
+     * The outcome label is local, network or missing for block/get, depending on
+     * where the block came from, ok for other successful calls, and error.
+     */
+    public static final Histogram API_LATENCY = Histogram.build()
+            .name("api_request_duration_seconds")
+            .help("Latency of API calls.")
+            .labelNames("endpoint", "outcome")
+            .buckets(0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30)
+            .register();
+    public static final Histogram API_RESPONSE_BYTES = Histogram.build()
+            .name("api_response_bytes")
+            .help("Size of API response bodies.")
+            .labelNames("endpoint")
+            .exponentialBuckets(256, 4, 8)
+            .register();
+    public static final Gauge API_IN_FLIGHT = Gauge.build()
+            .name("api_requests_in_flight")
+            .help("API calls currently being handled.")
+            .labelNames("endpoint")
+            .register();
+    public static final Gauge API_HANDLER_QUEUE = Gauge.build()
+            .name("api_handler_queue_depth")
+            .help("API calls waiting for a handler thread.")
+            .register();
+    public static final Gauge API_HANDLER_ACTIVE = Gauge.build()
+            .name("api_handler_active_threads")
+            .help("Handler threads currently handling an API call.")
+            .register();
+
+    /**
+     * A fixed size pool for the HTTP API handlers whose queue depth and active
+     * thread count are exported.
+     */
+    public static ExecutorService handlerPool(int threads) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>());
+        API_HANDLER_QUEUE.setChild(new Gauge.Child() {
+            @Override
+            public double get() {
+                return pool.getQueue().size();
+            }
+        });
+        API_HANDLER_ACTIVE.setChild(new Gauge.Child() {
+            @Override
+            public double get() {
+                return pool.getActiveCount();
+            }
+        });
+        return pool;
+    }
+
     public static void startExporter(String address, int port) throws IOException {
         LOG.info("Starting metrics server at " + address + ":" + port);
         HTTPServer server = new HTTPServer(address, port);
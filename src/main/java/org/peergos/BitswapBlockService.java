@@ -1,40 +1,163 @@
 package org.peergos;
 
+import io.ipfs.multihash.Multihash;
 import io.libp2p.core.*;
 import org.peergos.protocol.bitswap.*;
 import org.peergos.protocol.dht.*;
+import org.peergos.util.*;
 
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.stream.*;
 
+/**
+ * Fetches blocks over bitswap, through one session per fetch. Without given
+ * peers, a fetch asks the providers of the first block it wants, and starts as
+ * soon as the first of them is found. Concurrent fetches of the same block share
+ * one want, and peers that send us a block are remembered as providers of it
+ * and of the blocks it links to.
+ */
 public class BitswapBlockService implements BlockService {
 
     private final Host us;
     private final Bitswap bitswap;
     private final Kademlia dht;
+    private final ProviderCache providers;
+    // parses the links of fetched blocks, off the network threads
+    private final Executor linkExec;
+    // keyed on the want and the fetch's addToBlockstore and peers, as fetches
+    // from different peers, or that don't store the block, can't share a want
+    private final SingleFlight<Pair<Want, Pair<Boolean, Set<PeerId>>>, HashedBlock> inFlight = new SingleFlight<>();
 
-    public BitswapBlockService(Host us, Bitswap bitswap, Kademlia dht) {
+    public BitswapBlockService(Host us, Bitswap bitswap, Kademlia dht, ProviderCache providers, Executor linkExec) {
         this.us = us;
         this.bitswap = bitswap;
         this.dht = dht;
+        this.providers = providers;
+        this.linkExec = linkExec;
+    }
+
+    public BitswapBlockService(Host us, Bitswap bitswap, Kademlia dht, ProviderCache providers) {
+        this(us, bitswap, dht, providers, ForkJoinPool.commonPool());
+    }
+
+    public BitswapBlockService(Host us, Bitswap bitswap, Kademlia dht) {
+        this(us, bitswap, dht, new ProviderCache());
     }
 
     @Override
     public List<HashedBlock> get(List<Want> hashes, Set<PeerId> peers, boolean addToBlockstore) {
-        if (peers.isEmpty()) {
-            // Optimistic bitswap has been removed purposely.
-            List<PeerAddresses> providers = dht.findProviders(hashes.get(0).cid, us, 5).join();
-            peers = providers.stream()
-                    .map(p -> PeerId.fromBase58(p.peerId.toBase58()))
-                    .collect(Collectors.toSet());
-            return bitswap.get(hashes, us, peers, addToBlockstore)
+        try (TraceLogger.Span span = TraceLogger.getInstance().startSpan(TraceType.BLOCK_SERVICE_GET_START)) {
+            return fetch(peers, addToBlockstore).get(hashes)
                     .stream()
-                    .map(f -> f.join())
+                    .map(CompletableFuture::join)
                     .collect(Collectors.toList());
         }
-        return bitswap.get(hashes, us, peers, addToBlockstore)
-                .stream()
-                .map(f -> f.join())
-                .collect(Collectors.toList());
+    }
+
+    @Override
+    public Fetch fetch(Set<PeerId> peers, boolean addToBlockstore) {
+        return new SessionFetch(peers, addToBlockstore);
+    }
+
+    /**
+     * Sends wants through one bitswap session, opened with the first of them.
+     * Wants added while earlier ones are being sent go out together in the next
+     * batch.
+     */
+    private final class SessionFetch implements Fetch {
+        private final Set<PeerId> peers;
+        private final boolean addToBlockstore;
+        private final Pair<Boolean, Set<PeerId>> scope;
+        // guarded by this
+        private final List<Want> pendingWants = new ArrayList<>();
+        private final List<CompletableFuture<HashedBlock>> pendingResults = new ArrayList<>();
+        private boolean sending = false;
+        private CompletableFuture<BitswapSession> session;
+
+        SessionFetch(Set<PeerId> peers, boolean addToBlockstore) {
+            this.peers = peers;
+            this.addToBlockstore = addToBlockstore;
+            this.scope = new Pair<>(addToBlockstore, Set.copyOf(peers));
+        }
+
+        @Override
+        public List<CompletableFuture<HashedBlock>> get(List<Want> wants) {
+            List<CompletableFuture<HashedBlock>> results = new ArrayList<>(wants.size());
+            List<Want> added = new ArrayList<>();
+            List<CompletableFuture<HashedBlock>> addedResults = new ArrayList<>();
+            for (Want w : wants) {
+                if (w.cid.getType() == Multihash.Type.id) {
+                    // the block is the hash
+                    results.add(CompletableFuture.completedFuture(new HashedBlock(w.cid, w.cid.getHash())));
+                    continue;
+                }
+                // a concurrent fetch of this block shares its provider lookup and want
+                results.add(inFlight.run(new Pair<>(w, scope), () -> {
+                    CompletableFuture<HashedBlock> fetched = new CompletableFuture<>();
+                    added.add(w);
+                    addedResults.add(fetched);
+                    return fetched;
+                }));
+            }
+            if (!added.isEmpty())
+                add(added, addedResults);
+            return results;
+        }
+
+        private void add(List<Want> wants, List<CompletableFuture<HashedBlock>> results) {
+            synchronized (this) {
+                pendingWants.addAll(wants);
+                pendingResults.addAll(results);
+                // whoever is already sending will pick these up
+                if (sending)
+                    return;
+                sending = true;
+            }
+            while (true) {
+                List<Want> batch;
+                List<CompletableFuture<HashedBlock>> batchResults;
+                CompletableFuture<BitswapSession> s;
+                synchronized (this) {
+                    if (pendingWants.isEmpty()) {
+                        sending = false;
+                        return;
+                    }
+                    batch = new ArrayList<>(pendingWants);
+                    batchResults = new ArrayList<>(pendingResults);
+                    pendingWants.clear();
+                    pendingResults.clear();
+                    if (session == null)
+                        session = peers.isEmpty() ?
+                                ProviderSession.open(batch.get(0).cid, us, bitswap, dht, providers, 5) :
+                                CompletableFuture.completedFuture(bitswap.newSession(us, peers));
+                    s = session;
+                }
+                send(s, batch, batchResults);
+            }
+        }
+
+        private void send(CompletableFuture<BitswapSession> session,
+                          List<Want> batch,
+                          List<CompletableFuture<HashedBlock>> batchResults) {
+            session.thenAccept(s -> {
+                List<CompletableFuture<HashedBlock>> fetched = s.get(batch, addToBlockstore);
+                for (int i = 0; i < batch.size(); i++) {
+                    CompletableFuture<HashedBlock> result = batchResults.get(i);
+                    fetched.get(i).whenComplete((b, t) -> {
+                        if (t != null) {
+                            result.completeExceptionally(t);
+                            return;
+                        }
+                        result.complete(b);
+                        // not on the network thread, as this parses the block's links
+                        linkExec.execute(() -> providers.served(b, s.servingPeers()));
+                    });
+                }
+            }).exceptionally(t -> {
+                batchResults.forEach(r -> r.completeExceptionally(t));
+                return null;
+            });
+        }
     }
 }
@@ -3,6 +3,7 @@ package org.peergos;
 import io.libp2p.core.*;
 
 import java.util.*;
+import java.util.concurrent.*;
 
 public interface BlockService {
 
@@ -11,4 +12,25 @@ public interface BlockService {
     default HashedBlock get(Want c, Set<PeerId> peers, boolean addToBlockstore) {
         return get(Collections.singletonList(c), peers, addToBlockstore).get(0);
     }
+
+    /**
+     * Starts a fetch that blocks can be added to as they are found to be
+     * needed, e.g. as local reads miss or as the links of a DAG arrive. All the
+     * blocks of a fetch are fetched from the same peers.
+     *
+     * @param peers The peers to fetch from, or empty to find them.
+     */
+    Fetch fetch(Set<PeerId> peers, boolean addToBlockstore);
+
+    interface Fetch {
+
+        /**
+         * @return One result per want, in the same order.
+         */
+        List<CompletableFuture<HashedBlock>> get(List<Want> wants);
+
+        default CompletableFuture<HashedBlock> get(Want w) {
+            return get(Collections.singletonList(w)).get(0);
+        }
+    }
 }
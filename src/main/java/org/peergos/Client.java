@@ -54,6 +54,13 @@ public class Client {
         if (config.metrics.enabled) {
             AggregatedMetrics.startExporter(config.metrics.address, config.metrics.port);
         }
+        // Configure tracing before the node starts so no trace points are missed.
+        TraceLogger traceLogger = TraceLogger.getInstance();
+        traceLogger.setOutputFormat(args.getArg("trace-format", "text").equals("binary"),
+                args.getBoolean("trace-stdout", true));
+        traceLogger.setSampling(Double.parseDouble(args.getArg("trace-sample-rate", "0")),
+                Double.parseDouble(args.getArg("trace-tail-percentile", "0")));
+        traceLogger.setIdentity(config.identity.peerId);
         BlockRequestAuthoriser authoriser = (c, p, a) -> CompletableFuture.completedFuture(true);
 
         Path datastorePath = ipfsPath.resolve("datastore").resolve("h2-v2.datastore");
@@ -67,11 +74,10 @@ public class Client {
                 config.identity,
                 authoriser,
                 config.addresses.proxyTargetAddress.map(Client::proxyHandler));
+        ipfs.bitswap.setPeerBandwidthBudget(Long.parseLong(args.getArg("bitswap-peer-bytes-per-sec", "0")));
         ipfs.start();
 
         System.out.println("Started client: " + args.getArg("id"));
-        TraceLogger traceLogger = TraceLogger.getInstance();
-        traceLogger.setIdentity(config.identity.peerId);
 
         String apiAddressArg = "Addresses.API";
         MultiAddress apiAddress = args.hasArg(apiAddressArg) ? new MultiAddress(args.getArg(apiAddressArg))
@@ -84,7 +90,7 @@ public class Client {
         HttpServer httpServer = HttpServer.create(localAPIAddress, maxConnectionQueue);
 
         httpServer.createContext(APIHandler.API_URL, new APIHandler(ipfs));
-        httpServer.setExecutor(Executors.newFixedThreadPool(handlerThreads));
+        httpServer.setExecutor(AggregatedMetrics.handlerPool(handlerThreads));
         httpServer.start();
 
         Thread shutdownHook = new Thread(() -> {
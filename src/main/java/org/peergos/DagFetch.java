@@ -0,0 +1,226 @@
+package org.peergos;
+
+import com.google.protobuf.CodedInputStream;
+import io.ipfs.cid.*;
+import io.ipfs.multihash.Multihash;
+import org.peergos.blockstore.*;
+import org.peergos.cbor.*;
+import org.peergos.protocol.bitswap.*;
+import org.peergos.util.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.logging.*;
+
+/**
+ * Fetches a whole DAG, following the links of each block as soon as it arrives
+ * rather than waiting for the whole level above it. All the remote wants go
+ * through one block service fetch, and every want that can be sent at once is
+ * sent in one batch, so a DAG is fetched in about as many round trips as it
+ * has levels, with wide levels overlapping.
+ *
+ * Blocks are passed to the sink in the order they arrive, one at a time.
+ * DAG-CBOR and dag-pb links are followed and raw blocks are leaves. A block in
+ * any other codec fails the fetch, rather than silently ending the DAG there.
+ */
+public class DagFetch {
+    private static final Logger LOG = Logging.LOG();
+    public static final int DEFAULT_MAX_DEPTH = 64;
+    public static final int DEFAULT_MAX_BLOCKS = 100_000;
+    public static final int DEFAULT_CONCURRENCY = 64;
+    // protobuf tags of the length delimited PBNode.Links and PBLink.Hash fields
+    private static final int PB_NODE_LINK = (2 << 3) | 2, PB_LINK_HASH = (1 << 3) | 2;
+
+    private static final class Node {
+        final Want want;
+        final int depth;
+
+        Node(Want want, int depth) {
+            this.want = want;
+            this.depth = depth;
+        }
+    }
+
+    private final Blockstore local;
+    private final BlockService.Fetch remote;
+    private final Executor ioExec;
+    private final int maxDepth, maxBlocks, concurrency;
+    private final Consumer<HashedBlock> sink;
+    private final CompletableFuture<Integer> result = new CompletableFuture<>();
+    private final Object sinkLock = new Object();
+
+    // guarded by this
+    private final Deque<Node> queue = new ArrayDeque<>();
+    private final Set<Cid> seen = new HashSet<>();
+    private int inFlight = 0, requested = 0, received = 0;
+
+    /**
+     * @param remote      Fetches the blocks we don't have.
+     * @param ioExec      Runs link parsing and starts local reads.
+     * @param maxDepth    Links are followed this many levels below the root.
+     * @param maxBlocks   At most this many blocks are fetched.
+     * @param concurrency At most this many blocks are outstanding at once.
+     * @param sink        Receives each block of the DAG.
+     */
+    public DagFetch(Blockstore local,
+                    BlockService.Fetch remote,
+                    Executor ioExec,
+                    int maxDepth,
+                    int maxBlocks,
+                    int concurrency,
+                    Consumer<HashedBlock> sink) {
+        if (maxDepth < 0 || maxBlocks < 1 || concurrency < 1)
+            throw new IllegalArgumentException("Invalid DAG fetch limits");
+        this.local = local;
+        this.remote = remote;
+        this.ioExec = ioExec;
+        this.maxDepth = maxDepth;
+        this.maxBlocks = maxBlocks;
+        this.concurrency = concurrency;
+        this.sink = sink;
+    }
+
+    /**
+     * @return The number of blocks fetched, once the DAG, up to the limits, is complete.
+     */
+    public CompletableFuture<Integer> start(Want root) {
+        synchronized (this) {
+            seen.add(root.cid);
+            queue.add(new Node(root, 0));
+        }
+        dispatch();
+        return result;
+    }
+
+    private void dispatch() {
+        List<Node> batch = new ArrayList<>();
+        synchronized (this) {
+            while (inFlight < concurrency && requested < maxBlocks && !queue.isEmpty()) {
+                batch.add(queue.poll());
+                inFlight++;
+                requested++;
+            }
+            if (inFlight == 0 && !result.isDone()) {
+                result.complete(received);
+                return;
+            }
+        }
+        if (!batch.isEmpty())
+            ioExec.execute(TraceLogger.getInstance().inCurrentTrace(() -> fetch(batch)));
+    }
+
+    private void fetch(List<Node> batch) {
+        List<CompletableFuture<Optional<byte[]>>> reads = new ArrayList<>();
+        for (Node n : batch)
+            reads.add(getLocal(n.want.cid));
+        CompletableFuture.allOf(reads.toArray(new CompletableFuture[0]))
+                .thenRunAsync(TraceLogger.getInstance().inCurrentTrace(() -> {
+                    List<Node> remote = new ArrayList<>();
+                    for (int i = 0; i < batch.size(); i++) {
+                        Optional<byte[]> block = reads.get(i).join();
+                        if (block.isPresent())
+                            arrived(batch.get(i), block.get());
+                        else
+                            remote.add(batch.get(i));
+                    }
+                    if (!remote.isEmpty())
+                        fetchRemote(remote);
+                }), ioExec)
+                .exceptionally(this::fail);
+    }
+
+    private void fetchRemote(List<Node> remote) {
+        List<Want> wants = new ArrayList<>();
+        for (Node n : remote)
+            wants.add(n.want);
+        List<CompletableFuture<HashedBlock>> blocks = this.remote.get(wants);
+        for (int i = 0; i < remote.size(); i++) {
+            Node n = remote.get(i);
+            // don't parse blocks on the network thread that received them
+            blocks.get(i).thenApplyAsync(TraceLogger.getInstance().inCurrentTrace((HashedBlock b) -> {
+                arrived(n, b.block);
+                return null;
+            }), ioExec).exceptionally(this::fail);
+        }
+    }
+
+    private CompletableFuture<Optional<byte[]>> getLocal(Cid cid) {
+        try {
+            return local.get(cid).exceptionally(t -> Optional.empty());
+        } catch (Exception e) {
+            return CompletableFuture.completedFuture(Optional.empty());
+        }
+    }
+
+    private void arrived(Node n, byte[] block) {
+        if (result.isDone())
+            return;
+        List<Cid> links = n.depth < maxDepth ? links(n.want.cid, block) : Collections.emptyList();
+        synchronized (sinkLock) {
+            sink.accept(new HashedBlock(n.want.cid, block));
+        }
+        synchronized (this) {
+            received++;
+            for (Cid link : links) {
+                // identity hashes carry their data inline
+                if (link.getType() != Multihash.Type.id && seen.add(link))
+                    queue.add(new Node(new Want(link), n.depth + 1));
+            }
+            inFlight--;
+        }
+        dispatch();
+    }
+
+    private static List<Cid> links(Cid cid, byte[] block) {
+        switch (cid.codec) {
+            case Raw:
+                return Collections.emptyList();
+            case DagCbor:
+                try {
+                    return CborObject.getLinks(cid, block);
+                } catch (Exception e) {
+                    LOG.log(Level.FINE, "Couldn't parse links of " + cid, e);
+                    return Collections.emptyList();
+                }
+            case DagProtobuf:
+                try {
+                    return dagPbLinks(block);
+                } catch (IOException e) {
+                    LOG.log(Level.FINE, "Couldn't parse links of " + cid, e);
+                    return Collections.emptyList();
+                }
+            default:
+                throw new IllegalStateException("Can't follow the links of " + cid + " with codec " + cid.codec);
+        }
+    }
+
+    /**
+     * Reads the link hashes of a dag-pb node, a PBNode with its links in field 2,
+     * each a PBLink with its hash in field 1.
+     */
+    static List<Cid> dagPbLinks(byte[] block) throws IOException {
+        List<Cid> links = new ArrayList<>();
+        CodedInputStream node = CodedInputStream.newInstance(block);
+        for (int tag = node.readTag(); tag != 0; tag = node.readTag()) {
+            if (tag != PB_NODE_LINK) {
+                node.skipField(tag);
+                continue;
+            }
+            CodedInputStream link = CodedInputStream.newInstance(node.readByteArray());
+            for (int field = link.readTag(); field != 0; field = link.readTag()) {
+                if (field == PB_LINK_HASH)
+                    links.add(Cid.cast(link.readByteArray()));
+                else
+                    link.skipField(field);
+            }
+        }
+        return links;
+    }
+
+    private Void fail(Throwable t) {
+        result.completeExceptionally(t);
+        return null;
+    }
+}
@@ -25,6 +25,8 @@ import org.peergos.protocol.dht.*;
 import org.peergos.protocol.http.*;
 import org.peergos.protocol.ipns.*;
 import org.peergos.util.Logging;
+import org.peergos.util.TraceLogger;
+import org.peergos.util.TraceType;
 
 import java.nio.file.*;
 import java.sql.Connection;
@@ -33,11 +35,26 @@ import java.sql.SQLException;
 import java.time.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
 import java.util.logging.*;
 import java.util.stream.*;
 
 public class EmbeddedIpfs {
     private static final Logger LOG = Logging.LOG();
+    private static final int LOCAL_READ_CONCURRENCY = 32;
+    // how often to look for blocks whose provider records are due to be refreshed
+    private static final long REPROVIDE_CHECK_PERIOD_MILLIS = 3600_000L;
+    // Local block reads and DAG link parsing, off the caller's and the network threads.
+    private static final ExecutorService ioExec = Executors.newFixedThreadPool(64, r -> {
+        Thread t = new Thread(() -> {
+            // don't inherit the trace of the request that happened to start this thread
+            TraceLogger.getInstance().clearTrace();
+            r.run();
+        }, "Block reads");
+        t.setDaemon(true);
+        return t;
+    });
 
     public final Host node;
     public final Blockstore blockstore;
@@ -57,7 +74,8 @@ public class EmbeddedIpfs {
                         Bitswap bitswap,
                         Optional<HttpProtocol.Binding> p2pHttp,
                         List<MultiAddress> bootstrap,
-                        Optional<BlockingDeque<Cid>> newBlockProvider) {
+                        Optional<BlockingDeque<Cid>> newBlockProvider,
+                        ReprovideSchedule reprovideSchedule) {
         this.node = node;
         this.blockstore = blockstore;
         this.records = records;
@@ -65,9 +83,28 @@ public class EmbeddedIpfs {
         this.bitswap = bitswap;
         this.p2pHttp = p2pHttp;
         this.bootstrap = bootstrap;
-        this.blocks = new BitswapBlockService(node, bitswap, dht);
-        this.blockProvider = newBlockProvider.map(q -> new PeriodicBlockProvider(1000L,
-                () -> blockstore.refs(false).join().stream(), node, dht, q));
+        this.blocks = new BitswapBlockService(node, bitswap, dht, new ProviderCache(), ioExec);
+        this.blockProvider = newBlockProvider.map(q -> new PeriodicBlockProvider(REPROVIDE_CHECK_PERIOD_MILLIS,
+                () -> blockstore.refs(false).join().stream(), node, dht, q, reprovideSchedule,
+                PeriodicBlockProvider.DEFAULT_MAX_KEYS_PER_SECOND));
+    }
+
+    public EmbeddedIpfs(Host node,
+                        Blockstore blockstore,
+                        RecordStore records,
+                        Kademlia dht,
+                        Bitswap bitswap,
+                        Optional<HttpProtocol.Binding> p2pHttp,
+                        List<MultiAddress> bootstrap,
+                        Optional<BlockingDeque<Cid>> newBlockProvider) {
+        this(node, blockstore, records, dht, bitswap, p2pHttp, bootstrap, newBlockProvider, ReprovideSchedule.NONE);
+    }
+
+    /**
+     * Limits how fast provider records for our blocks are sent to the DHT.
+     */
+    public void setReprovideKeysPerSecond(int keysPerSecond) {
+        blockProvider.ifPresent(p -> p.setMaxKeysPerSecond(keysPerSecond));
     }
 
     public int maxBlockSize() {
@@ -75,34 +112,111 @@ public class EmbeddedIpfs {
     }
 
     public List<HashedBlock> getBlocks(List<Want> wants, Set<PeerId> peers, boolean addToLocal) {
-        List<HashedBlock> blocksFound = new ArrayList<>();
+        return getBlocksAsync(wants, peers, addToLocal).stream()
+                .map(CompletableFuture::join)
+                .collect(Collectors.toList());
+    }
 
-        List<Want> local = new ArrayList<>();
-        List<Want> remote = new ArrayList<>();
+    /**
+     * Looks up each want in the local blockstore, up to LOCAL_READ_CONCURRENCY at
+     * a time, and asks the network for each miss as soon as it is known. Each
+     * read starts the next when it completes, so no thread waits on a read. Misses
+     * found while an earlier batch is being sent go out together in the next one.
+     *
+     * @return One result per want, in the same order.
+     */
+    public List<CompletableFuture<HashedBlock>> getBlocksAsync(List<Want> wants, Set<PeerId> peers, boolean addToLocal) {
+        TraceLogger tracer = TraceLogger.getInstance();
+        TraceLogger.Span span = tracer.startAsyncSpan(TraceType.GET_BLOCKS_START);
+        List<CompletableFuture<HashedBlock>> results = new ArrayList<>(wants.size());
+        for (int i = 0; i < wants.size(); i++)
+            results.add(new CompletableFuture<>());
+        CompletableFuture.allOf(results.toArray(new CompletableFuture[0])).whenComplete((r, t) -> span.close());
 
-        for (Want w : wants) {
-            if (blockstore.has(w.cid).join())
-                local.add(w);
+        BlockService.Fetch remote = blocks.fetch(peers, addToLocal);
+        AtomicInteger next = new AtomicInteger(0);
+        Runnable reader = tracer.inCurrentTrace(new Runnable() {
+            @Override
+            public void run() {
+                int i;
+                while ((i = next.getAndIncrement()) < wants.size()) {
+                    Want w = wants.get(i);
+                    CompletableFuture<HashedBlock> result = results.get(i);
+                    if (w.cid.getType() == Multihash.Type.id) {
+                        // the block is the hash
+                        result.complete(new HashedBlock(w.cid, w.cid.getHash(), true));
+                        continue;
+                    }
+                    CompletableFuture<Optional<byte[]>> read = getLocal(w.cid);
+                    if (read.isDone()) {
+                        localRead(w, read.join(), result, remote);
+                        continue;
+                    }
+                    // start the next read when this one completes, rather than waiting on it here
+                    read.thenApplyAsync(tracer.inCurrentTrace((Optional<byte[]> block) -> {
+                        localRead(w, block, result, remote);
+                        run();
+                        return null;
+                    }), ioExec);
+                    return;
+                }
+            }
+        });
+        for (int i = 0; i < Math.min(LOCAL_READ_CONCURRENCY, wants.size()); i++)
+            ioExec.execute(reader);
+        return results;
+    }
+
+    private void localRead(Want w, Optional<byte[]> block, CompletableFuture<HashedBlock> result, BlockService.Fetch remote) {
+        if (block.isPresent()) {
+            result.complete(new HashedBlock(w.cid, block.get(), true));
+            return;
+        }
+        remote.get(w).whenComplete((b, t) -> {
+            if (t != null)
+                result.completeExceptionally(t);
             else
-                remote.add(w);
+                result.complete(b);
+        });
+    }
+
+    /**
+     * Reads a block from the local blockstore, treating a failed read as a miss.
+     */
+    private CompletableFuture<Optional<byte[]>> getLocal(Cid cid) {
+        try {
+            return blockstore.get(cid).exceptionally(t -> Optional.empty());
+        } catch (Exception e) {
+            return CompletableFuture.completedFuture(Optional.empty());
+        }
+    }
+
+    /**
+     * Fetches a DAG, passing each block to the sink as it arrives. The links of
+     * each block are requested as soon as it arrives, through one bitswap session
+     * for the whole DAG.
+     *
+     * @return The number of blocks fetched. Completing it early, for example with
+     *         orTimeout, stops the fetch.
+     */
+    public CompletableFuture<Integer> getDag(Want root,
+                                             Set<PeerId> peers,
+                                             boolean addToLocal,
+                                             int maxDepth,
+                                             int maxBlocks,
+                                             int concurrency,
+                                             Consumer<HashedBlock> sink) {
+        TraceLogger.Span span = TraceLogger.getInstance().startAsyncSpan(TraceType.DAG_GET_START);
+        try {
+            DagFetch fetch = new DagFetch(blockstore, blocks.fetch(peers, addToLocal), ioExec,
+                    maxDepth, maxBlocks, concurrency, sink);
+            CompletableFuture<Integer> res = fetch.start(root);
+            res.whenComplete((r, t) -> span.close());
+            return res;
+        } catch (RuntimeException e) {
+            span.close();
+            throw e;
         }
-        local.stream()
-                .forEach(w -> {
-                    try {
-                        Optional<byte[]> block = blockstore.get(w.cid).join();
-                        block.ifPresent(b -> blocksFound.add(new HashedBlock(w.cid, b)));
-                        if (block.isEmpty())
-                            remote.add(w);
-                    } catch (Exception e) {
-                        remote.add(w);
-                    }
-                });
-        if (remote.isEmpty())
-            return blocksFound;
-        return java.util.stream.Stream.concat(
-                        blocksFound.stream(),
-                        blocks.get(remote, peers, addToLocal).stream())
-                .collect(Collectors.toList());
     }
 
     public CompletableFuture<Integer> publishValue(PrivKey priv, byte[] value, long sequence, int hoursTtl) {
@@ -160,7 +274,10 @@ public class EmbeddedIpfs {
             records.close();
         }
         blockProvider.ifPresent(b -> b.stop());
+        if (bitswap != null)
+            bitswap.close();
         dht.stopBootstrapThread();
+        dht.close();
         return node != null ? node.stop() : CompletableFuture.completedFuture(null);
     }
 
@@ -190,9 +307,23 @@ public class EmbeddedIpfs {
             if (updateMetadb)
                 s3blocks.updateMetadataStoreIfEmpty();
             withMetadb = s3blocks;
+        } else if (config.datastore.blockMount.prefix.equals("packed.datastore")) {
+            Map<String, Object> params = config.datastore.blockMount.getParams();
+            long segmentSize = params.containsKey("segmentSize") ?
+                    Long.parseLong(params.get("segmentSize").toString()) :
+                    PackedBlockstore.DEFAULT_SEGMENT_SIZE;
+            boolean sync = !"false".equals(String.valueOf(params.get("sync")));
+            String path = params.containsKey("path") ? params.get("path").toString() : "blocks";
+            PackedBlockstore packed = new PackedBlockstore(ipfsPath.resolve(path), segmentSize, sync);
+            CachingBlockMetadataStore cachedBlocks = new CachingBlockMetadataStore(packed, meta);
+            if (updateMetadb)
+                cachedBlocks.updateMetadataStoreIfEmpty();
+            withMetadb = cachedBlocks;
         } else {
             throw new IllegalStateException("Unrecognized datastore prefix: " + config.datastore.blockMount.prefix);
         }
+        if (config.datastore.blockCache.isEnabled())
+            withMetadb = new CachingBlockstore(withMetadb, config.datastore.blockCache.maxBytes);
         return typeLimited(filteredBlockStore(withMetadb, config), config);
     }
 
@@ -236,10 +367,46 @@ public class EmbeddedIpfs {
                                      Optional<HttpProtocol.HttpRequestProcessor> handler,
                                      Optional<String> bitswapProtocolId,
                                      Optional<Integer> maxBitswapMsgSize) {
-        Blockstore blockstore = provideBlocks ?
-                new ProvidingBlockstore(blocks) :
-                blocks;
-        ProviderStore providers = new RamProviderStore(10_000);
+        return build(records, new RamProviderStore(10_000), blocks, provideBlocks, swarmAddresses, bootstrap, identity,
+                authoriser, handler, bitswapProtocolId, maxBitswapMsgSize);
+    }
+
+    public static EmbeddedIpfs build(RecordStore records,
+                                     ProviderStore providers,
+                                     Blockstore blocks,
+                                     boolean provideBlocks,
+                                     List<MultiAddress> swarmAddresses,
+                                     List<MultiAddress> bootstrap,
+                                     IdentitySection identity,
+                                     BlockRequestAuthoriser authoriser,
+                                     Optional<HttpProtocol.HttpRequestProcessor> handler,
+                                     Optional<String> bitswapProtocolId,
+                                     Optional<Integer> maxBitswapMsgSize) {
+        return build(records, providers, blocks, ReprovideSchedule.NONE, provideBlocks, swarmAddresses, bootstrap,
+                identity, authoriser, handler, bitswapProtocolId, maxBitswapMsgSize);
+    }
+
+    /**
+     * @param reprovideSchedule When each block was last provided, so unchanged blocks aren't provided again until
+     *                          their records are due to be refreshed.
+     */
+    public static EmbeddedIpfs build(RecordStore records,
+                                     ProviderStore providers,
+                                     Blockstore blocks,
+                                     ReprovideSchedule reprovideSchedule,
+                                     boolean provideBlocks,
+                                     List<MultiAddress> swarmAddresses,
+                                     List<MultiAddress> bootstrap,
+                                     IdentitySection identity,
+                                     BlockRequestAuthoriser authoriser,
+                                     Optional<HttpProtocol.HttpRequestProcessor> handler,
+                                     Optional<String> bitswapProtocolId,
+                                     Optional<Integer> maxBitswapMsgSize) {
+        Optional<ProvidingBlockstore> providing = provideBlocks ?
+                Optional.of(new ProvidingBlockstore(blocks)) :
+                Optional.empty();
+        // the API, DHT and bitswap server all read through this, so they share reads of the same block
+        Blockstore blockstore = new CoalescingBlockstore(providing.map(p -> (Blockstore) p).orElse(blocks));
 
         HostBuilder builder = new HostBuilder().setIdentity(identity.privKeyProtobuf).listen(swarmAddresses);
         if (! builder.getPeerId().equals(identity.peerId)) {
@@ -251,7 +418,8 @@ public class EmbeddedIpfs {
         CircuitStopProtocol.Binding stop = new CircuitStopProtocol.Binding();
         CircuitHopProtocol.RelayManager relayManager = CircuitHopProtocol.RelayManager.limitTo(builder.getPrivateKey(), ourPeerId, 5);
         Bitswap bitswap = new Bitswap(bitswapProtocolId.orElse(Bitswap.PROTOCOL_ID),
-                new BitswapEngine(blockstore, authoriser, maxBitswapMsgSize.orElse(Bitswap.MAX_MESSAGE_SIZE), true));
+                new BitswapEngine(blockstore, authoriser, maxBitswapMsgSize.orElse(Bitswap.MAX_MESSAGE_SIZE), true,
+                        BitswapEngine.DEFAULT_SERVER_THREADS));
         Optional<HttpProtocol.Binding> httpHandler = handler.map(HttpProtocol.Binding::new);
 
         List<ProtocolBinding> protocols = new ArrayList<>();
@@ -264,10 +432,9 @@ public class EmbeddedIpfs {
 
         Host node = builder.addProtocols(protocols).build();
 
-        Optional<BlockingDeque<Cid>> newBlockProvider = provideBlocks ?
-                Optional.of(((ProvidingBlockstore)blockstore).toPublish) :
-                Optional.empty();
-        return new EmbeddedIpfs(node, blockstore, records, dht, bitswap, httpHandler, bootstrap, newBlockProvider);
+        Optional<BlockingDeque<Cid>> newBlockProvider = providing.map(p -> p.toPublish);
+        return new EmbeddedIpfs(node, blockstore, records, dht, bitswap, httpHandler, bootstrap, newBlockProvider,
+                reprovideSchedule);
     }
 
     public static Multiaddr[] getAddresses(Host node, Kademlia dht, Multihash targetNodeId) throws ConnectionException {
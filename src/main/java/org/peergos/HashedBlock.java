@@ -5,9 +5,16 @@ import io.ipfs.cid.Cid;
 public class HashedBlock {
     public final Cid hash;
     public final byte[] block;
+    // whether the block was read from the local blockstore, rather than fetched
+    public final boolean local;
 
-    public HashedBlock(Cid hash, byte[] block) {
+    public HashedBlock(Cid hash, byte[] block, boolean local) {
         this.hash = hash;
         this.block = block;
+        this.local = local;
+    }
+
+    public HashedBlock(Cid hash, byte[] block) {
+        this(hash, block, false);
     }
 }
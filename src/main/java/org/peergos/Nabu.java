@@ -12,6 +12,7 @@ import org.peergos.blockstore.metadatadb.BlockMetadataStore;
 import org.peergos.config.*;
 import org.peergos.net.APIHandler;
 import org.peergos.net.HttpProxyHandler;
+import org.peergos.protocol.dht.DatabaseProviderStore;
 import org.peergos.protocol.dht.DatabaseRecordStore;
 import org.peergos.protocol.http.*;
 import org.peergos.util.JSONParser;
@@ -57,15 +58,23 @@ public class Nabu {
 
         Path datastorePath = ipfsPath.resolve("datastore").resolve("h2-v2.datastore");
         DatabaseRecordStore records = new DatabaseRecordStore(datastorePath.toAbsolutePath().toString());
+        Path providersPath = ipfsPath.resolve("datastore").resolve("h2-providers.datastore");
+        DatabaseProviderStore providers = new DatabaseProviderStore(providersPath.toAbsolutePath().toString());
         BlockMetadataStore meta = buildBlockMetadata(args);
         EmbeddedIpfs ipfs = EmbeddedIpfs.build(records,
+                providers,
                 buildBlockStore(config, ipfsPath, meta, true),
+                meta,
                 true,
                 config.addresses.getSwarmAddresses(),
                 config.bootstrap.getBootstrapAddresses(),
                 config.identity,
                 authoriser,
-                config.addresses.proxyTargetAddress.map(Nabu::proxyHandler));
+                config.addresses.proxyTargetAddress.map(Nabu::proxyHandler),
+                Optional.empty(),
+                Optional.empty());
+        ipfs.dht.setLookupPaths(config.routing.lookupPaths);
+        ipfs.setReprovideKeysPerSecond(config.routing.reprovideKeysPerSecond);
         ipfs.start();
 
         String apiAddressArg = "Addresses.API";
@@ -82,7 +91,7 @@ public class Nabu {
         if (config.addresses.proxyTargetAddress.isPresent())
             apiServer.createContext(HttpProxyService.API_URL,
                     new HttpProxyHandler(new HttpProxyService(ipfs.node, ipfs.p2pHttp.get(), ipfs.dht)));
-        apiServer.setExecutor(Executors.newFixedThreadPool(handlerThreads));
+        apiServer.setExecutor(AggregatedMetrics.handlerPool(handlerThreads));
         apiServer.start();
 
         Thread shutdownHook = new Thread(() -> {
@@ -92,6 +101,12 @@ public class Nabu {
             } catch (Exception ex) {
                 ex.printStackTrace();
             }
+            LOG.info("Writing provider records...");
+            try {
+                providers.close();
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            }
         });
         Runtime.getRuntime().addShutdownHook(shutdownHook);
     }
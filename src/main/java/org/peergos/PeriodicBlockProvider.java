@@ -1,7 +1,9 @@
 package org.peergos;
 
 import io.ipfs.cid.*;
+import io.ipfs.multihash.Multihash;
 import io.libp2p.core.*;
+import io.prometheus.client.*;
 import org.peergos.protocol.dht.*;
 import org.peergos.util.Logging;
 
@@ -13,25 +15,118 @@ import java.util.logging.*;
 import java.util.stream.*;
 import java.util.stream.Stream;
 
+/**
+ * Publishes provider records for our blocks to the DHT.
+ *
+ * Keys are sorted by their position in the DHT keyspace and provided a region
+ * at a time. One lookup finds the closest peers to the first key of a region,
+ * and the region is every following key that shares a longer prefix with it
+ * than the furthest of those peers does. The peers closest to those keys are
+ * the same, apart from some at the edge of the region, so each peer is sent
+ * the records for the whole region over one stream. Records are sent no faster
+ * than the configured number of keys per second.
+ *
+ * Peers don't acknowledge ADD_PROVIDER messages, so a key counts as provided
+ * once its record has been sent to at least one of the closest peers.
+ *
+ * Each pass only provides blocks whose records are due to be refreshed,
+ * according to when the schedule says they were last provided. New blocks are
+ * provided as they arrive, on their own threads, so they don't wait for a pass
+ * to finish. They share its rate budget, so at most one batch per pass thread
+ * goes ahead of them.
+ */
 public class PeriodicBlockProvider {
 
     private static final Logger LOG = Logging.LOG();
+    public static final int DEFAULT_MAX_KEYS_PER_SECOND = 1_000;
+    // well within the 48 hour lifetime of a provider record
+    public static final long REPROVIDE_AFTER_MILLIS = 22 * 3600_000L;
+    private static final int REPLICAS = 20;
+    private static final int CONCURRENT_LOOKUPS = 8;
+    private static final int NEW_BLOCK_LOOKUPS = 2;
+    // the most records sent to a peer over one stream
+    private static final int MAX_BATCH = 1_000;
+
+    private static final Counter sentKeys = Counter.build()
+            .name("reprovide_sent_keys_total")
+            .help("Total blocks whose provider record was sent to at least one peer, which peers don't acknowledge")
+            .register();
+    private static final Counter failedKeys = Counter.build()
+            .name("reprovide_failed_keys_total")
+            .help("Total blocks whose provider record couldn't be sent to any peer")
+            .register();
+    private static final Counter lookups = Counter.build()
+            .name("reprovide_lookups_total")
+            .help("Total DHT lookups made to provide blocks")
+            .register();
+    private static final Gauge remainingKeys = Gauge.build()
+            .name("reprovide_remaining_keys")
+            .help("Blocks left to provide in the current pass")
+            .register();
+
+    private static final ExecutorService lookupExec = Executors.newFixedThreadPool(CONCURRENT_LOOKUPS, r -> {
+        Thread t = new Thread(r, "Reprovider");
+        t.setDaemon(true);
+        return t;
+    });
+    // a pass keeps every reprovider thread busy until it ends
+    private static final ExecutorService newBlockExec = Executors.newFixedThreadPool(NEW_BLOCK_LOOKUPS, r -> {
+        Thread t = new Thread(r, "NewBlockProvider");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private static final class Key implements Comparable<Key> {
+        final Cid cid;
+        final Multihash block;
+        // the position of the block in the DHT keyspace
+        final byte[] id;
+
+        Key(Cid cid) {
+            this.cid = cid;
+            this.block = cid.bareMultihash();
+            this.id = Hash.sha256(this.block.toBytes());
+        }
+
+        @Override
+        public int compareTo(Key other) {
+            return Arrays.compareUnsigned(id, other.id);
+        }
+    }
+
     private final long reprovideIntervalMillis;
     private final Supplier<Stream<Cid>> getBlocks;
     private final Host us;
     private final Kademlia dht;
     private final BlockingDeque<Cid> newBlocksToPublish;
+    private final ReprovideSchedule schedule;
+    private volatile long nanosPerKey;
+    // guarded by this, when the next key may be sent
+    private long nextSendNanos = System.nanoTime();
 
     public PeriodicBlockProvider(long reprovideIntervalMillis,
                                  Supplier<Stream<Cid>> getBlocks,
                                  Host us,
                                  Kademlia dht,
-                                 BlockingDeque<Cid> newBlocksToPublish) {
+                                 BlockingDeque<Cid> newBlocksToPublish,
+                                 ReprovideSchedule schedule,
+                                 int maxKeysPerSecond) {
         this.reprovideIntervalMillis = reprovideIntervalMillis;
         this.getBlocks = getBlocks;
         this.us = us;
         this.dht = dht;
         this.newBlocksToPublish = newBlocksToPublish;
+        this.schedule = schedule;
+        setMaxKeysPerSecond(maxKeysPerSecond);
+    }
+
+    public PeriodicBlockProvider(long reprovideIntervalMillis,
+                                 Supplier<Stream<Cid>> getBlocks,
+                                 Host us,
+                                 Kademlia dht,
+                                 BlockingDeque<Cid> newBlocksToPublish) {
+        this(reprovideIntervalMillis, getBlocks, us, dht, newBlocksToPublish, ReprovideSchedule.NONE,
+                DEFAULT_MAX_KEYS_PER_SECOND);
     }
 
     private final AtomicBoolean running = new AtomicBoolean(false);
@@ -45,10 +140,16 @@ public class PeriodicBlockProvider {
         running.set(false);
     }
 
+    public void setMaxKeysPerSecond(int maxKeysPerSecond) {
+        if (maxKeysPerSecond <= 0)
+            throw new IllegalArgumentException("Keys per second must be positive: " + maxKeysPerSecond);
+        this.nanosPerKey = 1_000_000_000L / maxKeysPerSecond;
+    }
+
     public void run() {
         while (running.get()) {
             try {
-                publish(getBlocks.get());
+                publish(due(getBlocks.get()));
                 Thread.sleep(reprovideIntervalMillis);
             } catch (Throwable e) {
                 LOG.log(Level.WARNING, e.getMessage(), e);
@@ -61,7 +162,11 @@ public class PeriodicBlockProvider {
             try {
                 Cid c = newBlocksToPublish.takeFirst();
                 if (c != null) {
-                    publish(Stream.of(c));
+                    // provide everything that arrived meanwhile with it
+                    List<Cid> batch = new ArrayList<>();
+                    batch.add(c);
+                    newBlocksToPublish.drainTo(batch);
+                    publish(batch.stream(), newBlockExec, NEW_BLOCK_LOOKUPS);
                 }
             } catch (Throwable e) {
                 LOG.log(Level.WARNING, e.getMessage(), e);
@@ -69,15 +174,163 @@ public class PeriodicBlockProvider {
         }
     }
 
+    /**
+     * @return The blocks that haven't been provided in the last REPROVIDE_AFTER_MILLIS.
+     */
+    private Stream<Cid> due(Stream<Cid> blocks) {
+        long before = System.currentTimeMillis() - REPROVIDE_AFTER_MILLIS;
+        return schedule.providedBefore(blocks.collect(Collectors.toList()), before).stream();
+    }
+
     public void publish(Stream<Cid> blocks) {
-        PeerAddresses ourAddrs = PeerAddresses.fromHost(us);
+        publish(blocks, lookupExec, CONCURRENT_LOOKUPS);
+    }
 
-        List<CompletableFuture<Void>> published = blocks.parallel()
-                .map(ref -> publish(ref, ourAddrs))
+    private void publish(Stream<Cid> blocks, ExecutorService exec, int maxThreads) {
+        PeerAddresses ourAddrs = PeerAddresses.fromHost(us);
+        List<Key> keys = blocks.map(Key::new)
+                .sorted()
                 .collect(Collectors.toList());
-        for (CompletableFuture<Void> fut : published) {
+        if (keys.isEmpty())
+            return;
+        long start = System.currentTimeMillis();
+        remainingKeys.inc(keys.size());
+        double lookupsBefore = lookups.get(), sentBefore = sentKeys.get();
+        // split the keyspace between the lookup threads, which costs an extra lookup at each split
+        int threads = Math.min(maxThreads, keys.size());
+        List<CompletableFuture<Void>> done = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            List<Key> range = keys.subList(t * keys.size() / threads, (t + 1) * keys.size() / threads);
+            done.add(CompletableFuture.runAsync(() -> provide(range, ourAddrs), exec));
+        }
+        for (CompletableFuture<Void> fut : done)
             fut.join();
+        LOG.info("Sent provider records for " + (long) (sentKeys.get() - sentBefore) + " of " + keys.size() + " blocks with "
+                + (long) (lookups.get() - lookupsBefore) + " lookups in "
+                + (System.currentTimeMillis() - start) / 1000 + "s");
+    }
+
+    /**
+     * Provides sorted keys a region at a time.
+     */
+    private void provide(List<Key> keys, PeerAddresses ourAddrs) {
+        List<byte[]> ids = keys.stream()
+                .map(k -> k.id)
+                .collect(Collectors.toList());
+        int i = 0;
+        while (i < keys.size()) {
+            Key first = keys.get(i);
+            List<PeerAddresses> closest;
+            try {
+                lookups.inc();
+                closest = dht.findClosestPeersAsync(first.block.toBytes(), REPLICAS, us).join();
+            } catch (Exception e) {
+                LOG.fine("Couldn't find peers to provide " + first.block + ": " + e.getMessage());
+                closest = Collections.emptyList();
+            }
+            List<byte[]> peerIds = closest.stream()
+                    .map(p -> Hash.sha256(p.peerId.toBytes()))
+                    .collect(Collectors.toList());
+            int end = regionEnd(ids, i, peerIds);
+            for (int batchStart = i; batchStart < end; batchStart += MAX_BATCH) {
+                List<Key> batch = keys.subList(batchStart, Math.min(end, batchStart + MAX_BATCH));
+                boolean sent = !closest.isEmpty() && send(batch, closest, ourAddrs);
+                (sent ? sentKeys : failedKeys).inc(batch.size());
+                if (sent)
+                    setProvided(batch);
+                remainingKeys.dec(batch.size());
+            }
+            i = end;
+        }
+    }
+
+    /**
+     * @param ids     Sorted positions of the keys in the DHT keyspace.
+     * @param peerIds The positions of the peers closest to the key at start.
+     * @return The end of the region starting at start, the keys that share a
+     *         longer prefix with the first than the furthest of the peers does.
+     */
+    static int regionEnd(List<byte[]> ids, int start, List<byte[]> peerIds) {
+        byte[] first = ids.get(start);
+        int end = start + 1;
+        if (peerIds.isEmpty())
+            return end;
+        int furthest = peerIds.stream()
+                .mapToInt(p -> commonPrefixLength(p, first))
+                .min()
+                .getAsInt();
+        while (end < ids.size() && commonPrefixLength(ids.get(end), first) > furthest)
+            end++;
+        return end;
+    }
+
+    /**
+     * Records the keys as provided, although only sent, so they aren't sent again
+     * until their records are due to be refreshed.
+     */
+    private void setProvided(List<Key> batch) {
+        try {
+            schedule.setProvided(batch.stream()
+                    .map(k -> k.cid)
+                    .collect(Collectors.toList()), System.currentTimeMillis());
+        } catch (Exception e) {
+            // they will be provided again on the next pass
+            LOG.log(Level.WARNING, "Couldn't record provided blocks", e);
+        }
+    }
+
+    /**
+     * @return Whether the records were sent to any peer. This doesn't mean the
+     *         peer stored them, as ADD_PROVIDER has no reply.
+     */
+    private boolean send(List<Key> batch, List<PeerAddresses> peers, PeerAddresses ourAddrs) {
+        try {
+            awaitBudget(batch.size());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        // a cid and its multihash are the same key
+        List<Multihash> blocks = batch.stream()
+                .map(k -> k.block)
+                .distinct()
+                .collect(Collectors.toList());
+        List<CompletableFuture<Boolean>> sent = peers.stream()
+                .map(p -> dht.provideBlocks(blocks, p, us, ourAddrs))
+                .collect(Collectors.toList());
+        return sent.stream()
+                .map(CompletableFuture::join)
+                .reduce(false, (a, b) -> a || b);
+    }
+
+    /**
+     * Waits until the keys per second budget allows sending another n keys.
+     */
+    private void awaitBudget(int n) throws InterruptedException {
+        long waitNanos = reserveBudget(n, System.nanoTime());
+        if (waitNanos > 0)
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+    }
+
+    /**
+     * Reserves the next slot for n keys. Unused budget doesn't carry over, so an
+     * idle provider can't send a burst later.
+     *
+     * @return How long to wait from now before sending them.
+     */
+    synchronized long reserveBudget(int n, long now) {
+        long sendAt = Math.max(now, nextSendNanos);
+        nextSendNanos = sendAt + n * nanosPerKey;
+        return sendAt - now;
+    }
+
+    static int commonPrefixLength(byte[] a, byte[] b) {
+        for (int i = 0; i < a.length; i++) {
+            int diff = (a[i] ^ b[i]) & 0xff;
+            if (diff != 0)
+                return i * 8 + Integer.numberOfLeadingZeros(diff) - 24;
         }
+        return a.length * 8;
     }
 
     public CompletableFuture<Void> publish(Cid h, PeerAddresses ourAddrs) {
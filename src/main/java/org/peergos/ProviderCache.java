@@ -0,0 +1,112 @@
+package org.peergos;
+
+import io.ipfs.cid.*;
+import io.libp2p.core.*;
+import org.peergos.cbor.*;
+import org.peergos.util.*;
+
+import java.util.*;
+import java.util.function.*;
+import java.util.logging.*;
+
+/**
+ * Remembers who provides a block, so fetching it again, or fetching blocks from
+ * the same DAG, doesn't need another DHT walk.
+ *
+ * Entries come from DHT lookups, including lookups that found nobody, which are
+ * remembered for a shorter time. Peers that sent us a block are also recorded
+ * as providers of the block and of the blocks it links to, as the rest of a DAG
+ * is usually held by whoever had its root.
+ */
+public class ProviderCache {
+    private static final Logger LOG = Logging.LOG();
+    public static final long DEFAULT_TTL_MILLIS = 10 * 60_000;
+    public static final long DEFAULT_NEGATIVE_TTL_MILLIS = 60_000;
+    public static final int DEFAULT_MAX_ENTRIES = 10_000;
+
+    private static final class Entry {
+        final Set<PeerId> peers;
+        final long expiry;
+
+        Entry(Set<PeerId> peers, long expiry) {
+            this.peers = peers;
+            this.expiry = expiry;
+        }
+    }
+
+    private final long ttlMillis, negativeTtlMillis;
+    private final LongSupplier clock;
+    // guarded by this
+    private final LRUCache<Cid, Entry> entries;
+
+    ProviderCache(int maxEntries, long ttlMillis, long negativeTtlMillis, LongSupplier clock) {
+        this.entries = new LRUCache<>(maxEntries);
+        this.ttlMillis = ttlMillis;
+        this.negativeTtlMillis = negativeTtlMillis;
+        this.clock = clock;
+    }
+
+    public ProviderCache(int maxEntries, long ttlMillis, long negativeTtlMillis) {
+        this(maxEntries, ttlMillis, negativeTtlMillis, System::currentTimeMillis);
+    }
+
+    public ProviderCache() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_TTL_MILLIS, DEFAULT_NEGATIVE_TTL_MILLIS);
+    }
+
+    /**
+     * @return The providers of a block, empty if a recent lookup found none, or
+     * nothing if we don't know.
+     */
+    public synchronized Optional<Set<PeerId>> get(Cid block) {
+        Entry e = entries.get(block);
+        if (e == null)
+            return Optional.empty();
+        if (e.expiry < clock.getAsLong()) {
+            entries.remove(block);
+            return Optional.empty();
+        }
+        return Optional.of(e.peers);
+    }
+
+    /**
+     * Records the result of a DHT lookup.
+     */
+    public synchronized void put(Cid block, Set<PeerId> providers) {
+        long now = clock.getAsLong();
+        entries.put(block, new Entry(Collections.unmodifiableSet(new HashSet<>(providers)),
+                now + (providers.isEmpty() ? negativeTtlMillis : ttlMillis)));
+    }
+
+    /**
+     * Records that peers sent us a block, which makes them likely providers of
+     * the blocks it links to.
+     */
+    public void served(HashedBlock block, Set<PeerId> peers) {
+        if (peers.isEmpty())
+            return;
+        List<Cid> links = Collections.emptyList();
+        if (block.hash.codec == Cid.Codec.DagCbor) {
+            try {
+                links = CborObject.getLinks(block.hash, block.block);
+            } catch (Exception e) {
+                LOG.log(Level.FINE, "Couldn't parse links of " + block.hash, e);
+            }
+        }
+        long expiry = clock.getAsLong() + ttlMillis;
+        synchronized (this) {
+            add(block.hash, peers, expiry);
+            for (Cid link : links)
+                add(link, peers, expiry);
+        }
+    }
+
+    // Must hold the lock
+    private void add(Cid block, Set<PeerId> peers, long expiry) {
+        Entry existing = entries.get(block);
+        Set<PeerId> merged = new HashSet<>(peers);
+        if (existing != null && existing.expiry >= clock.getAsLong())
+            merged.addAll(existing.peers);
+        entries.put(block, new Entry(Collections.unmodifiableSet(merged), expiry));
+    }
+}
@@ -0,0 +1,59 @@
+package org.peergos;
+
+import io.ipfs.cid.*;
+import io.libp2p.core.*;
+import org.peergos.protocol.bitswap.*;
+import org.peergos.protocol.dht.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.stream.*;
+
+/**
+ * Opens bitswap sessions for blocks we don't know the peers for.
+ *
+ * Rather than waiting for a provider lookup to finish, the session starts with
+ * the first provider found, and providers found after that are added to it as
+ * the lookup carries on.
+ */
+public class ProviderSession {
+
+    private ProviderSession() {}
+
+    /**
+     * @param block A block the session will fetch, whose providers are likely to
+     *              have the other blocks fetched through it.
+     * @return A session, once a provider is known, or the lookup has finished.
+     * If no providers were found, the session asks every connected peer.
+     */
+    public static CompletableFuture<BitswapSession> open(Cid block,
+                                                         Host us,
+                                                         Bitswap bitswap,
+                                                         Kademlia dht,
+                                                         ProviderCache cache,
+                                                         int desiredProviders) {
+        Optional<Set<PeerId>> cached = cache.get(block);
+        if (cached.isPresent())
+            return CompletableFuture.completedFuture(bitswap.newSession(us, cached.get()));
+
+        CompletableFuture<BitswapSession> res = new CompletableFuture<>();
+        // only whoever opens the session creates it, the first provider or else the end of the lookup
+        AtomicBoolean opened = new AtomicBoolean(false);
+        dht.findProviders(block, us, desiredProviders, provider -> {
+            Set<PeerId> peer = Set.of(PeerId.fromBase58(provider.peerId.toBase58()));
+            if (opened.compareAndSet(false, true))
+                res.complete(bitswap.newSession(us, peer));
+            else
+                res.thenAccept(s -> s.offerPeers(peer));
+        }).whenComplete((providers, t) -> {
+            if (providers != null)
+                cache.put(block, providers.stream()
+                        .map(p -> PeerId.fromBase58(p.peerId.toBase58()))
+                        .collect(Collectors.toSet()));
+            if (opened.compareAndSet(false, true))
+                res.complete(bitswap.newSession(us, Collections.emptySet()));
+        });
+        return res;
+    }
+}
@@ -0,0 +1,32 @@
+package org.peergos;
+
+import io.ipfs.cid.Cid;
+
+import java.util.List;
+
+/**
+ * When each block was last provided to the DHT, so a reprovide pass only
+ * announces blocks whose provider records are close to expiring.
+ */
+public interface ReprovideSchedule {
+
+    /**
+     * @return The blocks that were last provided before the given time, or never, in the same order.
+     */
+    List<Cid> providedBefore(List<Cid> blocks, long timeMillis);
+
+    void setProvided(List<Cid> blocks, long timeMillis);
+
+    /**
+     * Remembers nothing, so every block is provided on every pass.
+     */
+    ReprovideSchedule NONE = new ReprovideSchedule() {
+        @Override
+        public List<Cid> providedBefore(List<Cid> blocks, long timeMillis) {
+            return blocks;
+        }
+
+        @Override
+        public void setProvided(List<Cid> blocks, long timeMillis) {}
+    };
+}
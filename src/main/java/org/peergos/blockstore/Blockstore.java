@@ -6,6 +6,7 @@ import io.ipfs.multihash.Multihash;
 import org.peergos.blockstore.metadatadb.BlockMetadata;
 import org.peergos.blockstore.metadatadb.BlockMetadataStore;
 
+import java.nio.*;
 import java.util.*;
 import java.util.concurrent.*;
 
@@ -28,6 +29,14 @@ public interface Blockstore {
 
     CompletableFuture<Optional<byte[]>> get(Cid c);
 
+    /**
+     * Reads a block into a buffer that can be wrapped, rather than copied, into
+     * an outgoing message. The buffer is owned by the caller but must not be modified.
+     */
+    default CompletableFuture<Optional<ByteBuffer>> getBuffer(Cid c) {
+        return get(c).thenApply(b -> b.map(ByteBuffer::wrap));
+    }
+
     CompletableFuture<Cid> put(byte[] block, Cid.Codec codec);
 
     CompletableFuture<Boolean> rm(Cid c);
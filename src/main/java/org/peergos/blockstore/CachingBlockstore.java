@@ -0,0 +1,173 @@
+package org.peergos.blockstore;
+
+import io.ipfs.cid.*;
+import io.ipfs.multihash.*;
+import io.prometheus.client.Counter;
+import org.peergos.blockstore.metadatadb.BlockMetadata;
+import org.peergos.util.*;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A read-through cache of block data in front of a slower blockstore, e.g. S3 or
+ * disk, held off heap in an {@link OffHeapBlockstore}.
+ *
+ * Once the cache is full, a block read from the target is only admitted if it
+ * has been asked for before recently, as counted by a count-min sketch of
+ * request frequencies (as in TinyLFU). This stops a scan of blocks that are only
+ * read once from flushing the blocks that are read often. Concurrent misses for
+ * the same block are not coalesced here, but by a {@link CoalescingBlockstore}
+ * in front of this.
+ */
+public class CachingBlockstore implements Blockstore {
+
+    private static final Counter hits = Counter.build()
+            .name("ipfs_block_cache_hits_total")
+            .help("Number of block reads served from the block cache")
+            .register();
+    private static final Counter misses = Counter.build()
+            .name("ipfs_block_cache_misses_total")
+            .help("Number of block reads that went to the underlying blockstore")
+            .register();
+    private static final Counter rejected = Counter.build()
+            .name("ipfs_block_cache_rejected_total")
+            .help("Number of blocks not admitted to the full block cache because they were rarely read")
+            .register();
+
+    // Requests seen for a block before it can displace others in a full cache.
+    private static final int ADMIT_FREQUENCY = 2;
+    // Assumed average block size, used to size the frequency sketch.
+    private static final int AVERAGE_BLOCK_SIZE = 16 * 1024;
+
+    private final Blockstore target;
+    private final OffHeapBlockstore cache;
+    private final FrequencySketch frequencies;
+
+    public CachingBlockstore(Blockstore target, long maxBytes) {
+        this.target = target;
+        this.cache = new OffHeapBlockstore(maxBytes);
+        this.frequencies = new FrequencySketch(cache.capacityBytes() / AVERAGE_BLOCK_SIZE);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> has(Cid c) {
+        if (cache.has(c).join())
+            return Futures.of(true);
+        return target.has(c);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> hasAny(Multihash h) {
+        return target.hasAny(h);
+    }
+
+    @Override
+    public CompletableFuture<Optional<byte[]>> get(Cid c) {
+        frequencies.increment(c);
+        Optional<byte[]> cached = cache.get(c).join();
+        if (cached.isPresent()) {
+            hits.inc();
+            return Futures.of(cached);
+        }
+        misses.inc();
+        return target.get(c).thenApply(block -> {
+            block.ifPresent(b -> admit(c, b));
+            return block;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Optional<ByteBuffer>> getBuffer(Cid c) {
+        return get(c).thenApply(b -> b.map(ByteBuffer::wrap));
+    }
+
+    private void admit(Cid c, byte[] block) {
+        if (cache.allocatedBytes() >= cache.capacityBytes() && frequencies.frequency(c) < ADMIT_FREQUENCY) {
+            rejected.inc();
+            return;
+        }
+        try {
+            cache.put(c, block);
+        } catch (IllegalStateException e) {
+            // too large to cache
+        }
+    }
+
+    @Override
+    public CompletableFuture<Cid> put(byte[] block, Cid.Codec codec) {
+        return target.put(block, codec);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> rm(Cid c) {
+        cache.rm(c);
+        return target.rm(c);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> bloomAdd(Cid cid) {
+        return target.bloomAdd(cid);
+    }
+
+    @Override
+    public CompletableFuture<List<Cid>> refs(boolean useBlockstore) {
+        return target.refs(useBlockstore);
+    }
+
+    @Override
+    public CompletableFuture<BlockMetadata> getBlockMetadata(Cid h) {
+        return target.getBlockMetadata(h);
+    }
+
+    /**
+     * A count-min sketch of how often each cid is requested, with 4 rows of
+     * saturating byte counters. All counts are halved periodically so the
+     * frequencies reflect recent requests.
+     */
+    private static final class FrequencySketch {
+        private static final int DEPTH = 4;
+        private static final long[] SEEDS = {0x9e3779b97f4a7c15L, 0xc2b2ae3d27d4eb4fL, 0x165667b19e3779f9L, 0x27d4eb2f165667c5L};
+        private final byte[][] counts;
+        private final int mask;
+        private final int resetAfter;
+        // guarded by this
+        private int additions = 0;
+
+        FrequencySketch(long expectedEntries) {
+            int width = Integer.highestOneBit((int) Math.max(1024, Math.min(1 << 24, expectedEntries)) * 2 - 1);
+            this.counts = new byte[DEPTH][width];
+            this.mask = width - 1;
+            this.resetAfter = 10 * width;
+        }
+
+        private int index(long hash, int row) {
+            long h = (hash + SEEDS[row]) * SEEDS[row];
+            return (int) (h ^ (h >>> 32)) & mask;
+        }
+
+        synchronized void increment(Cid c) {
+            long hash = c.hashCode() * 0x9e3779b97f4a7c15L;
+            for (int row = 0; row < DEPTH; row++) {
+                int i = index(hash, row);
+                if (counts[row][i] < Byte.MAX_VALUE)
+                    counts[row][i]++;
+            }
+            if (++additions >= resetAfter) {
+                for (byte[] row : counts)
+                    for (int i = 0; i < row.length; i++)
+                        row[i] >>= 1;
+                additions /= 2;
+            }
+        }
+
+        synchronized int frequency(Cid c) {
+            long hash = c.hashCode() * 0x9e3779b97f4a7c15L;
+            int min = Integer.MAX_VALUE;
+            for (int row = 0; row < DEPTH; row++)
+                min = Math.min(min, counts[row][index(hash, row)]);
+            return min;
+        }
+    }
+}
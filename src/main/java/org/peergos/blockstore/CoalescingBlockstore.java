@@ -0,0 +1,95 @@
+package org.peergos.blockstore;
+
+import io.ipfs.cid.*;
+import io.ipfs.multihash.*;
+import io.prometheus.client.Counter;
+import org.peergos.blockstore.metadatadb.*;
+import org.peergos.util.*;
+
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Makes concurrent reads of the same block, e.g. from API calls and from peers'
+ * wants, share one read from the target blockstore. This is the only layer that
+ * coalesces reads, so the blockstores behind it, e.g. a block cache, don't.
+ *
+ * Only the caller that started a shared read gets the block itself. The others
+ * get a copy from get, or a read only view from getBuffer, so no caller can
+ * change the data another sees.
+ */
+public class CoalescingBlockstore implements Blockstore {
+
+    private static final Counter coalesced = Counter.build()
+            .name("ipfs_block_reads_coalesced_total")
+            .help("Number of block reads that shared a read already in flight")
+            .register();
+
+    private final Blockstore target;
+    private final SingleFlight<Cid, Optional<ByteBuffer>> reads = new SingleFlight<>(coalesced::inc);
+    private final SingleFlight<Cid, Boolean> hasChecks = new SingleFlight<>();
+
+    public CoalescingBlockstore(Blockstore target) {
+        this.target = target;
+    }
+
+    @Override
+    public CompletableFuture<Boolean> has(Cid c) {
+        return hasChecks.run(c, () -> target.has(c));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> hasAny(Multihash h) {
+        return target.hasAny(h);
+    }
+
+    @Override
+    public CompletableFuture<Optional<byte[]>> get(Cid c) {
+        return getBuffer(c).thenApply(b -> b.map(CoalescingBlockstore::bytes));
+    }
+
+    @Override
+    public CompletableFuture<Optional<ByteBuffer>> getBuffer(Cid c) {
+        AtomicBoolean started = new AtomicBoolean(false);
+        return reads.run(c, () -> {
+            started.set(true);
+            return target.getBuffer(c);
+        }).thenApply(b -> b.map(buf -> started.get() ? buf : buf.asReadOnlyBuffer()));
+    }
+
+    // a read only buffer has no accessible array, so it is copied
+    private static byte[] bytes(ByteBuffer buf) {
+        if (buf.hasArray() && buf.arrayOffset() == 0 && buf.position() == 0 && buf.remaining() == buf.array().length)
+            return buf.array();
+        byte[] res = new byte[buf.remaining()];
+        buf.duplicate().get(res);
+        return res;
+    }
+
+    @Override
+    public CompletableFuture<Cid> put(byte[] block, Cid.Codec codec) {
+        return target.put(block, codec);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> rm(Cid c) {
+        return target.rm(c);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> bloomAdd(Cid cid) {
+        return target.bloomAdd(cid);
+    }
+
+    @Override
+    public CompletableFuture<List<Cid>> refs(boolean useBlockstore) {
+        return target.refs(useBlockstore);
+    }
+
+    @Override
+    public CompletableFuture<BlockMetadata> getBlockMetadata(Cid h) {
+        return target.getBlockMetadata(h);
+    }
+}
@@ -7,7 +7,10 @@ import org.peergos.blockstore.metadatadb.BlockMetadata;
 import org.peergos.util.*;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
@@ -70,25 +73,36 @@ public class FileBlockstore implements Blockstore {
 
     @Override
     public CompletableFuture<Optional<byte[]>> get(Cid cid) {
-        try {
-            Path path = getFilePath(cid);
-            File file = blocksRoot.resolve(path).toFile();
-            if (!file.exists()) {
-                return CompletableFuture.completedFuture(Optional.empty());
-            }
-            TraceLogger.getInstance().HandleFileReadStart(cid);
-            try (DataInputStream din = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
-                byte[] buffer = new byte[1024];
-                ByteArrayOutputStream bout = new ByteArrayOutputStream();
-                for (int len; (len = din.read(buffer)) != -1;) {
-                    bout.write(buffer, 0, len);
-                }
-                return CompletableFuture.completedFuture(Optional.of(bout.toByteArray()));
-            } finally {
-                TraceLogger.getInstance().HandleFileReadEnd(cid);
+        // the buffer is exactly the size of the file, so its array is the block
+        return getBuffer(cid).thenApply(b -> b.map(ByteBuffer::array));
+    }
+
+    /**
+     * Reads the file straight into a buffer of exactly its size, so the block is
+     * copied once from the OS and can be wrapped into messages without copying.
+     */
+    @Override
+    public CompletableFuture<Optional<ByteBuffer>> getBuffer(Cid cid) {
+        Path path = getFilePath(cid);
+        Path file = blocksRoot.resolve(path);
+        TraceLogger.getInstance().HandleFileReadStart(cid);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+                throw new IllegalStateException("Block too large: " + cid);
+            ByteBuffer block = ByteBuffer.allocate((int) size);
+            while (block.hasRemaining()) {
+                if (channel.read(block) < 0)
+                    throw new EOFException("Block file truncated: " + file);
             }
+            block.flip();
+            return CompletableFuture.completedFuture(Optional.of(block));
+        } catch (NoSuchFileException e) {
+            return CompletableFuture.completedFuture(Optional.empty());
         } catch (IOException e) {
             throw new RuntimeException(e.getMessage(), e);
+        } finally {
+            TraceLogger.getInstance().HandleFileReadEnd(cid);
         }
     }
 
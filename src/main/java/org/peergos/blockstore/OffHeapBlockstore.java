@@ -0,0 +1,504 @@
+package org.peergos.blockstore;
+
+import io.ipfs.cid.*;
+import io.ipfs.multihash.*;
+import org.peergos.*;
+import org.peergos.blockstore.metadatadb.BlockMetadata;
+import org.peergos.cbor.*;
+import org.peergos.util.*;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+import java.util.stream.*;
+
+/**
+ * A bounded in-memory blockstore that keeps block data in direct memory rather
+ * than on the Java heap, so a large store doesn't lengthen GC pauses.
+ *
+ * Memory is allocated in pages, each of which is cut into equal slots of one
+ * size class, as in a slab allocator. Each size class is a power of two plus
+ * room for the slot header, the cid and a little framing, so a power of two
+ * sized chunk, raw or wrapped in dag-pb, doesn't need a slot twice its size. A
+ * slot holds the cid and the data of one block. Blocks are found by their
+ * multihash, through an open addressing table from a 64 bit hash of it to a
+ * slot, with the multihash in the slot checked on every read. So a block is
+ * stored once whichever codec it is put or read under, and hasAny is a single
+ * lookup. Once the byte budget is used, a put replaces the least recently used
+ * block of its size class, as approximated by the CLOCK algorithm; a size class
+ * with no pages yet takes a page from the class with the most.
+ *
+ * Blocks can be evicted at any time, so this is suited to being a cache, or a
+ * store for data that can be fetched again.
+ */
+public class OffHeapBlockstore implements Blockstore {
+
+    private static final int PAGE_SIZE = 4 * 1024 * 1024;
+    private static final int MIN_SLOT_SIZE = 64;
+    // PAGE_SIZE / MIN_SLOT_SIZE, the most slots a page can have
+    private static final int SLOT_BITS = 16;
+    // cid length (short), offset of the multihash in the cid (short) and data length (int)
+    private static final int SLOT_HEADER = 8;
+    // added to each power of two slot size, for the header, a cid and dag-pb framing
+    private static final int SLOT_SLACK = 128;
+    // the slot size of each size class, ascending
+    private static final int[] SLOT_SIZES = slotSizes();
+    private static final int EMPTY = 0;
+
+    private static final class Page {
+        final ByteBuffer memory;
+        SizeClass sizeClass;
+        // index key of the block in each slot, or EMPTY
+        long[] keys;
+        // CLOCK reference bits, set on every read
+        byte[] referenced;
+
+        Page(ByteBuffer memory) {
+            this.memory = memory;
+        }
+
+        int slots() {
+            return keys.length;
+        }
+    }
+
+    private static final class SizeClass {
+        final int slotSize;
+        final List<Integer> pages = new ArrayList<>();
+        int[] free = new int[16];
+        int freeCount = 0;
+        // CLOCK hand, as an index into this class's pages and a slot within it
+        int handPage = 0, handSlot = 0;
+
+        SizeClass(int slotSize) {
+            this.slotSize = slotSize;
+        }
+
+        void pushFree(int slot) {
+            if (freeCount == free.length)
+                free = Arrays.copyOf(free, free.length * 2);
+            free[freeCount++] = slot;
+        }
+    }
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final int maxPages;
+    // guarded by lock
+    private final List<Page> pages = new ArrayList<>();
+    private final SizeClass[] classes;
+    private final LongIntMap index = new LongIntMap();
+
+    /**
+     * @param capacityBytes The most direct memory to use for blocks, rounded down
+     *                      to a whole number of pages (at least one).
+     */
+    public OffHeapBlockstore(long capacityBytes) {
+        this.maxPages = (int) Math.max(1, Math.min(Integer.MAX_VALUE >> SLOT_BITS, capacityBytes / PAGE_SIZE));
+        classes = new SizeClass[SLOT_SIZES.length];
+        for (int i = 0; i < classes.length; i++)
+            classes[i] = new SizeClass(SLOT_SIZES[i]);
+    }
+
+    private static int[] slotSizes() {
+        List<Integer> sizes = new ArrayList<>();
+        for (int size = MIN_SLOT_SIZE; size < PAGE_SIZE; size *= 2)
+            sizes.add(size + SLOT_SLACK);
+        sizes.add(PAGE_SIZE);
+        return sizes.stream().mapToInt(i -> i).toArray();
+    }
+
+    private static int slotId(int page, int slot) {
+        return (page << SLOT_BITS) | slot;
+    }
+
+    private static int pageOf(int slotId) {
+        return slotId >>> SLOT_BITS;
+    }
+
+    private static int slotOf(int slotId) {
+        return slotId & ((1 << SLOT_BITS) - 1);
+    }
+
+    // FNV-1a of the multihash, with 0 reserved for empty slots
+    private static long key(byte[] multihash) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : multihash) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        return h == EMPTY ? 1 : h;
+    }
+
+    @Override
+    public CompletableFuture<Boolean> has(Cid c) {
+        return hasAny(c.bareMultihash());
+    }
+
+    @Override
+    public CompletableFuture<Boolean> hasAny(Multihash h) {
+        byte[] multihash = h.toBytes();
+        lock.readLock().lock();
+        try {
+            return Futures.of(find(multihash) >= 0);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public CompletableFuture<Optional<byte[]>> get(Cid c) {
+        byte[] multihash = c.bareMultihash().toBytes();
+        lock.readLock().lock();
+        try {
+            int slotId = find(multihash);
+            if (slotId < 0)
+                return Futures.of(Optional.empty());
+            Page page = pages.get(pageOf(slotId));
+            int slot = slotOf(slotId);
+            page.referenced[slot] = 1;
+            ByteBuffer view = slotView(page, slot);
+            int cidLength = view.getShort();
+            view.getShort();
+            byte[] block = new byte[view.getInt()];
+            view.position(view.position() + cidLength);
+            view.get(block);
+            return Futures.of(Optional.of(block));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public CompletableFuture<Optional<ByteBuffer>> getBuffer(Cid c) {
+        // the slot may be reused as soon as we release the lock, so this is a copy either way
+        return get(c).thenApply(b -> b.map(ByteBuffer::wrap));
+    }
+
+    @Override
+    public CompletableFuture<Cid> put(byte[] block, Cid.Codec codec) {
+        return put(new Cid(1, codec, Multihash.Type.sha2_256, Hash.sha256(block)), block);
+    }
+
+    /**
+     * Stores a block under a cid the caller has already checked matches it, e.g.
+     * when caching a block read from another store.
+     */
+    public CompletableFuture<Cid> put(Cid c, byte[] block) {
+        byte[] cid = c.toBytes();
+        byte[] multihash = c.bareMultihash().toBytes();
+        int size = SLOT_HEADER + cid.length + block.length;
+        if (size > PAGE_SIZE)
+            throw new IllegalStateException("Block too large for off heap blockstore: " + block.length);
+        lock.writeLock().lock();
+        try {
+            long key = key(multihash);
+            int existing = index.get(key);
+            if (existing >= 0) {
+                if (multihashMatches(existing, multihash))
+                    return Futures.of(c);
+                // a hash collision, the newer block wins
+                release(existing);
+            }
+            SizeClass sizeClass = classes[sizeClass(size)];
+            int slotId = allocate(sizeClass);
+            Page page = pages.get(pageOf(slotId));
+            int slot = slotOf(slotId);
+            ByteBuffer view = slotView(page, slot);
+            view.putShort((short) cid.length);
+            // the multihash is the end of the cid
+            view.putShort((short) (cid.length - multihash.length));
+            view.putInt(block.length);
+            view.put(cid);
+            view.put(block);
+            page.keys[slot] = key;
+            page.referenced[slot] = 0;
+            index.put(key, slotId);
+            return Futures.of(c);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes the block with the multihash of the cid, whichever codec it was put under.
+     */
+    @Override
+    public CompletableFuture<Boolean> rm(Cid c) {
+        byte[] multihash = c.bareMultihash().toBytes();
+        lock.writeLock().lock();
+        try {
+            int slotId = find(multihash);
+            if (slotId < 0)
+                return Futures.of(false);
+            release(slotId);
+            return Futures.of(true);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public CompletableFuture<Boolean> bloomAdd(Cid cid) {
+        //not implemented
+        return Futures.of(false);
+    }
+
+    @Override
+    public CompletableFuture<List<Cid>> refs(boolean useBlockstore) {
+        List<Cid> res = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            for (Page page : pages) {
+                for (int slot = 0; slot < page.slots(); slot++) {
+                    if (page.keys[slot] == EMPTY)
+                        continue;
+                    ByteBuffer view = slotView(page, slot);
+                    byte[] cid = new byte[view.getShort()];
+                    view.getShort();
+                    view.getInt();
+                    view.get(cid);
+                    res.add(Cid.cast(cid));
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return Futures.of(res);
+    }
+
+    @Override
+    public CompletableFuture<BlockMetadata> getBlockMetadata(Cid h) {
+        byte[] block = get(h).join().get();
+        return Futures.of(new BlockMetadata(block.length, CborObject.getLinks(h, block)));
+    }
+
+    /**
+     * @return The most direct memory this store will allocate.
+     */
+    public long capacityBytes() {
+        return (long) maxPages * PAGE_SIZE;
+    }
+
+    /**
+     * @return The number of bytes of direct memory allocated.
+     */
+    public long allocatedBytes() {
+        lock.readLock().lock();
+        try {
+            return (long) pages.size() * PAGE_SIZE;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return The smallest size class with slots of at least size bytes.
+     */
+    private static int sizeClass(int size) {
+        int i = Arrays.binarySearch(SLOT_SIZES, size);
+        return i >= 0 ? i : -i - 1;
+    }
+
+    private static int slotOffset(Page page, int slot) {
+        return slot * page.sizeClass.slotSize;
+    }
+
+    private static ByteBuffer slotView(Page page, int slot) {
+        ByteBuffer view = page.memory.duplicate();
+        int offset = slotOffset(page, slot);
+        view.limit(offset + page.sizeClass.slotSize);
+        view.position(offset);
+        return view;
+    }
+
+    // Must hold a lock
+    private int find(byte[] multihash) {
+        int slotId = index.get(key(multihash));
+        return slotId >= 0 && multihashMatches(slotId, multihash) ? slotId : -1;
+    }
+
+    // Must hold a lock
+    private boolean multihashMatches(int slotId, byte[] multihash) {
+        Page page = pages.get(pageOf(slotId));
+        ByteBuffer view = slotView(page, slotOf(slotId));
+        int cidLength = view.getShort();
+        int hashOffset = view.getShort();
+        if (cidLength - hashOffset != multihash.length)
+            return false;
+        view.getInt();
+        view.position(view.position() + hashOffset);
+        for (byte b : multihash)
+            if (view.get() != b)
+                return false;
+        return true;
+    }
+
+    // Must hold the write lock
+    private void release(int slotId) {
+        Page page = pages.get(pageOf(slotId));
+        int slot = slotOf(slotId);
+        index.remove(page.keys[slot]);
+        page.keys[slot] = EMPTY;
+        page.sizeClass.pushFree(slotId);
+    }
+
+    /**
+     * Finds a slot for a new block: a free one, else one in a newly allocated
+     * page, else the slot of an evicted block. Must hold the write lock.
+     */
+    private int allocate(SizeClass sizeClass) {
+        if (sizeClass.freeCount == 0) {
+            if (pages.size() < maxPages) {
+                Page page = new Page(ByteBuffer.allocateDirect(PAGE_SIZE));
+                pages.add(page);
+                assign(page, pages.size() - 1, sizeClass);
+            } else if (!sizeClass.pages.isEmpty()) {
+                return evict(sizeClass);
+            } else {
+                steal(sizeClass);
+            }
+        }
+        return sizeClass.free[--sizeClass.freeCount];
+    }
+
+    // Must hold the write lock
+    private void assign(Page page, int pageIndex, SizeClass sizeClass) {
+        int slots = PAGE_SIZE / sizeClass.slotSize;
+        page.sizeClass = sizeClass;
+        page.keys = new long[slots];
+        page.referenced = new byte[slots];
+        sizeClass.pages.add(pageIndex);
+        // push in reverse so slots are used in address order
+        for (int slot = slots - 1; slot >= 0; slot--)
+            sizeClass.pushFree(slotId(pageIndex, slot));
+    }
+
+    /**
+     * Evicts the block in the first slot the CLOCK hand finds unreferenced since
+     * its last pass, and returns the slot. Must hold the write lock.
+     */
+    private int evict(SizeClass sizeClass) {
+        while (true) {
+            if (sizeClass.handPage >= sizeClass.pages.size())
+                sizeClass.handPage = 0;
+            int pageIndex = sizeClass.pages.get(sizeClass.handPage);
+            Page page = pages.get(pageIndex);
+            int slot = sizeClass.handSlot;
+            if (++sizeClass.handSlot >= page.slots()) {
+                sizeClass.handSlot = 0;
+                sizeClass.handPage++;
+            }
+            if (page.keys[slot] == EMPTY)
+                continue;
+            if (page.referenced[slot] != 0) {
+                page.referenced[slot] = 0;
+                continue;
+            }
+            index.remove(page.keys[slot]);
+            page.keys[slot] = EMPTY;
+            return slotId(pageIndex, slot);
+        }
+    }
+
+    /**
+     * Moves a page, and the blocks in it, from the size class with the most pages
+     * to one that has none. Must hold the write lock.
+     */
+    private void steal(SizeClass to) {
+        SizeClass from = Arrays.stream(classes)
+                .max(Comparator.comparingInt(s -> s.pages.size()))
+                .get();
+        int pageIndex = from.pages.remove(from.pages.size() - 1);
+        Page page = pages.get(pageIndex);
+        for (int slot = 0; slot < page.slots(); slot++) {
+            if (page.keys[slot] != EMPTY)
+                index.remove(page.keys[slot]);
+        }
+        int kept = 0;
+        for (int i = 0; i < from.freeCount; i++) {
+            if (pageOf(from.free[i]) != pageIndex)
+                from.free[kept++] = from.free[i];
+        }
+        from.freeCount = kept;
+        if (from.handPage >= from.pages.size()) {
+            from.handPage = 0;
+            from.handSlot = 0;
+        }
+        assign(page, pageIndex, to);
+    }
+
+    /**
+     * An open addressing hash table from long keys to non-negative ints, with
+     * linear probing, that doesn't box either.
+     */
+    private static final class LongIntMap {
+        private long[] keys = new long[1024];
+        private int[] values = new int[1024];
+        private int size = 0;
+
+        private static int hash(long key, int mask) {
+            key ^= key >>> 33;
+            key *= 0xff51afd7ed558ccdL;
+            key ^= key >>> 33;
+            return (int) key & mask;
+        }
+
+        int get(long key) {
+            int mask = keys.length - 1;
+            for (int i = hash(key, mask); keys[i] != EMPTY; i = (i + 1) & mask) {
+                if (keys[i] == key)
+                    return values[i];
+            }
+            return -1;
+        }
+
+        void put(long key, int value) {
+            if (2 * (size + 1) > keys.length)
+                resize(keys.length * 2);
+            int mask = keys.length - 1;
+            int i = hash(key, mask);
+            while (keys[i] != EMPTY && keys[i] != key)
+                i = (i + 1) & mask;
+            if (keys[i] == EMPTY)
+                size++;
+            keys[i] = key;
+            values[i] = value;
+        }
+
+        void remove(long key) {
+            int mask = keys.length - 1;
+            int i = hash(key, mask);
+            while (keys[i] != key) {
+                if (keys[i] == EMPTY)
+                    return;
+                i = (i + 1) & mask;
+            }
+            size--;
+            // shift back later entries of the probe run so lookups still find them
+            int gap = i;
+            for (int j = (gap + 1) & mask; keys[j] != EMPTY; j = (j + 1) & mask) {
+                int home = hash(keys[j], mask);
+                boolean movable = gap <= j ? (home <= gap || home > j) : (home <= gap && home > j);
+                if (movable) {
+                    keys[gap] = keys[j];
+                    values[gap] = values[j];
+                    gap = j;
+                }
+            }
+            keys[gap] = EMPTY;
+        }
+
+        private void resize(int capacity) {
+            long[] oldKeys = keys;
+            int[] oldValues = values;
+            keys = new long[capacity];
+            values = new int[capacity];
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != EMPTY)
+                    put(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+}
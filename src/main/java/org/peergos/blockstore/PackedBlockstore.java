@@ -0,0 +1,519 @@
+package org.peergos.blockstore;
+
+import io.ipfs.cid.Cid;
+import io.ipfs.multihash.Multihash;
+import org.peergos.Hash;
+import org.peergos.blockstore.metadatadb.BlockMetadata;
+import org.peergos.cbor.CborObject;
+import org.peergos.util.*;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.*;
+import java.util.zip.CRC32;
+
+/**
+ * Stores blocks by appending them to large segment files, rather than one file
+ * per block, with an in-memory index from cid to location that is rebuilt by
+ * scanning the segments on startup.
+ *
+ * Each record is: cid length (int), data length (int, -1 for a removal), cid,
+ * data, and a CRC32 of the cid and data. A torn write at the end of the newest
+ * segment is truncated away on startup.
+ *
+ * Puts are made durable in batches: every put waiting for an fsync is completed
+ * by the same force of the segment. Removals only append a tombstone; segments
+ * that end up mostly dead are compacted in the background by copying their live
+ * blocks to the newest segment and deleting them.
+ */
+public class PackedBlockstore implements Blockstore {
+
+    private static final Logger LOG = Logging.LOG();
+
+    public static final long DEFAULT_SEGMENT_SIZE = 256 * 1024 * 1024;
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final int HEADER_SIZE = 8;
+    private static final int TRAILER_SIZE = 4;
+    private static final int TOMBSTONE = -1;
+    private static final int MAX_CID_SIZE = 256;
+    private static final int MAX_BLOCK_SIZE = 64 * 1024 * 1024;
+    // Sealed segments with less than this fraction of live bytes are compacted.
+    private static final double COMPACTION_THRESHOLD = 0.5;
+    private static final long COMPACTION_INTERVAL_MILLIS = 60_000;
+    // How often unsynced writes are forced when puts don't wait for the fsync.
+    private static final long SYNC_INTERVAL_MILLIS = 1_000;
+    private static final boolean WINDOWS = System.getProperty("os.name", "").startsWith("Windows");
+
+    private static final class Segment {
+        final long id;
+        final Path path;
+        private volatile FileChannel channel;
+        // set once the segment has been compacted away or the store closed
+        private volatile boolean retired = false;
+        // guarded by the write lock
+        long size;
+        long liveBytes;
+
+        Segment(long id, Path path, FileChannel channel, long size) {
+            this.id = id;
+            this.path = path;
+            this.channel = channel;
+            this.size = size;
+        }
+
+        /**
+         * An interrupted read or write closes the channel for every thread using it,
+         * so a closed channel of a live segment is reopened.
+         */
+        FileChannel channel() throws IOException {
+            FileChannel c = channel;
+            if (c.isOpen() || retired)
+                return c;
+            synchronized (this) {
+                if (!channel.isOpen() && !retired)
+                    channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                return channel;
+            }
+        }
+
+        synchronized void retire() throws IOException {
+            retired = true;
+            channel.close();
+        }
+    }
+
+    private static final class Location {
+        final Segment segment;
+        final long offset;
+        final int cidLength, dataLength;
+
+        Location(Segment segment, long offset, int cidLength, int dataLength) {
+            this.segment = segment;
+            this.offset = offset;
+            this.cidLength = cidLength;
+            this.dataLength = dataLength;
+        }
+
+        long dataOffset() {
+            return offset + HEADER_SIZE + cidLength;
+        }
+
+        int recordSize() {
+            return recordSize(cidLength, dataLength);
+        }
+
+        static int recordSize(int cidLength, int dataLength) {
+            return HEADER_SIZE + cidLength + Math.max(0, dataLength) + TRAILER_SIZE;
+        }
+    }
+
+    private interface RecordVisitor {
+        void visit(long offset, byte[] cid, int dataLength, byte[] data) throws IOException;
+    }
+
+    private final Path dir;
+    private final long segmentSize;
+    private final boolean sync;
+    private final Map<Cid, Location> index = new ConcurrentHashMap<>();
+    private final Object writeLock = new Object();
+    // guarded by writeLock
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private Segment active;
+    private boolean dirty = false;
+    // guarded by itself
+    private final List<CompletableFuture<Void>> awaitingSync = new ArrayList<>();
+    private volatile boolean closed = false;
+
+    /**
+     * @param segmentSize A new segment is started once the current one reaches this size.
+     * @param sync        Whether a put only completes once its block has been fsynced.
+     */
+    public PackedBlockstore(Path dir, long segmentSize, boolean sync) {
+        try {
+            Files.createDirectories(dir);
+            this.dir = dir;
+            this.segmentSize = segmentSize;
+            this.sync = sync;
+            load();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        Thread syncer = new Thread(this::syncLoop, "Packed blockstore sync");
+        syncer.setDaemon(true);
+        syncer.start();
+        Thread compactor = new Thread(this::compactLoop, "Packed blockstore compaction");
+        compactor.setDaemon(true);
+        compactor.start();
+        LOG.info("Using PackedBlockstore at location: " + dir + " with " + index.size() + " blocks");
+    }
+
+    public PackedBlockstore(Path dir) {
+        this(dir, DEFAULT_SEGMENT_SIZE, true);
+    }
+
+    private void load() throws IOException {
+        List<Path> files;
+        try (Stream<Path> list = Files.list(dir)) {
+            files = list.filter(p -> p.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+        for (int i = 0; i < files.size(); i++) {
+            Path file = files.get(i);
+            String name = file.getFileName().toString();
+            long id = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            Segment segment = new Segment(id, file, channel, 0);
+            long end = scan(segment, (offset, rawCid, dataLength, data) -> {
+                Cid cid = Cid.cast(rawCid);
+                if (dataLength == TOMBSTONE)
+                    unindex(cid);
+                else
+                    index(cid, new Location(segment, offset, rawCid.length, dataLength));
+            });
+            if (end < channel.size()) {
+                boolean newest = i == files.size() - 1;
+                LOG.warning("Corrupt record at " + end + " in " + file + (newest ? ", truncating" : ", ignoring the rest"));
+                if (newest)
+                    channel.truncate(end);
+            }
+            segment.size = end;
+            segments.put(id, segment);
+        }
+        if (segments.isEmpty())
+            active = newSegment(0);
+        else
+            active = segments.lastEntry().getValue();
+    }
+
+    /**
+     * Reads every valid record of a segment in order.
+     *
+     * @return The offset after the last valid record.
+     */
+    private static long scan(Segment segment, RecordVisitor visitor) throws IOException {
+        long offset = 0;
+        try (DataInputStream din = new DataInputStream(new BufferedInputStream(
+                Files.newInputStream(segment.path), 64 * 1024))) {
+            while (true) {
+                int cidLength, dataLength;
+                try {
+                    cidLength = din.readInt();
+                    dataLength = din.readInt();
+                } catch (EOFException e) {
+                    return offset;
+                }
+                if (cidLength <= 0 || cidLength > MAX_CID_SIZE || dataLength < TOMBSTONE || dataLength > MAX_BLOCK_SIZE)
+                    return offset;
+                byte[] cid = new byte[cidLength];
+                byte[] data = new byte[Math.max(0, dataLength)];
+                try {
+                    din.readFully(cid);
+                    din.readFully(data);
+                    int crc = din.readInt();
+                    if (crc != crc(cid, data))
+                        return offset;
+                } catch (EOFException e) {
+                    return offset;
+                }
+                visitor.visit(offset, cid, dataLength, data);
+                offset += Location.recordSize(cidLength, dataLength);
+            }
+        }
+    }
+
+    private static int crc(byte[] cid, byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(cid);
+        crc.update(data);
+        return (int) crc.getValue();
+    }
+
+    // Must hold the write lock, or be loading
+    private void index(Cid cid, Location loc) {
+        Location previous = index.put(cid, loc);
+        if (previous != null)
+            previous.segment.liveBytes -= previous.recordSize();
+        loc.segment.liveBytes += loc.recordSize();
+    }
+
+    // Must hold the write lock, or be loading
+    private boolean unindex(Cid cid) {
+        Location previous = index.remove(cid);
+        if (previous == null)
+            return false;
+        previous.segment.liveBytes -= previous.recordSize();
+        return true;
+    }
+
+    // Must hold the write lock, or be loading
+    private Segment newSegment(long id) throws IOException {
+        Path file = dir.resolve(String.format("%016d", id) + SEGMENT_SUFFIX);
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        Segment segment = new Segment(id, file, channel, 0);
+        segments.put(id, segment);
+        syncDir();
+        return segment;
+    }
+
+    /**
+     * Makes the creation or deletion of segment files durable.
+     */
+    private void syncDir() throws IOException {
+        // directories can't be opened, or need to be, on Windows
+        if (WINDOWS)
+            return;
+        try (FileChannel d = FileChannel.open(dir, StandardOpenOption.READ)) {
+            d.force(true);
+        }
+    }
+
+    /**
+     * Appends a record to the active segment. Must hold the write lock.
+     *
+     * @return The offset of the record.
+     */
+    private long append(byte[] cid, int dataLength, byte[] data) throws IOException {
+        int size = Location.recordSize(cid.length, dataLength);
+        if (active.size + size > segmentSize && active.size > 0) {
+            // everything written before the switch must be durable before we stop forcing this segment
+            active.channel().force(false);
+            active = newSegment(active.id + 1);
+        }
+        ByteBuffer record = ByteBuffer.allocate(size);
+        record.putInt(cid.length);
+        record.putInt(dataLength);
+        record.put(cid);
+        record.put(data, 0, Math.max(0, dataLength));
+        record.putInt(crc(cid, dataLength == TOMBSTONE ? new byte[0] : data));
+        record.flip();
+        long offset = active.size;
+        while (record.hasRemaining())
+            active.channel().write(record, offset + record.position());
+        active.size += size;
+        dirty = true;
+        return offset;
+    }
+
+    private CompletableFuture<Void> durable() {
+        if (!sync)
+            return Futures.of(null);
+        CompletableFuture<Void> res = new CompletableFuture<>();
+        synchronized (awaitingSync) {
+            awaitingSync.add(res);
+            awaitingSync.notify();
+        }
+        return res;
+    }
+
+    private void syncLoop() {
+        while (!closed) {
+            List<CompletableFuture<Void>> batch;
+            try {
+                synchronized (awaitingSync) {
+                    if (awaitingSync.isEmpty())
+                        awaitingSync.wait(SYNC_INTERVAL_MILLIS);
+                    batch = new ArrayList<>(awaitingSync);
+                    awaitingSync.clear();
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                synchronized (writeLock) {
+                    if (dirty && !closed) {
+                        active.channel().force(false);
+                        dirty = false;
+                    }
+                }
+                batch.forEach(f -> f.complete(null));
+            } catch (Throwable t) {
+                LOG.log(Level.WARNING, "Error syncing blocks", t);
+                batch.forEach(f -> f.completeExceptionally(t));
+            }
+        }
+    }
+
+    @Override
+    public CompletableFuture<Boolean> has(Cid c) {
+        return Futures.of(index.containsKey(c));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> hasAny(Multihash h) {
+        return Futures.of(Stream.of(Cid.Codec.DagCbor, Cid.Codec.Raw, Cid.Codec.DagProtobuf)
+                .anyMatch(c -> index.containsKey(new Cid(1, c, h.getType(), h.getHash()))));
+    }
+
+    @Override
+    public CompletableFuture<Optional<byte[]>> get(Cid c) {
+        // the buffer is exactly the size of the block, so its array is the block
+        return getBuffer(c).thenApply(b -> b.map(ByteBuffer::array));
+    }
+
+    @Override
+    public CompletableFuture<Optional<ByteBuffer>> getBuffer(Cid c) {
+        // a read can race with compaction closing the segment, in which case the
+        // block will have been moved
+        for (int attempt = 0; ; attempt++) {
+            Location loc = index.get(c);
+            if (loc == null)
+                return Futures.of(Optional.empty());
+            try {
+                ByteBuffer block = ByteBuffer.allocate(loc.dataLength);
+                while (block.hasRemaining()) {
+                    if (loc.segment.channel().read(block, loc.dataOffset() + block.position()) < 0)
+                        throw new EOFException("Block truncated in " + loc.segment.path);
+                }
+                block.flip();
+                return Futures.of(Optional.of(block));
+            } catch (ClosedByInterruptException e) {
+                // this thread was interrupted, the next read will reopen the channel
+                throw new RuntimeException(e.getMessage(), e);
+            } catch (ClosedChannelException e) {
+                // closed by compaction, or by another thread being interrupted
+                if (attempt >= 2 || closed)
+                    throw new RuntimeException(e.getMessage(), e);
+            } catch (IOException e) {
+                throw new RuntimeException(e.getMessage(), e);
+            }
+        }
+    }
+
+    @Override
+    public CompletableFuture<Cid> put(byte[] block, Cid.Codec codec) {
+        Cid cid = new Cid(1, codec, Multihash.Type.sha2_256, Hash.sha256(block));
+        if (index.containsKey(cid))
+            return Futures.of(cid);
+        byte[] rawCid = cid.toBytes();
+        try {
+            synchronized (writeLock) {
+                if (!index.containsKey(cid)) {
+                    long offset = append(rawCid, block.length, block);
+                    index(cid, new Location(active, offset, rawCid.length, block.length));
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+        return durable().thenApply(x -> cid);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> rm(Cid c) {
+        try {
+            synchronized (writeLock) {
+                if (!index.containsKey(c))
+                    return Futures.of(false);
+                append(c.toBytes(), TOMBSTONE, new byte[0]);
+                unindex(c);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+        return durable().thenApply(x -> true);
+    }
+
+    @Override
+    public CompletableFuture<List<Cid>> refs(boolean useBlockstore) {
+        return Futures.of(new ArrayList<>(index.keySet()));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> bloomAdd(Cid cid) {
+        // not implemented
+        return Futures.of(false);
+    }
+
+    @Override
+    public CompletableFuture<BlockMetadata> getBlockMetadata(Cid h) {
+        Optional<byte[]> block = get(h).join();
+        if (block.isEmpty())
+            throw new IllegalStateException("Block not present locally: " + h);
+        return Futures.of(new BlockMetadata(block.get().length, CborObject.getLinks(h, block.get())));
+    }
+
+    private void compactLoop() {
+        while (!closed) {
+            try {
+                Thread.sleep(COMPACTION_INTERVAL_MILLIS);
+                compact();
+            } catch (InterruptedException e) {
+                return;
+            } catch (Throwable t) {
+                LOG.log(Level.WARNING, "Error compacting blocks", t);
+            }
+        }
+    }
+
+    /**
+     * Rewrites the live blocks of every sealed segment that is mostly dead into
+     * the active segment, and deletes the old segments.
+     */
+    public void compact() throws IOException {
+        List<Segment> candidates = new ArrayList<>();
+        synchronized (writeLock) {
+            for (Segment s : segments.values()) {
+                if (s != active && s.size > 0 && s.liveBytes < s.size * COMPACTION_THRESHOLD)
+                    candidates.add(s);
+            }
+        }
+        for (Segment s : candidates)
+            compact(s);
+    }
+
+    private void compact(Segment segment) throws IOException {
+        long moved = scan(segment, (offset, rawCid, dataLength, data) -> {
+            Cid cid = Cid.cast(rawCid);
+            synchronized (writeLock) {
+                Location current = index.get(cid);
+                if (dataLength == TOMBSTONE) {
+                    // A removal only needs to survive while an older segment may still hold the block,
+                    // and only while the block hasn't been put again since.
+                    if (current == null && segments.firstKey() < segment.id)
+                        append(rawCid, TOMBSTONE, data);
+                } else if (current != null && current.segment == segment && current.offset == offset) {
+                    long newOffset = append(rawCid, dataLength, data);
+                    index(cid, new Location(active, newOffset, rawCid.length, dataLength));
+                }
+            }
+        });
+        synchronized (writeLock) {
+            // the copies must be durable before the originals go
+            active.channel().force(false);
+            segments.remove(segment.id);
+            segment.retire();
+        }
+        Files.deleteIfExists(segment.path);
+        syncDir();
+        LOG.info("Compacted " + segment.path + ", " + moved + " bytes scanned");
+    }
+
+    /**
+     * Syncs outstanding writes and closes all segments.
+     */
+    public void close() throws IOException {
+        closed = true;
+        synchronized (writeLock) {
+            if (dirty) {
+                active.channel().force(false);
+                dirty = false;
+            }
+            for (Segment s : segments.values())
+                s.retire();
+        }
+        synchronized (awaitingSync) {
+            awaitingSync.forEach(f -> f.complete(null));
+            awaitingSync.clear();
+        }
+    }
+}
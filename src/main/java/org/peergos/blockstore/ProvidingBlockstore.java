@@ -4,6 +4,7 @@ import io.ipfs.cid.*;
 import io.ipfs.multihash.*;
 import org.peergos.blockstore.metadatadb.*;
 
+import java.nio.*;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.stream.*;
@@ -32,6 +33,11 @@ public class ProvidingBlockstore implements Blockstore {
         return target.get(c);
     }
 
+    @Override
+    public CompletableFuture<Optional<ByteBuffer>> getBuffer(Cid c) {
+        return target.getBuffer(c);
+    }
+
     @Override
     public CompletableFuture<Cid> put(byte[] block, Cid.Codec codec) {
         CompletableFuture<Cid> res = target.put(block, codec);
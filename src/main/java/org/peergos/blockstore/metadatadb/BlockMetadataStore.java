@@ -1,6 +1,7 @@
 package org.peergos.blockstore.metadatadb;
 
 import io.ipfs.cid.Cid;
+import org.peergos.ReprovideSchedule;
 import org.peergos.cbor.CborObject;
 
 import java.util.Collections;
@@ -9,7 +10,7 @@ import java.util.Optional;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
-public interface BlockMetadataStore {
+public interface BlockMetadataStore extends ReprovideSchedule {
 
     Optional<BlockMetadata> get(Cid block);
 
@@ -47,4 +48,15 @@ public interface BlockMetadataStore {
     }
 
     void compact();
+
+    /**
+     * Stores that don't record when blocks were provided treat every block as due.
+     */
+    @Override
+    default List<Cid> providedBefore(List<Cid> blocks, long timeMillis) {
+        return blocks;
+    }
+
+    @Override
+    default void setProvided(List<Cid> blocks, long timeMillis) {}
 }
@@ -6,6 +6,7 @@ import org.peergos.Hash;
 import org.peergos.blockstore.Blockstore;
 import org.peergos.util.Futures;
 
+import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
@@ -63,6 +64,22 @@ public class CachingBlockMetadataStore implements Blockstore {
         });
     }
 
+    @Override
+    public CompletableFuture<Optional<ByteBuffer>> getBuffer(Cid hash) {
+        return target.getBuffer(hash).thenApply(bopt -> {
+            bopt.ifPresent(b -> cacheBlockMetadata(bytes(b), hash.codec));
+            return bopt;
+        });
+    }
+
+    private static byte[] bytes(ByteBuffer buf) {
+        if (buf.hasArray() && buf.arrayOffset() == 0 && buf.position() == 0 && buf.remaining() == buf.array().length)
+            return buf.array();
+        byte[] res = new byte[buf.remaining()];
+        buf.duplicate().get(res);
+        return res;
+    }
+
     @Override
     public CompletableFuture<Boolean> has(Cid c) {
         Optional<BlockMetadata> meta = metadata.get(c);
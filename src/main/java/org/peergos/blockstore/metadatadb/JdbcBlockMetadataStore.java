@@ -5,14 +5,19 @@ import io.ipfs.cid.Cid;
 import org.peergos.blockstore.metadatadb.sql.BlockMetadataSqlSupplier;
 import org.peergos.cbor.CborObject;
 import org.peergos.util.Logging;
+import org.peergos.util.TraceLogger;
+import org.peergos.util.TraceType;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
 import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -26,6 +31,8 @@ public class JdbcBlockMetadataStore implements BlockMetadataStore {
     private static final String REMOVE = "DELETE FROM blockmetadata where cid = ?;";
     private static final String LIST = "SELECT cid FROM blockmetadata;";
     private static final String SIZE = "SELECT COUNT(*) FROM blockmetadata;";
+    private static final String REMOVE_PROVIDED = "DELETE FROM reprovided where cid = ?;";
+    private static final int MAX_PROVIDED_QUERY = 500;
     private Supplier<Connection> conn;
     private final BlockMetadataSqlSupplier commands;
 
@@ -55,6 +62,7 @@ public class JdbcBlockMetadataStore implements BlockMetadataStore {
     private synchronized void init(BlockMetadataSqlSupplier commands) {
         try (Connection conn = getConnection()) {
             commands.createTable(commands.createBlockMetadataStoreTableCommand(), conn);
+            commands.createTable(commands.createReprovidedTableCommand(), conn);
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
@@ -75,10 +83,13 @@ public class JdbcBlockMetadataStore implements BlockMetadataStore {
 
     public void remove(Cid block) {
         try (Connection conn = getConnection();
-             PreparedStatement remove = conn.prepareStatement(REMOVE)) {
+             PreparedStatement remove = conn.prepareStatement(REMOVE);
+             PreparedStatement removeProvided = conn.prepareStatement(REMOVE_PROVIDED)) {
 
             remove.setBytes(1, block.toBytes());
             remove.executeUpdate();
+            removeProvided.setBytes(1, block.toBytes());
+            removeProvided.executeUpdate();
         } catch (SQLException sqe) {
             LOG.log(Level.WARNING, sqe.getMessage(), sqe);
             throw new RuntimeException(sqe);
@@ -87,7 +98,8 @@ public class JdbcBlockMetadataStore implements BlockMetadataStore {
 
     @Override
     public Optional<BlockMetadata> get(Cid block) {
-        try (Connection conn = getConnection();
+        try (TraceLogger.Span span = TraceLogger.getInstance().startSpan(TraceType.H2_QUERY_START);
+             Connection conn = getConnection();
              PreparedStatement stmt = conn.prepareStatement(GET_INFO)) {
             stmt.setBytes(1, block.toBytes());
             ResultSet rs = stmt.executeQuery();
@@ -122,6 +134,48 @@ public class JdbcBlockMetadataStore implements BlockMetadataStore {
         }
     }
 
+    @Override
+    public List<Cid> providedBefore(List<Cid> blocks, long timeMillis) {
+        Set<Cid> recent = new HashSet<>();
+        try (Connection conn = getConnection()) {
+            for (int start = 0; start < blocks.size(); start += MAX_PROVIDED_QUERY) {
+                List<Cid> batch = blocks.subList(start, Math.min(blocks.size(), start + MAX_PROVIDED_QUERY));
+                String query = "SELECT cid FROM reprovided WHERE provided >= ? AND cid IN (" +
+                        String.join(", ", Collections.nCopies(batch.size(), "?")) + ");";
+                try (PreparedStatement stmt = conn.prepareStatement(query)) {
+                    stmt.setLong(1, timeMillis);
+                    for (int i = 0; i < batch.size(); i++)
+                        stmt.setBytes(i + 2, batch.get(i).toBytes());
+                    ResultSet rs = stmt.executeQuery();
+                    while (rs.next())
+                        recent.add(Cid.cast(rs.getBytes("cid")));
+                }
+            }
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new RuntimeException(sqe);
+        }
+        return blocks.stream()
+                .filter(c -> !recent.contains(c))
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public void setProvided(List<Cid> blocks, long timeMillis) {
+        try (Connection conn = getConnection();
+             PreparedStatement insert = conn.prepareStatement(commands.setProvidedCommand())) {
+            for (Cid block : blocks) {
+                insert.setBytes(1, block.toBytes());
+                insert.setLong(2, timeMillis);
+                insert.addBatch();
+            }
+            insert.executeBatch();
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new RuntimeException(sqe);
+        }
+    }
+
     @Override
     public long size() {
         try (Connection conn = getConnection();
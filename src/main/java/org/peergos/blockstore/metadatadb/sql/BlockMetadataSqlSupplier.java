@@ -15,12 +15,19 @@ public interface BlockMetadataSqlSupplier {
 
     String vacuumCommand();
 
+    String setProvidedCommand();
+
     default String createBlockMetadataStoreTableCommand() {
         return "CREATE TABLE IF NOT EXISTS blockmetadata (cid " + getByteArrayType() + " primary key not null, " +
                 "size " + sqlInteger() + " not null, " +
                 "links " + getByteArrayType() + " not null);";
     }
 
+    default String createReprovidedTableCommand() {
+        return "CREATE TABLE IF NOT EXISTS reprovided (cid " + getByteArrayType() + " primary key not null, " +
+                "provided " + sqlInteger() + " not null);";
+    }
+
     default void createTable(String sqlTableCreate, Connection conn) throws SQLException {
         Statement createStmt = conn.createStatement();
         createStmt.executeUpdate(sqlTableCreate);
@@ -12,6 +12,11 @@ public class H2BlockMetadataCommands implements BlockMetadataSqlSupplier {
         return "INSERT INTO blockmetadata (cid, size, links) VALUES(?, ?, ?) ON CONFLICT DO NOTHING;";
     }
 
+    @Override
+    public String setProvidedCommand() {
+        return "MERGE INTO reprovided (cid, provided) KEY (cid) VALUES(?, ?);";
+    }
+
     @Override
     public String getByteArrayType() {
         return "OBJECT";
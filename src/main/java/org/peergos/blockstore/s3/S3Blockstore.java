@@ -288,7 +288,7 @@ public class S3Blockstore implements Blockstore {
             return Futures.of(Optional.of(meta.get().size));
         if (cid.getType() == Multihash.Type.id) // Identity hashes are not actually stored explicitly
             return Futures.of(Optional.of(0));
-        try {
+        try (TraceLogger.Span span = TraceLogger.getInstance().startSpan(TraceType.S3_REQUEST_START)) {
             PresignedUrl headUrl = S3Request.preSignHead(folder + hashToKey(cid), Optional.of(60),
                     S3AdminRequests.asAwsDate(ZonedDateTime.now()), host, region, accessKeyId, secretKey, useHttps, hasher).join();
             Map<String, List<String>> headRes = HttpUtil.head(headUrl.base, headUrl.fields);
@@ -327,6 +327,7 @@ public class S3Blockstore implements Blockstore {
         PresignedUrl getUrl = S3Request.preSignGet(path, Optional.of(600), range,
                 S3AdminRequests.asAwsDate(ZonedDateTime.now()), host, region, accessKeyId, secretKey, useHttps, hasher).join();
         Histogram.Timer readTimer = readTimerLog.labels("read").startTimer();
+        TraceLogger.Span span = TraceLogger.getInstance().startSpan(TraceType.S3_REQUEST_START);
         try {
             byte[] block = HttpUtil.get(getUrl.base, getUrl.fields);
             blockGets.inc();
@@ -351,6 +352,7 @@ public class S3Blockstore implements Blockstore {
             failedBlockGets.inc();
             throw new RuntimeException(e.getMessage(), e);
         } finally {
+            span.close();
             readTimer.observeDuration();
         }
     }
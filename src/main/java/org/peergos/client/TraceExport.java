@@ -0,0 +1,171 @@
+package org.peergos.client;
+
+import org.peergos.Args;
+import org.peergos.Client;
+import org.peergos.util.TraceSegment;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Offline reader for binary trace segments. Merges the segments written by every
+ * node under a directory (e.g. ~/.ipfs with the local-setup nodes in 0..9), groups
+ * the records by trace id and prints a span tree per trace.
+ *
+ * Usage: TraceExport [-dir ~/.ipfs] [-trace <trace id>] [-json]
+ *
+ * All nodes must have run on the same machine, as spans from different nodes are
+ * compared by System.nanoTime.
+ */
+public class TraceExport {
+
+    public static class Span {
+        public final String name;
+        public final long id, parentId;
+        public final int nodeId, peerIndex;
+        public final long start;
+        public long end = -1; // -1 if the end was never recorded
+        public final List<Span> children = new ArrayList<>();
+
+        public Span(String name, long id, long parentId, int nodeId, int peerIndex, long start) {
+            this.name = name;
+            this.id = id;
+            this.parentId = parentId;
+            this.nodeId = nodeId;
+            this.peerIndex = peerIndex;
+            this.start = start;
+        }
+
+    }
+
+    public static List<TraceSegment> readSegments(Path dir) throws IOException {
+        List<Path> files;
+        try (Stream<Path> paths = Files.walk(dir, 2)) {
+            files = paths.filter(p -> p.getFileName().toString().endsWith(TraceSegment.FILE_SUFFIX))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+        List<TraceSegment> segments = new ArrayList<>();
+        for (Path file : files) {
+            try {
+                segments.add(TraceSegment.read(file));
+            } catch (IOException e) {
+                System.err.println("Skipping " + file + ": " + e.getMessage());
+            }
+        }
+        return segments;
+    }
+
+    /**
+     * Groups all traced records by trace id, ordered by time within each trace.
+     */
+    public static Map<String, List<TraceSegment.Record>> groupByTrace(List<TraceSegment> segments) {
+        Map<String, List<TraceSegment.Record>> traces = new TreeMap<>();
+        for (TraceSegment segment : segments) {
+            for (TraceSegment.Record r : segment.records) {
+                if (r.hasTrace())
+                    traces.computeIfAbsent(r.traceId(), k -> new ArrayList<>()).add(r);
+            }
+        }
+        traces.values().forEach(records -> records.sort(Comparator.comparingLong(r -> r.nanoTime)));
+        return traces;
+    }
+
+    /**
+     * Pairs start and end records into spans by span id and nests each span under
+     * its parent span, which may have been recorded by another node.
+     *
+     * @return The root spans, in start order.
+     */
+    public static List<Span> buildSpans(List<TraceSegment.Record> records) {
+        Map<Long, Span> byId = new HashMap<>();
+        List<Span> spans = new ArrayList<>();
+        for (TraceSegment.Record r : records) {
+            String name = r.type.name();
+            boolean isStart = name.endsWith("_START");
+            if (!isStart && !name.endsWith("_END"))
+                continue;
+            Span span = byId.get(r.spanId);
+            if (span == null) {
+                // an end without a recorded start, e.g. from an earlier segment that was deleted, is a zero length span
+                span = new Span(name.substring(0, name.lastIndexOf('_')), r.spanId, r.parentSpanId, r.nodeId,
+                        r.peerIndex, r.nanoTime);
+                byId.put(r.spanId, span);
+                spans.add(span);
+            }
+            if (!isStart && span.end < 0)
+                span.end = r.nanoTime;
+        }
+        spans.sort(Comparator.comparingLong(s -> s.start));
+
+        List<Span> roots = new ArrayList<>();
+        for (Span span : spans) {
+            Span parent = byId.get(span.parentId);
+            if (parent == null || parent == span)
+                roots.add(span);
+            else
+                parent.children.add(span);
+        }
+        return roots;
+    }
+
+    private static void printTree(PrintStream out, Span span, long origin, String indent) {
+        out.printf("%s%s node=%d peer=%d +%.3fms %s%n", indent, span.name, span.nodeId, span.peerIndex,
+                (span.start - origin) / 1_000_000.0,
+                span.end < 0 ? "(no end)" : String.format("%.3fms", (span.end - span.start) / 1_000_000.0));
+        for (Span child : span.children)
+            printTree(out, child, origin, indent + "  ");
+    }
+
+    private static void printJson(PrintStream out, Span span, long origin) {
+        out.printf("{\"name\":\"%s\",\"node\":%d,\"peer\":%d,\"startNanos\":%d,\"durationNanos\":%d,\"children\":[",
+                span.name, span.nodeId, span.peerIndex, span.start - origin, span.end < 0 ? -1 : span.end - span.start);
+        for (int i = 0; i < span.children.size(); i++) {
+            if (i > 0)
+                out.print(",");
+            printJson(out, span.children.get(i), origin);
+        }
+        out.print("]}");
+    }
+
+    public static void main(String[] a) throws IOException {
+        Args args = Args.parse(a, true);
+        Path dir = args.hasArg("dir") ? Paths.get(args.getArg("dir")) : Client.DEFAULT_IPFS_DIR_PATH;
+        boolean json = args.getBoolean("json", false);
+        Optional<String> onlyTrace = args.hasArg("trace") ? Optional.of(args.getArg("trace")) : Optional.empty();
+
+        Map<String, List<TraceSegment.Record>> traces = groupByTrace(readSegments(dir));
+        PrintStream out = System.out;
+        if (json)
+            out.print("[");
+        boolean first = true;
+        for (Map.Entry<String, List<TraceSegment.Record>> e : traces.entrySet()) {
+            if (onlyTrace.isPresent() && !onlyTrace.get().equals(e.getKey()))
+                continue;
+            long origin = e.getValue().get(0).nanoTime;
+            List<Span> roots = buildSpans(e.getValue());
+            if (json) {
+                out.print((first ? "" : ",") + "{\"traceId\":\"" + e.getKey() + "\",\"spans\":[");
+                for (int i = 0; i < roots.size(); i++) {
+                    if (i > 0)
+                        out.print(",");
+                    printJson(out, roots.get(i), origin);
+                }
+                out.print("]}");
+            } else {
+                out.println("Trace " + e.getKey());
+                for (Span root : roots)
+                    printTree(out, root, origin, "  ");
+            }
+            first = false;
+        }
+        if (json)
+            out.println("]");
+    }
+}
@@ -0,0 +1,31 @@
+package org.peergos.config;
+
+import org.peergos.util.JsonHelper;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class BlockCache implements Jsonable {
+    public final long maxBytes;
+
+    public BlockCache(long maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalStateException("Invalid BlockCache maxBytes: " + maxBytes);
+        }
+        this.maxBytes = maxBytes;
+    }
+    public static BlockCache none() {
+        return new BlockCache(0);
+    }
+    public boolean isEnabled() {
+        return maxBytes > 0;
+    }
+    public Map<String, Object> toJson() {
+        Map<String, Object> configMap = new LinkedHashMap<>();
+        configMap.put("maxBytes", Long.toString(maxBytes));
+        return configMap;
+    }
+    public static BlockCache fromJson(Map<String, Object> json) {
+        return new BlockCache(Long.parseLong(JsonHelper.getStringProperty(json, "maxBytes")));
+    }
+}
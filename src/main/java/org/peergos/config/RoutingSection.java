@@ -0,0 +1,46 @@
+package org.peergos.config;
+
+import org.peergos.PeriodicBlockProvider;
+import org.peergos.util.JsonHelper;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+
+public class RoutingSection implements Jsonable {
+    public final int lookupPaths;
+    public final int reprovideKeysPerSecond;
+
+    public RoutingSection(int lookupPaths, int reprovideKeysPerSecond) {
+        if (lookupPaths < 1) {
+            throw new IllegalStateException("Invalid Routing LookupPaths: " + lookupPaths);
+        }
+        if (reprovideKeysPerSecond < 1) {
+            throw new IllegalStateException("Invalid Routing ReprovideKeysPerSecond: " + reprovideKeysPerSecond);
+        }
+        this.lookupPaths = lookupPaths;
+        this.reprovideKeysPerSecond = reprovideKeysPerSecond;
+    }
+
+    public static RoutingSection defaultConfig() {
+        return new RoutingSection(1, PeriodicBlockProvider.DEFAULT_MAX_KEYS_PER_SECOND);
+    }
+
+    public Map<String, Object> toJson() {
+        Map<String, Object> routingMap = new LinkedHashMap<>();
+        routingMap.put("LookupPaths", lookupPaths);
+        routingMap.put("ReprovideKeysPerSecond", reprovideKeysPerSecond);
+        Map<String, Object> configMap = new LinkedHashMap<>();
+        configMap.put("Routing", routingMap);
+        return configMap;
+    }
+    public static RoutingSection fromJson(Map<String, Object> json) {
+        Optional<Map<String, Object>> routingOpt =  JsonHelper.getOptionalPropertyMap(json, "Routing");
+        return routingOpt.map(r -> new RoutingSection(JsonHelper.getIntProperty(r, "LookupPaths"),
+                        // configs written before this setting existed don't have it
+                        JsonHelper.getOptionalProperty(r, "ReprovideKeysPerSecond").isPresent() ?
+                                JsonHelper.getIntProperty(r, "ReprovideKeysPerSecond") :
+                                PeriodicBlockProvider.DEFAULT_MAX_KEYS_PER_SECOND))
+                .orElse(RoutingSection.defaultConfig());
+    }
+}
@@ -1,15 +1,19 @@
 package org.peergos.net;
 
 import io.ipfs.cid.Cid;
+import io.ipfs.multihash.Multihash;
 
 import org.apache.commons.io.IOUtils;
 import org.peergos.*;
+import org.peergos.cbor.*;
 import org.peergos.util.*;
 import com.sun.net.httpserver.HttpExchange;
+import io.prometheus.client.Gauge;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.*;
 
 public class APIHandler extends Handler {
     public static final String API_URL = "/api/v0/";
@@ -17,6 +21,11 @@ public class APIHandler extends Handler {
     public static final String GET = "block/get";
     public static final String PUT = "block/put";
     public static final String HEALTHZ = "healthz";
+    public static final String DAG_EXPORT = "dag/export";
+    private static final Set<String> ENDPOINTS = Set.of(GET, PUT, HEALTHZ, DAG_EXPORT);
+    private static final int MAX_DAG_CONCURRENCY = 256;
+    // bitswap wants are retried until answered, so a missing block would otherwise hold the handler forever
+    private static final int DEFAULT_DAG_TIMEOUT_SECONDS = 300;
 
     private final EmbeddedIpfs ipfs;
     private final int maxBlockSize;
@@ -30,42 +39,97 @@ public class APIHandler extends Handler {
 
     public void handleCallToAPI(HttpExchange httpExchange) {
         String path = httpExchange.getRequestURI().getPath();
+        // keep label cardinality bounded
+        String endpoint = "other";
+        String outcome = "error";
+        long startNanos = System.nanoTime();
+        Gauge.Child inFlight = null;
         try {
             if (!path.startsWith(API_URL))
                 throw new IllegalStateException("Unsupported api version, required: " + API_URL);
             path = path.substring(API_URL.length());
+            if (ENDPOINTS.contains(path))
+                endpoint = path;
+            inFlight = AggregatedMetrics.API_IN_FLIGHT.labels(endpoint);
+            inFlight.inc();
             Map<String, List<String>> params = HttpUtil.parseQuery(httpExchange.getRequestURI().getQuery());
 
             switch (path) {
                 case GET: {
+                    AggregatedMetrics.API_BLOCK_GET.inc();
                     List<String> cid = params.get("cid");
                     if (cid == null || cid.size() != 1) {
                         throw new APIException("argument \"cid\" is required");
                     }
                     List<String> trace = params.get("trace");
-                    boolean shouldTrace = trace != null && !trace.isEmpty();
-                    if (shouldTrace)
-                        traceLogger.startTrace();
-                    List<HashedBlock> block = ipfs.getBlocks(List.of(new Want(Cid.decode(cid.get(0)))),
-                            new HashSet<>(),
-                            /* addToLocal= */ false);
-                    if (!block.isEmpty()) {
-                        if (shouldTrace) {
-                            httpExchange.getResponseHeaders().add("Trace-Id", traceLogger.getTraceId());
+                    boolean traced = traceLogger.startTrace(trace != null && !trace.isEmpty());
+                    try {
+                        List<HashedBlock> fetched = ipfs.getBlocks(List.of(new Want(Cid.decode(cid.get(0)))),
+                                new HashSet<>(),
+                                /* addToLocal= */ false);
+                        Optional<HashedBlock> block = fetched.stream().findFirst();
+                        outcome = block.map(b -> b.local ? "local" : "network").orElse("missing");
+                        if (block.isPresent()) {
+                            if (traced) {
+                                httpExchange.getResponseHeaders().add("Trace-Id", traceLogger.getTraceId());
+                            }
+                            AggregatedMetrics.API_RESPONSE_BYTES.labels(endpoint).observe(block.get().block.length);
+                            replyBytes(httpExchange, block.get().block);
+                        } else {
+                            try {
+                                httpExchange.sendResponseHeaders(400, 0);
+                            } catch (IOException ioe) {
+                                HttpUtil.replyError(httpExchange, ioe);
+                            }
                         }
-                        replyBytes(httpExchange, block.get(0).block);
-                    } else {
-                        try {
-                            httpExchange.sendResponseHeaders(400, 0);
-                        } catch (IOException ioe) {
-                            HttpUtil.replyError(httpExchange, ioe);
+                    } finally {
+                        // handler threads are pooled, so never leave a trace context behind
+                        if (traced)
+                            traceLogger.endTrace();
+                    }
+                    break;
+                }
+                case DAG_EXPORT: {
+                    List<String> cid = params.get("cid");
+                    if (cid == null || cid.size() != 1) {
+                        throw new APIException("argument \"cid\" is required");
+                    }
+                    Want root = new Want(Cid.decode(cid.get(0)));
+                    int maxDepth = intParam(params, "depth", DagFetch.DEFAULT_MAX_DEPTH);
+                    int maxBlocks = intParam(params, "max-blocks", DagFetch.DEFAULT_MAX_BLOCKS);
+                    int concurrency = Math.min(MAX_DAG_CONCURRENCY,
+                            intParam(params, "concurrency", DagFetch.DEFAULT_CONCURRENCY));
+                    int timeoutSeconds = intParam(params, "timeout", DEFAULT_DAG_TIMEOUT_SECONDS);
+                    if (timeoutSeconds < 1)
+                        throw new APIException("argument \"timeout\" must be positive");
+                    List<String> trace = params.get("trace");
+                    boolean traced = traceLogger.startTrace(trace != null && !trace.isEmpty());
+                    try {
+                        if (traced) {
+                            httpExchange.getResponseHeaders().add("Trace-Id", traceLogger.getTraceId());
                         }
+                        // Blocks are streamed as a CAR file as they arrive, so an error part way
+                        // through can only be signalled by ending the response early.
+                        httpExchange.getResponseHeaders().add("Content-Type", "application/vnd.ipld.car");
+                        httpExchange.sendResponseHeaders(200, 0);
+                        OutputStream out = new BufferedOutputStream(httpExchange.getResponseBody());
+                        long[] written = {writeCarHeader(out, root.cid)};
+                        // timing out fails the fetch itself, so no more blocks reach the sink
+                        ipfs.getDag(root, new HashSet<>(), /* addToLocal= */ false, maxDepth, maxBlocks, concurrency,
+                                b -> written[0] += writeCarBlock(out, b))
+                                .orTimeout(timeoutSeconds, TimeUnit.SECONDS)
+                                .join();
+                        out.close();
+                        AggregatedMetrics.API_RESPONSE_BYTES.labels(endpoint).observe(written[0]);
+                        outcome = "ok";
+                    } finally {
+                        if (traced)
+                            traceLogger.endTrace();
                     }
-                    if (shouldTrace)
-                        traceLogger.endTrace();
                     break;
                 }
                 case PUT: {
+                    AggregatedMetrics.API_BLOCK_PUT.inc();
                     String result = IOUtils.toString(httpExchange.getRequestBody(), StandardCharsets.UTF_8);
                     byte[] block = result.getBytes();
                     if (block.length == 0 || block.length > maxBlockSize) {
@@ -74,7 +138,10 @@ public class APIHandler extends Handler {
                     Cid cid = ipfs.blockstore.put(block, Cid.Codec.Raw).join();
                     Map res = new HashMap<>();
                     res.put("cid", cid.toString());
-                    replyJson(httpExchange, JSONParser.toString(res));
+                    String json = JSONParser.toString(res);
+                    AggregatedMetrics.API_RESPONSE_BYTES.labels(endpoint).observe(json.length());
+                    replyJson(httpExchange, json);
+                    outcome = "ok";
                     break;
                 }
                 case HEALTHZ: {
@@ -83,6 +150,7 @@ public class APIHandler extends Handler {
                     } catch (IOException ioe) {
                         HttpUtil.replyError(httpExchange, ioe);
                     }
+                    outcome = "ok";
                     break;
                 }
                 default: {
@@ -94,6 +162,57 @@ public class APIHandler extends Handler {
             HttpUtil.replyError(httpExchange, e);
         } finally {
             httpExchange.close();
+            if (inFlight != null)
+                inFlight.dec();
+            AggregatedMetrics.API_LATENCY.labels(endpoint, outcome)
+                    .observe((System.nanoTime() - startNanos) / 1_000_000_000.0);
+        }
+    }
+
+    private static int intParam(Map<String, List<String>> params, String name, int defaultValue) throws APIException {
+        List<String> values = params.get(name);
+        if (values == null || values.isEmpty())
+            return defaultValue;
+        try {
+            return Integer.parseInt(values.get(0));
+        } catch (NumberFormatException e) {
+            throw new APIException("argument \"" + name + "\" must be an integer");
+        }
+    }
+
+    /**
+     * Writes a CARv1 header with a single root.
+     *
+     * @return The number of bytes written.
+     */
+    static long writeCarHeader(OutputStream out, Cid root) throws IOException {
+        Map<String, Cborable> header = new HashMap<>();
+        header.put("roots", new CborObject.CborList(List.of(new CborObject.CborMerkleLink(root))));
+        header.put("version", new CborObject.CborLong(1));
+        byte[] raw = CborObject.CborMap.build(header).toByteArray();
+        ByteArrayOutputStream prefix = new ByteArrayOutputStream();
+        Multihash.putUvarint(prefix, raw.length);
+        out.write(prefix.toByteArray());
+        out.write(raw);
+        return prefix.size() + raw.length;
+    }
+
+    /**
+     * Writes one CARv1 block section: the length, the CID and then the block.
+     *
+     * @return The number of bytes written.
+     */
+    static long writeCarBlock(OutputStream out, HashedBlock block) {
+        try {
+            byte[] cid = block.hash.toBytes();
+            ByteArrayOutputStream prefix = new ByteArrayOutputStream();
+            Multihash.putUvarint(prefix, cid.length + block.block.length);
+            out.write(prefix.toByteArray());
+            out.write(cid);
+            out.write(block.block);
+            return prefix.size() + cid.length + block.block.length;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
     }
 }
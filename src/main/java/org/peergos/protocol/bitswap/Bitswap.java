@@ -12,7 +12,6 @@ import org.peergos.util.*;
 
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.concurrent.atomic.*;
 import java.util.function.*;
 import java.util.logging.*;
 import java.util.stream.*;
@@ -24,17 +23,23 @@ public class Bitswap extends StrictProtocolBinding<BitswapController> implements
 
     private final BitswapEngine engine;
     private final LRUCache<PeerId, Boolean> connected = new LRUCache<>(100);
-    private final LRUCache<Set<PeerId>, DownloadManager> downloads = new LRUCache<>(100);
+    private final WantManager wantManager;
     private AddressBook addrs;
 
     public Bitswap(BitswapEngine engine) {
-        super(PROTOCOL_ID, new BitswapProtocol(engine));
-        this.engine = engine;
+        this(PROTOCOL_ID, engine);
     }
 
     public Bitswap(String protocolId, BitswapEngine engine) {
         super(protocolId, new BitswapProtocol(engine));
         this.engine = engine;
+        this.wantManager = new WantManager(engine);
+        engine.setWantListener(wantManager);
+    }
+
+    public void close() {
+        wantManager.close();
+        engine.close();
     }
 
     public void setAddressBook(AddressBook addrs) {
@@ -42,6 +47,13 @@ public class Bitswap extends StrictProtocolBinding<BitswapController> implements
         this.addrs = addrs;
     }
 
+    /**
+     * @param bytesPerSecond The rate at which we serve blocks to any one peer, or 0 for no limit.
+     */
+    public void setPeerBandwidthBudget(long bytesPerSecond) {
+        engine.setPeerBandwidthBudget(bytesPerSecond);
+    }
+
     public int maxBlockSize() {
         return engine.maxMessageSize();
     }
@@ -66,18 +78,33 @@ public class Bitswap extends StrictProtocolBinding<BitswapController> implements
                                                     Host us,
                                                     Set<PeerId> peers,
                                                     boolean addToBlockstore) {
+        return get(wants, newSession(us, peers), addToBlockstore);
+    }
+
+    /**
+     * Starts a session for fetching related blocks, e.g. the blocks of one DAG.
+     *
+     * @param peers The peers to fetch from, or empty to ask any connected peer.
+     */
+    public BitswapSession newSession(Host us, Set<PeerId> peers) {
+        return new BitswapSession(this, us, peers);
+    }
+
+    public List<CompletableFuture<HashedBlock>> get(List<Want> wants,
+                                                    BitswapSession session,
+                                                    boolean addToBlockstore) {
         if (wants.isEmpty())
             return Collections.emptyList();
         List<CompletableFuture<HashedBlock>> results = new ArrayList<>();
+        Map<Want, CompletableFuture<HashedBlock>> requested = new LinkedHashMap<>();
         for (Want w : wants) {
             if (w.cid.getType() == Multihash.Type.id)
                 continue;
             CompletableFuture<HashedBlock> res = engine.getWant(w, addToBlockstore);
             results.add(res);
+            requested.put(w, res);
         }
-        sendWants(us, peers);
-        DownloadManager manager = downloads.getOrDefault(peers, new DownloadManager(us, peers));
-        manager.ensureRunning();
+        wantManager.track(session, requested);
         return results;
     }
 
@@ -87,34 +114,6 @@ public class Bitswap extends StrictProtocolBinding<BitswapController> implements
         return res;
     }
 
-    private class DownloadManager {
-        private final Host us;
-        private final Set<PeerId> peers;
-        private final AtomicBoolean running = new AtomicBoolean(false);
-
-        public DownloadManager(Host us, Set<PeerId> peers) {
-            this.us = us;
-            this.peers = peers;
-        }
-
-        public void ensureRunning() {
-            if (! running.get())
-                new Thread(() -> run()).start();
-        }
-
-        public void run() {
-            running.set(true);
-            while (true) {
-                try {Thread.sleep(5_000);} catch (InterruptedException e) {}
-                Set<Want> wants = engine.getWants(peers);
-                if (wants.isEmpty())
-                    break;
-                sendWants(us, wants, peers);
-            }
-            running.set(false);
-        }
-    }
-
     public void sendWants(Host us, Set<PeerId> peers) {
         Set<Want> wants = engine.getWants(peers);
         sendWants(us, wants, peers);
@@ -134,21 +133,60 @@ public class Bitswap extends StrictProtocolBinding<BitswapController> implements
                         .build())
                 .collect(Collectors.toList());
         engine.buildAndSendMessages(wantsProto, Collections.emptyList(), Collections.emptyList(),
-                msg -> audience.forEach(peer -> {
-                    try {
-                        dialPeer(us, peer, c -> {
-                            c.send(msg);
-                        });
-                    } catch (Exception e) {}
-                }));
-    }
-
-    private void dialPeer(Host us, PeerId peer, Consumer<BitswapController> action) {
-        Multiaddr[] addr = addrs.get(peer).join().toArray(new Multiaddr[0]);
-        if (addr.length == 0)
-            throw new IllegalStateException("No addresses known for peer " + peer);
-        BitswapController controller = dial(us, peer, addr).getController().join();
-        action.accept(controller);
+                msg -> audience.forEach(peer -> dialPeer(us, peer)
+                        .thenAccept(c -> c.send(msg))
+                        .exceptionally(t -> null)));
+    }
+
+    /**
+     * Sends a wantlist to a single peer, asking for DONT_HAVE replies so we can
+     * move on from peers that don't have a block.
+     *
+     * @return false if the peer could not be reached.
+     */
+    CompletableFuture<Boolean> sendWants(Host us, PeerId peer, Set<Want> wantBlocks, Set<Want> wantHaves) {
+        List<MessageOuterClass.Message.Wantlist.Entry> wantsProto = new ArrayList<>();
+        for (Want want : wantBlocks)
+            wantsProto.add(wantEntry(want, MessageOuterClass.Message.Wantlist.WantType.Block));
+        for (Want want : wantHaves)
+            wantsProto.add(wantEntry(want, MessageOuterClass.Message.Wantlist.WantType.Have));
+        return dialPeer(us, peer).thenApply(controller -> {
+            engine.buildAndSendMessages(wantsProto, Collections.emptyList(), Collections.emptyList(), controller::send);
+            return true;
+        }).exceptionally(t -> {
+            LOG.log(Level.FINE, "Couldn't send wants to " + peer, t);
+            return false;
+        });
+    }
+
+    private static MessageOuterClass.Message.Wantlist.Entry wantEntry(Want want,
+                                                                      MessageOuterClass.Message.Wantlist.WantType type) {
+        return MessageOuterClass.Message.Wantlist.Entry.newBuilder()
+                .setWantType(type)
+                .setSendDontHave(true)
+                .setBlock(ByteString.copyFrom(want.cid.toBytes()))
+                .setAuth(ByteString.copyFrom(ArrayOps.hexToBytes(want.authHex.orElse(""))))
+                .build();
+    }
+
+    /**
+     * Dials a peer without waiting, so callers never hold a thread while a slow or unreachable peer is dialled.
+     */
+    private CompletableFuture<BitswapController> dialPeer(Host us, PeerId peer) {
+        return addrs.get(peer).thenCompose(known -> {
+            Multiaddr[] addr = known.toArray(new Multiaddr[0]);
+            if (addr.length == 0)
+                return CompletableFuture.failedFuture(new IllegalStateException("No addresses known for peer " + peer));
+            TraceLogger.Span span = TraceLogger.getInstance().startAsyncSpan(TraceType.DIAL_PEER_START);
+            try {
+                CompletableFuture<BitswapController> controller = dial(us, peer, addr).getController();
+                controller.whenComplete((c, t) -> span.close());
+                return controller;
+            } catch (RuntimeException e) {
+                span.close();
+                return CompletableFuture.failedFuture(e);
+            }
+        });
     }
 
     public class LRUCache<K, V> extends LinkedHashMap<K, V> {
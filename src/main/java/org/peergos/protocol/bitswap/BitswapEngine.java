@@ -14,6 +14,7 @@ import org.peergos.util.*;
 import org.peergos.util.Logging;
 
 import java.io.*;
+import java.nio.*;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.function.*;
@@ -22,6 +23,9 @@ import java.util.stream.*;
 
 public class BitswapEngine {
     private static final Logger LOG = Logging.LOG();
+    public static final int DEFAULT_SERVER_THREADS = 16;
+    // Wants from a peer beyond this many queued lookups get no answer, so the peer retries them later.
+    private static final int MAX_QUEUED_LOOKUPS_PER_PEER = 2_000;
 
     private final Blockstore store;
     private final int maxMessageSize;
@@ -33,20 +37,56 @@ public class BitswapEngine {
     private final boolean blockAggressivePeers;
     private final Set<PeerId> connections = new HashSet<>();
     private final BlockRequestAuthoriser authoriser;
+    // Runs blockstore and authoriser lookups for incoming wants, or null to run them inline.
+    private final ServeScheduler scheduler;
     private AddressBook addressBook;
+    private volatile WantListener wantListener = new WantListener() {};
 
+    /**
+     * @param serverThreads If above 0, the lookups for incoming wantlists run
+     *                      concurrently on a pool of this many threads instead of
+     *                      on the network thread that received the message. Peers
+     *                      are served in turn, so no peer can monopolise the pool.
+     */
     public BitswapEngine(Blockstore store, BlockRequestAuthoriser authoriser, int maxMessageSize,
-            boolean blockAggressivePeers) {
+            boolean blockAggressivePeers, int serverThreads) {
         this.store = store;
         this.authoriser = authoriser;
         this.maxMessageSize = maxMessageSize;
         this.blockAggressivePeers = blockAggressivePeers;
+        this.scheduler = serverThreads > 0 ? new ServeScheduler(serverThreads, MAX_QUEUED_LOOKUPS_PER_PEER, 0) : null;
+    }
+
+    public BitswapEngine(Blockstore store, BlockRequestAuthoriser authoriser, int maxMessageSize,
+            boolean blockAggressivePeers) {
+        this(store, authoriser, maxMessageSize, blockAggressivePeers, 0);
     }
 
     public BitswapEngine(Blockstore store, BlockRequestAuthoriser authoriser, int maxMessageSize) {
         this(store, authoriser, maxMessageSize, false);
     }
 
+    /**
+     * Limits the rate at which blocks are served to each peer. Only applies when
+     * lookups run on a server pool.
+     *
+     * @param bytesPerSecond The per peer budget, or 0 for no limit.
+     */
+    public void setPeerBandwidthBudget(long bytesPerSecond) {
+        if (bytesPerSecond < 0)
+            throw new IllegalArgumentException("Negative bandwidth budget: " + bytesPerSecond);
+        if (scheduler != null)
+            scheduler.setBytesPerSecondPerPeer(bytesPerSecond);
+    }
+
+    /**
+     * Stops the server pool, if there is one.
+     */
+    public void close() {
+        if (scheduler != null)
+            scheduler.close();
+    }
+
     public int maxMessageSize() {
         return maxMessageSize;
     }
@@ -59,6 +99,22 @@ public class BitswapEngine {
         this.addressBook = addrs;
     }
 
+    /**
+     * Hears how peers answer our wants. It is called on the network thread, so it
+     * must not block.
+     */
+    public interface WantListener {
+        default void onHave(Want w, PeerId peer) {}
+
+        default void onDontHave(Want w, PeerId peer) {}
+
+        default void onBlock(Want w, PeerId peer) {}
+    }
+
+    public void setWantListener(WantListener listener) {
+        this.wantListener = listener;
+    }
+
     public synchronized void addConnection(PeerId peer, Multiaddr addr) {
         connections.add(peer);
     }
@@ -129,13 +185,19 @@ public class BitswapEngine {
         // TODO(sonudoo): This logging should be performed by handler. Requires some
         // code refactoring.
         TraceLogger.getInstance().HandleBitswapReceive(msg, source.remotePeerId());
-        List<MessageOuterClass.Message.BlockPresence> presences = new ArrayList<>();
-        List<MessageOuterClass.Message.Block> blocks = new ArrayList<>();
-        int messageSize = 0;
+        try {
+            processMessage(msg, source, sentBytes);
+        } finally {
+            TraceLogger.getInstance().clearTrace();
+        }
+    }
+
+    private void processMessage(MessageOuterClass.Message msg, Stream source, Counter sentBytes) {
         Multihash peerM = Multihash.deserialize(source.remotePeerId().getBytes());
         Cid sourcePeerId = new Cid(1, Cid.Codec.Libp2pKey, peerM.getType(), peerM.getHash());
-        int absentBlocks = 0;
-        int presentBlocks = 0;
+        TraceLogger tracer = TraceLogger.getInstance();
+        ReplyStream replies = new ReplyStream(msg, source, sentBytes);
+        List<CompletableFuture<Void>> lookups = new ArrayList<>();
         if (msg.hasWantlist()) {
             for (MessageOuterClass.Message.Wantlist.Entry e : msg.getWantlist().getEntriesList()) {
                 Cid c = Cid.cast(e.getBlock().toByteArray());
@@ -145,75 +207,23 @@ public class BitswapEngine {
                 boolean sendDontHave = e.getSendDontHave();
                 boolean wantBlock = e.getWantType().getNumber() == 0;
                 Want w = new Want(c, auth);
-                if (wantBlock) {
-                    boolean denied = deniedWants.containsKey(w);
-                    if (denied) {
-                        MessageOuterClass.Message.BlockPresence presence = MessageOuterClass.Message.BlockPresence
-                                .newBuilder()
-                                .setCid(ByteString.copyFrom(c.toBytes()))
-                                .setType(MessageOuterClass.Message.BlockPresenceType.DontHave)
-                                .build();
-                        presences.add(presence);
-                        messageSize += presence.getSerializedSize();
-                        continue;
-                    }
-                    boolean blockPresent = store.has(c).join();
-                    if (!blockPresent)
-                        absentBlocks++;
-                    else
-                        presentBlocks++;
-                    if (blockPresent && authoriser.allowRead(c, sourcePeerId, auth.orElse("")).join()) {
-                        MessageOuterClass.Message.Block blockP = MessageOuterClass.Message.Block.newBuilder()
-                                .setPrefix(ByteString.copyFrom(prefixBytes(c)))
-                                .setAuth(ByteString.copyFrom(ArrayOps.hexToBytes(auth.orElse(""))))
-                                .setData(ByteString.copyFrom(store.get(c).join().get()))
-                                .build();
-                        int blockSize = blockP.getSerializedSize();
-                        if (blockSize + messageSize > maxMessageSize) {
-                            buildAndSendMessages(Collections.emptyList(), presences, blocks, source::writeAndFlush);
-                            presences = new ArrayList<>();
-                            blocks = new ArrayList<>();
-                            messageSize = 0;
-                        }
-                        messageSize += blockSize;
-                        blocks.add(blockP);
-                    } else if (sendDontHave) {
-                        if (blockPresent) {
-                            deniedWants.put(w, true);
-                            LOG.info("Rejecting auth for block " + c + " from " + sourcePeerId.bareMultihash());
-                        }
-                        MessageOuterClass.Message.BlockPresence presence = MessageOuterClass.Message.BlockPresence
-                                .newBuilder()
-                                .setCid(ByteString.copyFrom(c.toBytes()))
-                                .setType(MessageOuterClass.Message.BlockPresenceType.DontHave)
-                                .build();
-                        presences.add(presence);
-                        messageSize += presence.getSerializedSize();
-                    } else if (blockPresent) {
-                        deniedWants.put(w, true);
-                        LOG.info("Rejecting repeated invalid auth for block " + c + " from "
-                                + sourcePeerId.bareMultihash());
-                    }
-                } else {
-                    boolean hasBlock = store.has(c).join();
-                    if (hasBlock) {
-                        MessageOuterClass.Message.BlockPresence presence = MessageOuterClass.Message.BlockPresence
-                                .newBuilder()
-                                .setCid(ByteString.copyFrom(c.toBytes()))
-                                .setType(MessageOuterClass.Message.BlockPresenceType.Have)
-                                .build();
-                        presences.add(presence);
-                        messageSize += presence.getSerializedSize();
-                    } else if (sendDontHave) {
-                        MessageOuterClass.Message.BlockPresence presence = MessageOuterClass.Message.BlockPresence
-                                .newBuilder()
-                                .setCid(ByteString.copyFrom(c.toBytes()))
-                                .setType(MessageOuterClass.Message.BlockPresenceType.DontHave)
-                                .build();
-                        presences.add(presence);
-                        messageSize += presence.getSerializedSize();
-                    }
+                if (scheduler == null) {
+                    replies.add(lookup(w, wantBlock, sendDontHave, sourcePeerId));
+                    continue;
+                }
+                CompletableFuture<WantReply> reply;
+                try {
+                    reply = scheduler.submit(source.remotePeerId(),
+                            tracer.inCurrentTrace(() -> lookup(w, wantBlock, sendDontHave, sourcePeerId)),
+                            WantReply::size);
+                } catch (RejectedExecutionException overloaded) {
+                    // we may well have the block, so a DONT_HAVE would be a false answer
+                    reply = Futures.of(WantReply.NONE);
                 }
+                lookups.add(reply.exceptionally(t -> {
+                    LOG.log(Level.WARNING, "Error looking up block " + c, t);
+                    return sendDontHave ? WantReply.presence(dontHave(c), false) : WantReply.NONE;
+                }).thenAccept(replies::add));
             }
         }
         boolean receivedWantedBlock = false;
@@ -240,8 +250,10 @@ public class BitswapEngine {
                             store.put(data, codec);
                             persistBlocks.remove(w);
                         }
+                        wantListener.onBlock(w, source.remotePeerId());
                         waiter.result.complete(new HashedBlock(c, data));
                         localWants.remove(w);
+                        blockHaves.remove(w);
                     } else
                         LOG.info("Received block we don't want: " + c + " from " + sourcePeerId.bareMultihash());
                 }
@@ -258,30 +270,174 @@ public class BitswapEngine {
                     : Optional.of(ArrayOps.bytesToHex(blockPresence.getAuth().toByteArray()));
             Want w = new Want(c, auth);
             boolean have = blockPresence.getType().getNumber() == 0;
-            if (have && localWants.containsKey(w)) {
+            if (! localWants.containsKey(w))
+                continue;
+            if (have) {
                 receivedRequestedHave = true;
                 blockHaves.put(w, source.remotePeerId());
+                wantListener.onHave(w, source.remotePeerId());
+            } else
+                wantListener.onDontHave(w, source.remotePeerId());
+        }
+        boolean wasUseful = receivedRequestedHave || receivedWantedBlock;
+        // Runs on this thread if all lookups have already completed, otherwise on
+        // the server executor thread that completes the last one.
+        CompletableFuture.allOf(lookups.toArray(new CompletableFuture[0]))
+                .thenRun(tracer.inCurrentTrace(() -> {
+                    if (replies.absentBlocks > 10 && replies.presentBlocks == 0 && !wasUseful) {
+                        // This peer is sending us lots of irrelevant requests, block them
+                        blockedPeers.put(source.remotePeerId(), true);
+                        source.close();
+                    }
+                    replies.finish();
+                }));
+    }
+
+    /**
+     * The response to a single want entry.
+     */
+    private static final class WantReply {
+        static final WantReply NONE = new WantReply(null, null, false, false);
+
+        final MessageOuterClass.Message.BlockPresence presence;
+        final MessageOuterClass.Message.Block block;
+        // Whether this was a want-block for a block we have or don't have.
+        final boolean present, absent;
+
+        private WantReply(MessageOuterClass.Message.BlockPresence presence, MessageOuterClass.Message.Block block,
+                          boolean present, boolean absent) {
+            this.presence = presence;
+            this.block = block;
+            this.present = present;
+            this.absent = absent;
+        }
+
+        static WantReply presence(MessageOuterClass.Message.BlockPresence presence, boolean present) {
+            return new WantReply(presence, null, present, false);
+        }
+
+        int size() {
+            return presence != null ? presence.getSerializedSize() : block != null ? block.getSerializedSize() : 0;
+        }
+    }
+
+    /**
+     * Looks up a single want entry. This blocks on the blockstore and authoriser,
+     * so it must not run on a network thread when a server executor is configured.
+     */
+    private WantReply lookup(Want w, boolean wantBlock, boolean sendDontHave, Cid sourcePeerId) {
+        Cid c = w.cid;
+        Optional<String> auth = w.authHex;
+        if (!wantBlock) {
+            if (store.has(c).join()) {
+                MessageOuterClass.Message.BlockPresence presence = MessageOuterClass.Message.BlockPresence
+                        .newBuilder()
+                        .setCid(ByteString.copyFrom(c.toBytes()))
+                        .setType(MessageOuterClass.Message.BlockPresenceType.Have)
+                        .build();
+                return WantReply.presence(presence, false);
             }
+            return sendDontHave ? WantReply.presence(dontHave(c), false) : WantReply.NONE;
+        }
+        if (deniedWants.containsKey(w))
+            return WantReply.presence(dontHave(c), false);
+        boolean blockPresent, allowed;
+        ByteBuffer data = null;
+        try (TraceLogger.Span span = TraceLogger.getInstance().startSpan(TraceType.BITSWAP_STORE_READ_START)) {
+            blockPresent = store.has(c).join();
+            allowed = blockPresent && authoriser.allowRead(c, sourcePeerId, auth.orElse("")).join();
+            if (allowed)
+                data = store.getBuffer(c).join().get();
         }
-        if (absentBlocks > 10 && presentBlocks == 0 && !receivedRequestedHave && !receivedWantedBlock) {
-            // This peer is sending us lots of irrelevant requests, block them
-            blockedPeers.put(source.remotePeerId(), true);
-            source.close();
+        if (allowed) {
+            MessageOuterClass.Message.Block blockP = MessageOuterClass.Message.Block.newBuilder()
+                    .setPrefix(ByteString.copyFrom(prefixBytes(c)))
+                    .setAuth(ByteString.copyFrom(ArrayOps.hexToBytes(auth.orElse(""))))
+                    // the store hands over the buffer, so it is never modified after this
+                    .setData(UnsafeByteOperations.unsafeWrap(data))
+                    .build();
+            return new WantReply(null, blockP, true, false);
         }
+        if (sendDontHave) {
+            if (blockPresent) {
+                deniedWants.put(w, true);
+                LOG.info("Rejecting auth for block " + c + " from " + sourcePeerId.bareMultihash());
+            }
+            return new WantReply(dontHave(c), null, blockPresent, !blockPresent);
+        }
+        if (blockPresent) {
+            deniedWants.put(w, true);
+            LOG.info("Rejecting repeated invalid auth for block " + c + " from "
+                    + sourcePeerId.bareMultihash());
+        }
+        return new WantReply(null, null, blockPresent, !blockPresent);
+    }
 
-        if (presences.isEmpty() && blocks.isEmpty())
-            return;
-
-        buildAndSendMessages(Collections.emptyList(), presences, blocks, reply -> {
-            // TODO(sonudoo): Propagating the context id in response shouldn't be required.
-            // But the current handler for the response on client side runs on a separate
-            // thread which doesn't inherit the trace context.
-            reply = reply.toBuilder().setTraceId(msg.getTraceId()).build();
-            sentBytes.inc(reply.getSerializedSize());
-            source.writeAndFlush(reply);
-            // TODO(sonudoo): This logging should be performed by handler.
-            TraceLogger.getInstance().HandleBitswapServerEnd(reply, source.remotePeerId());
-        });
+    private static MessageOuterClass.Message.BlockPresence dontHave(Cid c) {
+        return MessageOuterClass.Message.BlockPresence.newBuilder()
+                .setCid(ByteString.copyFrom(c.toBytes()))
+                .setType(MessageOuterClass.Message.BlockPresenceType.DontHave)
+                .build();
+    }
+
+    /**
+     * Collects the replies to a wantlist as they complete, and sends them on as
+     * soon as a full message's worth has accumulated.
+     */
+    private final class ReplyStream {
+        private final MessageOuterClass.Message request;
+        private final Stream source;
+        private final Counter sentBytes;
+        private List<MessageOuterClass.Message.BlockPresence> presences = new ArrayList<>();
+        private List<MessageOuterClass.Message.Block> blocks = new ArrayList<>();
+        private int messageSize = 0;
+        volatile int presentBlocks = 0, absentBlocks = 0;
+
+        ReplyStream(MessageOuterClass.Message request, Stream source, Counter sentBytes) {
+            this.request = request;
+            this.source = source;
+            this.sentBytes = sentBytes;
+        }
+
+        synchronized void add(WantReply reply) {
+            if (reply.present)
+                presentBlocks++;
+            if (reply.absent)
+                absentBlocks++;
+            int size = reply.size();
+            if (size == 0)
+                return;
+            if (size + messageSize > maxMessageSize)
+                send(false);
+            if (reply.presence != null)
+                presences.add(reply.presence);
+            if (reply.block != null)
+                blocks.add(reply.block);
+            messageSize += size;
+        }
+
+        synchronized void finish() {
+            send(true);
+        }
+
+        private void send(boolean last) {
+            if (presences.isEmpty() && blocks.isEmpty())
+                return;
+            buildAndSendMessages(Collections.emptyList(), presences, blocks, reply -> {
+                // TODO(sonudoo): Propagating the context id in response shouldn't be required.
+                // But the current handler for the response on client side runs on a separate
+                // thread which doesn't inherit the trace context.
+                reply = reply.toBuilder().setTraceId(request.getTraceId()).build();
+                sentBytes.inc(reply.getSerializedSize());
+                source.writeAndFlush(reply);
+                // TODO(sonudoo): This logging should be performed by handler.
+                if (last)
+                    TraceLogger.getInstance().HandleBitswapServerEnd(reply, source.remotePeerId());
+            });
+            presences = new ArrayList<>();
+            blocks = new ArrayList<>();
+            messageSize = 0;
+        }
     }
 
     public void buildAndSendMessages(List<MessageOuterClass.Message.Wantlist.Entry> wants,
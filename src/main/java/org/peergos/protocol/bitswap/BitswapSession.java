@@ -0,0 +1,346 @@
+package org.peergos.protocol.bitswap;
+
+import io.libp2p.core.*;
+import org.peergos.*;
+import org.peergos.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.stream.*;
+
+/**
+ * A group of related wants, e.g. the blocks of one DAG, that are likely to be
+ * held by the same peers.
+ *
+ * Rather than asking every peer for every block, a session asks the peer most
+ * likely to answer quickly for the block itself (WANT_BLOCK) and a few others
+ * only whether they have it (WANT_HAVE). What each peer answers, and how fast,
+ * is remembered across all the wants of the session. When the chosen peer
+ * replies DONT_HAVE, can't be dialled or doesn't answer in time, the block is
+ * asked for from the next best peer.
+ */
+public class BitswapSession {
+    // Number of peers, besides the one asked for the block, asked if they have it.
+    private static final int WANT_HAVE_PEERS = 3;
+    // Weight of the newest sample in a peer's latency estimate.
+    private static final double LATENCY_WEIGHT = 0.3;
+
+    private static final class PeerStats {
+        double latencyMillis = -1; // -1 until the peer has answered something
+        int haves, blocks, dontHaves;
+    }
+
+    private static final class WantState {
+        final Map<PeerId, Long> askedAt = new HashMap<>();
+        final Set<PeerId> haves = new HashSet<>();
+        // peers that replied DONT_HAVE, were unreachable or timed out
+        final Set<PeerId> excluded = new HashSet<>();
+        PeerId blockPeer;
+    }
+
+    private final Bitswap bitswap;
+    private final Host us;
+    private final Set<PeerId> requestedPeers;
+    private final LongSupplier nanoTime;
+    // guarded by this
+    private final Set<PeerId> extraPeers = new HashSet<>();
+    private final Map<PeerId, PeerStats> stats = new HashMap<>();
+    private final Map<Want, WantState> wants = new HashMap<>();
+
+    BitswapSession(Bitswap bitswap, Host us, Set<PeerId> peers, LongSupplier nanoTime) {
+        this.bitswap = bitswap;
+        this.us = us;
+        this.requestedPeers = peers;
+        this.nanoTime = nanoTime;
+    }
+
+    BitswapSession(Bitswap bitswap, Host us, Set<PeerId> peers) {
+        this(bitswap, us, peers, System::nanoTime);
+    }
+
+    public Host host() {
+        return us;
+    }
+
+    /**
+     * @return The peers this session was asked to fetch from, empty if it may ask
+     * any connected peer.
+     */
+    public Set<PeerId> peers() {
+        return requestedPeers;
+    }
+
+    /**
+     * @return The peers that have sent us at least one block in this session.
+     */
+    public synchronized Set<PeerId> servingPeers() {
+        return stats.entrySet().stream()
+                .filter(e -> e.getValue().blocks > 0)
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toSet());
+    }
+
+    /**
+     * Fetches blocks through this session.
+     */
+    public List<CompletableFuture<HashedBlock>> get(List<Want> wants, boolean addToBlockstore) {
+        return bitswap.get(wants, this, addToBlockstore);
+    }
+
+    /**
+     * Adds peers, e.g. newly found providers, and asks them for the outstanding wants.
+     */
+    public void addPeers(Set<PeerId> peers) {
+        Set<Want> outstanding;
+        synchronized (this) {
+            if (requestedPeers.isEmpty() || !extraPeers.addAll(peers))
+                return;
+            outstanding = new HashSet<>(wants.keySet());
+        }
+        retry(outstanding);
+    }
+
+    /**
+     * Adds peers found while wants are outstanding, e.g. providers as a DHT
+     * lookup finds them. Unlike {@link #addPeers}, wants stay with the peer they
+     * were asked of; the new peers are asked whether they have them, and are
+     * asked for the block if nobody else is.
+     */
+    public void offerPeers(Set<PeerId> peers) {
+        Messages out = new Messages();
+        synchronized (this) {
+            if (requestedPeers.isEmpty())
+                return;
+            List<PeerId> added = peers.stream()
+                    .filter(p -> !requestedPeers.contains(p) && extraPeers.add(p))
+                    .collect(Collectors.toList());
+            if (added.isEmpty())
+                return;
+            long now = nanoTime.getAsLong();
+            for (Map.Entry<Want, WantState> e : wants.entrySet()) {
+                WantState state = e.getValue();
+                for (PeerId peer : added) {
+                    state.askedAt.putIfAbsent(peer, now);
+                    if (state.blockPeer == null) {
+                        state.blockPeer = peer;
+                        out.wantBlock(peer, e.getKey());
+                    } else
+                        out.wantHave(peer, e.getKey());
+                }
+            }
+        }
+        out.send();
+    }
+
+    void want(Collection<Want> added) {
+        Messages out = new Messages();
+        synchronized (this) {
+            List<PeerId> candidates = candidates();
+            for (Want w : added) {
+                if (wants.containsKey(w))
+                    continue;
+                WantState state = new WantState();
+                wants.put(w, state);
+                route(w, state, candidates, out);
+            }
+        }
+        out.send();
+    }
+
+    /**
+     * Called when wants have not been answered in time. The peer asked for the
+     * block is passed over in favour of the next best one.
+     */
+    void retry(Collection<Want> due) {
+        Messages out = new Messages();
+        synchronized (this) {
+            List<PeerId> candidates = candidates();
+            for (Want w : due) {
+                WantState state = wants.get(w);
+                if (state == null)
+                    continue;
+                if (state.blockPeer != null)
+                    state.excluded.add(state.blockPeer);
+                if (state.excluded.containsAll(candidates)) {
+                    // everyone has been tried, start again
+                    state.excluded.clear();
+                    state.askedAt.clear();
+                }
+                state.blockPeer = null;
+                route(w, state, candidates, out);
+            }
+        }
+        out.send();
+    }
+
+    void onHave(Want w, PeerId peer) {
+        Messages out = new Messages();
+        synchronized (this) {
+            WantState state = wants.get(w);
+            if (state == null)
+                return;
+            PeerStats peerStats = responded(state, peer);
+            peerStats.haves++;
+            state.haves.add(peer);
+            if (state.blockPeer == null) {
+                state.blockPeer = peer;
+                out.wantBlock(peer, w);
+            }
+        }
+        out.send();
+    }
+
+    void onDontHave(Want w, PeerId peer) {
+        Messages out = new Messages();
+        synchronized (this) {
+            WantState state = wants.get(w);
+            if (state == null)
+                return;
+            PeerStats peerStats = responded(state, peer);
+            peerStats.dontHaves++;
+            state.excluded.add(peer);
+            state.haves.remove(peer);
+            if (peer.equals(state.blockPeer))
+                reroute(w, state, out);
+        }
+        out.send();
+    }
+
+    void onBlock(Want w, PeerId peer) {
+        synchronized (this) {
+            WantState state = wants.remove(w);
+            if (state == null)
+                return;
+            responded(state, peer).blocks++;
+        }
+    }
+
+    synchronized void cancel(Want w) {
+        wants.remove(w);
+    }
+
+    private void onUnreachable(PeerId peer, Set<Want> sent) {
+        Messages out = new Messages();
+        synchronized (this) {
+            for (Want w : sent) {
+                WantState state = wants.get(w);
+                if (state == null)
+                    continue;
+                state.excluded.add(peer);
+                state.haves.remove(peer);
+                if (peer.equals(state.blockPeer))
+                    reroute(w, state, out);
+            }
+        }
+        out.send();
+    }
+
+    // Must hold the lock
+    private PeerStats responded(WantState state, PeerId peer) {
+        PeerStats peerStats = stats.computeIfAbsent(peer, p -> new PeerStats());
+        Long askedAt = state.askedAt.remove(peer);
+        if (askedAt != null) {
+            double sample = (nanoTime.getAsLong() - askedAt) / 1_000_000.0;
+            peerStats.latencyMillis = peerStats.latencyMillis < 0 ? sample :
+                    LATENCY_WEIGHT * sample + (1 - LATENCY_WEIGHT) * peerStats.latencyMillis;
+        }
+        return peerStats;
+    }
+
+    // Must hold the lock
+    private void reroute(Want w, WantState state, Messages out) {
+        state.blockPeer = null;
+        // prefer a peer that has already said it has the block
+        Optional<PeerId> next = state.haves.stream()
+                .filter(p -> !state.excluded.contains(p))
+                .min(Comparator.comparingDouble(this::latency));
+        if (next.isEmpty()) {
+            next = candidates().stream()
+                    .filter(p -> !state.excluded.contains(p))
+                    .findFirst();
+        }
+        next.ifPresent(p -> {
+            state.blockPeer = p;
+            state.askedAt.putIfAbsent(p, nanoTime.getAsLong());
+            out.wantBlock(p, w);
+        });
+    }
+
+    // Must hold the lock
+    private void route(Want w, WantState state, List<PeerId> candidates, Messages out) {
+        List<PeerId> ordered = candidates.stream()
+                .filter(p -> !state.excluded.contains(p))
+                .sorted(Comparator.comparing((PeerId p) -> !state.haves.contains(p)))
+                .collect(Collectors.toList());
+        if (ordered.isEmpty())
+            return;
+        long now = nanoTime.getAsLong();
+        PeerId best = ordered.get(0);
+        state.blockPeer = best;
+        state.askedAt.putIfAbsent(best, now);
+        out.wantBlock(best, w);
+        for (PeerId peer : ordered.subList(1, Math.min(ordered.size(), 1 + WANT_HAVE_PEERS))) {
+            state.askedAt.putIfAbsent(peer, now);
+            out.wantHave(peer, w);
+        }
+    }
+
+    /**
+     * The peers we can ask, best first: peers that have answered before in
+     * order of latency, then peers we know nothing about yet, then peers that
+     * only ever said DONT_HAVE. Must hold the lock.
+     */
+    private List<PeerId> candidates() {
+        Set<PeerId> all = new HashSet<>(requestedPeers.isEmpty() ? bitswap.getBroadcastAudience() : requestedPeers);
+        all.addAll(extraPeers);
+        return all.stream()
+                .sorted(Comparator.comparingInt(this::rank).thenComparingDouble(this::latency))
+                .collect(Collectors.toList());
+    }
+
+    private int rank(PeerId peer) {
+        PeerStats s = stats.get(peer);
+        if (s == null || s.latencyMillis < 0)
+            return 1;
+        return s.haves + s.blocks > 0 ? 0 : 2;
+    }
+
+    private double latency(PeerId peer) {
+        PeerStats s = stats.get(peer);
+        return s == null || s.latencyMillis < 0 ? Double.MAX_VALUE : s.latencyMillis;
+    }
+
+    /**
+     * The want entries to send to each peer, sent once the session lock is released.
+     */
+    private final class Messages {
+        final Map<PeerId, Set<Want>> blocks = new HashMap<>();
+        final Map<PeerId, Set<Want>> haves = new HashMap<>();
+
+        void wantBlock(PeerId peer, Want w) {
+            blocks.computeIfAbsent(peer, p -> new HashSet<>()).add(w);
+        }
+
+        void wantHave(PeerId peer, Want w) {
+            haves.computeIfAbsent(peer, p -> new HashSet<>()).add(w);
+        }
+
+        void send() {
+            Set<PeerId> peers = new HashSet<>(blocks.keySet());
+            peers.addAll(haves.keySet());
+            for (PeerId peer : peers) {
+                Set<Want> wantBlocks = blocks.getOrDefault(peer, Collections.emptySet());
+                Set<Want> wantHaves = haves.getOrDefault(peer, Collections.emptySet());
+                // the dial is asynchronous, so a slow peer doesn't hold up the caller
+                bitswap.sendWants(us, peer, wantBlocks, wantHaves).thenAccept(sent -> {
+                    if (!sent) {
+                        Set<Want> unsent = new HashSet<>(wantBlocks);
+                        unsent.addAll(wantHaves);
+                        onUnreachable(peer, unsent);
+                    }
+                });
+            }
+        }
+    }
+}
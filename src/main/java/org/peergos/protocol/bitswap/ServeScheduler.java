@@ -0,0 +1,286 @@
+package org.peergos.protocol.bitswap;
+
+import io.libp2p.core.PeerId;
+import org.peergos.util.Logging;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Schedules the work of answering incoming wants across peers, so one peer with
+ * a huge wantlist can't starve everyone else.
+ *
+ * Each peer has its own queue. Worker threads take from the peers in turn using
+ * deficit round robin on the bytes each peer has been sent, so peers get an equal
+ * share of the serving bandwidth regardless of block size. Optionally each peer
+ * also has a bytes per second budget, enforced with a token bucket; a peer that
+ * has used up its budget is skipped until it refills.
+ */
+class ServeScheduler {
+    private static final Logger LOG = Logging.LOG();
+    // Bytes of credit a peer gets each time its turn comes round.
+    private static final int QUANTUM = 256 * 1024;
+    // Peers whose budget and deficit we remember after their queue empties, so
+    // pausing briefly doesn't reset a peer's budget.
+    private static final int MAX_TRACKED_PEERS = 10_000;
+
+    private static final class Task<T> {
+        final Supplier<T> work;
+        final ToIntFunction<T> cost;
+        final CompletableFuture<T> result = new CompletableFuture<>();
+
+        Task(Supplier<T> work, ToIntFunction<T> cost) {
+            this.work = work;
+            this.cost = cost;
+        }
+
+        int run() {
+            try {
+                T res = work.get();
+                result.complete(res);
+                return cost.applyAsInt(res);
+            } catch (Throwable t) {
+                result.completeExceptionally(t);
+                return 0;
+            }
+        }
+    }
+
+    private static final class PeerQueue {
+        final Deque<Task<?>> tasks = new ArrayDeque<>();
+        long deficit = 0;
+        double tokens;
+        long lastRefill;
+        boolean active = false;
+        // tasks taken from the queue that haven't been charged for yet
+        int running = 0;
+
+        PeerQueue(double tokens, long now) {
+            this.tokens = tokens;
+            this.lastRefill = now;
+        }
+
+        boolean isIdle() {
+            return tasks.isEmpty() && !active && running == 0;
+        }
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition workAvailable = lock.newCondition();
+    // guarded by lock, least recently used first
+    private final LinkedHashMap<PeerId, PeerQueue> peers = new LinkedHashMap<>(16, 0.75f, true);
+    private final Deque<PeerQueue> active = new ArrayDeque<>();
+    private final int maxQueuedPerPeer;
+    private final LongSupplier nanoClock;
+    private final List<Thread> workers = new ArrayList<>();
+    private volatile long bytesPerSecondPerPeer;
+    private volatile boolean closed = false;
+
+    /**
+     * @param threads               Number of worker threads.
+     * @param maxQueuedPerPeer      Submissions beyond this many pending tasks for a
+     *                              peer are rejected.
+     * @param bytesPerSecondPerPeer Serving budget per peer, or 0 for no limit.
+     */
+    ServeScheduler(int threads, int maxQueuedPerPeer, long bytesPerSecondPerPeer) {
+        this(threads, maxQueuedPerPeer, bytesPerSecondPerPeer, System::nanoTime);
+    }
+
+    /**
+     * @param nanoClock The time source for the budget, in nanoseconds.
+     */
+    ServeScheduler(int threads, int maxQueuedPerPeer, long bytesPerSecondPerPeer, LongSupplier nanoClock) {
+        this.maxQueuedPerPeer = maxQueuedPerPeer;
+        this.bytesPerSecondPerPeer = bytesPerSecondPerPeer;
+        this.nanoClock = nanoClock;
+        for (int i = 0; i < threads; i++) {
+            Thread worker = new Thread(this::work, "Bitswap server " + i);
+            worker.setDaemon(true);
+            worker.start();
+            workers.add(worker);
+        }
+    }
+
+    /**
+     * Stops the worker threads. Queued work is abandoned and further submissions are rejected.
+     */
+    void close() {
+        closed = true;
+        for (Thread worker : workers)
+            worker.interrupt();
+    }
+
+    void setBytesPerSecondPerPeer(long bytesPerSecond) {
+        this.bytesPerSecondPerPeer = bytesPerSecond;
+    }
+
+    /**
+     * Queues work on behalf of a peer.
+     *
+     * @param cost The number of bytes the result will cost to send.
+     * @throws RejectedExecutionException if the peer already has too much queued.
+     */
+    <T> CompletableFuture<T> submit(PeerId peer, Supplier<T> work, ToIntFunction<T> cost) {
+        Task<T> task = new Task<>(work, cost);
+        lock.lock();
+        try {
+            if (closed)
+                throw new RejectedExecutionException("Scheduler is closed");
+            PeerQueue queue = peers.get(peer);
+            if (queue == null) {
+                queue = new PeerQueue(burst(), nanoClock.getAsLong());
+                peers.put(peer, queue);
+                forgetIdlePeers();
+            }
+            if (queue.tasks.size() >= maxQueuedPerPeer)
+                throw new RejectedExecutionException("Too many queued wants from " + peer);
+            queue.tasks.add(task);
+            if (!queue.active) {
+                queue.active = true;
+                active.add(queue);
+            }
+            workAvailable.signal();
+        } finally {
+            lock.unlock();
+        }
+        return task.result;
+    }
+
+    /**
+     * Forgets the least recently used peers beyond MAX_TRACKED_PEERS. Peers with
+     * work queued or running are kept, otherwise their next submission would get a
+     * second queue, escaping both the queue limit and the budget. Must hold the lock.
+     */
+    private void forgetIdlePeers() {
+        Iterator<PeerQueue> queues = peers.values().iterator();
+        while (peers.size() > MAX_TRACKED_PEERS && queues.hasNext()) {
+            if (queues.next().isIdle())
+                queues.remove();
+        }
+    }
+
+    // A peer can send up to one second of its budget in a burst.
+    private double burst() {
+        return bytesPerSecondPerPeer;
+    }
+
+    private void work() {
+        while (!closed) {
+            try {
+                PeerQueue queue;
+                lock.lock();
+                try {
+                    while (true) {
+                        queue = nextEligible();
+                        if (queue != null)
+                            break;
+                        if (active.isEmpty())
+                            workAvailable.await();
+                        else // everyone with work is over budget
+                            workAvailable.await(10, TimeUnit.MILLISECONDS);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                run(queue);
+            } catch (InterruptedException e) {
+                return;
+            } catch (Throwable t) {
+                LOG.log(Level.WARNING, t.getMessage(), t);
+            }
+        }
+    }
+
+    /**
+     * Runs the next task whose turn it is on the calling thread, if any peer with
+     * work is within its budget.
+     *
+     * @return Whether a task was run.
+     */
+    boolean runNext() {
+        PeerQueue queue;
+        lock.lock();
+        try {
+            queue = nextEligible();
+        } finally {
+            lock.unlock();
+        }
+        if (queue == null)
+            return false;
+        run(queue);
+        return true;
+    }
+
+    private void run(PeerQueue queue) {
+        Task<?> task;
+        lock.lock();
+        try {
+            task = queue.tasks.poll();
+            queue.running++;
+            // the peer's turn lasts until its deficit is used up
+            if (!queue.tasks.isEmpty())
+                active.addFirst(queue);
+            else
+                queue.active = false;
+        } finally {
+            lock.unlock();
+        }
+
+        int cost = task.run();
+
+        lock.lock();
+        try {
+            queue.running--;
+            queue.deficit -= cost;
+            queue.tokens -= cost;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes and returns the next peer whose turn it is, or null if every peer
+     * with queued work is over its bandwidth budget. Must hold the lock.
+     */
+    private PeerQueue nextEligible() {
+        long budget = bytesPerSecondPerPeer;
+        long now = nanoClock.getAsLong();
+        int overBudget = 0;
+        // Terminates because every pass over a peer that is within budget raises its deficit.
+        while (!active.isEmpty() && overBudget < active.size()) {
+            PeerQueue queue = active.poll();
+            if (budget > 0) {
+                double refill = (now - queue.lastRefill) / 1_000_000_000.0 * budget;
+                queue.tokens = Math.min(budget, queue.tokens + refill);
+                queue.lastRefill = now;
+                if (queue.tokens <= 0) {
+                    active.add(queue);
+                    overBudget++;
+                    continue;
+                }
+            }
+            overBudget = 0;
+            if (queue.deficit <= 0) {
+                queue.deficit += QUANTUM;
+                active.add(queue);
+                continue;
+            }
+            return queue;
+        }
+        return null;
+    }
+}
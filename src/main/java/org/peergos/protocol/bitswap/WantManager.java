@@ -0,0 +1,185 @@
+package org.peergos.protocol.bitswap;
+
+import io.libp2p.core.*;
+import org.peergos.*;
+import org.peergos.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.logging.*;
+
+/**
+ * Retries our outstanding wants until they are answered. Each want has its own
+ * retry timer with exponential backoff, and wants of a session that fall due
+ * together are retried together. Which peers a want is sent to is up to its
+ * {@link BitswapSession}, which also hears every HAVE, DONT_HAVE and block for it.
+ */
+class WantManager implements BitswapEngine.WantListener {
+    private static final Logger LOG = Logging.LOG();
+    private static final long INITIAL_RETRY_MILLIS = 1_000;
+    private static final long MAX_RETRY_MILLIS = 30_000;
+    // Wants due within this long of a retry are sent along with it.
+    private static final long BATCH_WINDOW_MILLIS = 100;
+    private static final int THREADS = 4;
+
+    private static final class Pending {
+        final Want want;
+        final BitswapSession session;
+        int attempts = 0;
+        long due;
+        ScheduledFuture<?> timer;
+
+        Pending(Want want, BitswapSession session) {
+            this.want = want;
+            this.session = session;
+        }
+    }
+
+    // our current wants among those sent to the given peers
+    private final Function<Set<PeerId>, Set<Want>> currentWants;
+    private final ScheduledThreadPoolExecutor timers;
+    // guarded by this
+    private final Map<Want, Pending> pending = new HashMap<>();
+
+    WantManager(BitswapEngine engine) {
+        this(engine::getWants);
+    }
+
+    WantManager(Function<Set<PeerId>, Set<Want>> currentWants) {
+        this.currentWants = currentWants;
+        ScheduledThreadPoolExecutor timers = new ScheduledThreadPoolExecutor(THREADS, r -> {
+            Thread t = new Thread(r, "Bitswap wants");
+            t.setDaemon(true);
+            return t;
+        });
+        timers.setRemoveOnCancelPolicy(true);
+        this.timers = timers;
+    }
+
+    void close() {
+        timers.shutdownNow();
+    }
+
+    /**
+     * @return The number of retry timers that haven't fired or been cancelled.
+     */
+    int scheduledRetries() {
+        return timers.getQueue().size();
+    }
+
+    /**
+     * @return How long to wait before retrying a want that has been retried this many times.
+     */
+    static long retryDelayMillis(int attempts) {
+        return Math.min(MAX_RETRY_MILLIS, INITIAL_RETRY_MILLIS << Math.min(attempts, 20));
+    }
+
+    /**
+     * Starts retrying wants that have just been sent through a session. A want
+     * that is already being retried stays with its existing session, which is
+     * given the new session's peers, and its backoff starts again.
+     */
+    void track(BitswapSession session, Map<Want, CompletableFuture<HashedBlock>> wants) {
+        List<Want> added = new ArrayList<>();
+        Map<BitswapSession, Set<Want>> restarted = new HashMap<>();
+        synchronized (this) {
+            for (Map.Entry<Want, CompletableFuture<HashedBlock>> e : wants.entrySet()) {
+                Want want = e.getKey();
+                if (e.getValue().isDone())
+                    continue;
+                Pending existing = pending.get(want);
+                if (existing != null) {
+                    if (existing.session != session)
+                        restarted.computeIfAbsent(existing.session, s -> new HashSet<>()).add(want);
+                    existing.attempts = 0;
+                    schedule(existing);
+                    continue;
+                }
+                Pending p = new Pending(want, session);
+                pending.put(want, p);
+                schedule(p);
+                added.add(want);
+                e.getValue().whenComplete((r, t) -> forget(want));
+            }
+        }
+        session.want(added);
+        restarted.forEach((existing, restartedWants) -> {
+            existing.addPeers(session.peers());
+            existing.retry(restartedWants);
+        });
+    }
+
+    @Override
+    public void onHave(Want want, PeerId peer) {
+        BitswapSession session = sessionOf(want);
+        if (session != null)
+            session.onHave(want, peer);
+    }
+
+    @Override
+    public void onDontHave(Want want, PeerId peer) {
+        BitswapSession session = sessionOf(want);
+        if (session != null)
+            session.onDontHave(want, peer);
+    }
+
+    @Override
+    public void onBlock(Want want, PeerId peer) {
+        BitswapSession session = sessionOf(want);
+        if (session != null)
+            session.onBlock(want, peer);
+    }
+
+    private synchronized BitswapSession sessionOf(Want want) {
+        Pending p = pending.get(want);
+        return p == null ? null : p.session;
+    }
+
+    private synchronized void forget(Want want) {
+        Pending p = pending.remove(want);
+        if (p == null)
+            return;
+        if (p.timer != null)
+            p.timer.cancel(false);
+        p.session.cancel(want);
+    }
+
+    // Must hold the lock
+    private void schedule(Pending p) {
+        if (p.timer != null)
+            p.timer.cancel(false);
+        long delay = retryDelayMillis(p.attempts);
+        p.due = System.currentTimeMillis() + delay;
+        p.timer = timers.schedule(() -> retry(p), delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void retry(Pending fired) {
+        // timer threads outlive the requests that scheduled them
+        TraceLogger.getInstance().clearTrace();
+        List<Want> due = new ArrayList<>();
+        synchronized (this) {
+            if (pending.get(fired.want) != fired)
+                return;
+            long cutoff = System.currentTimeMillis() + BATCH_WINDOW_MILLIS;
+            Set<Want> stillWanted = currentWants.apply(fired.session.peers());
+            for (Pending p : new ArrayList<>(pending.values())) {
+                if (p.session != fired.session || p.due > cutoff)
+                    continue;
+                // the engine decides when a want has expired
+                if (! stillWanted.contains(p.want)) {
+                    forget(p.want);
+                    continue;
+                }
+                due.add(p.want);
+                p.attempts++;
+                schedule(p);
+            }
+        }
+        try {
+            fired.session.retry(due);
+        } catch (Exception e) {
+            LOG.log(Level.FINE, "Error retrying wants", e);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package org.peergos.protocol.dht;
+
+import com.google.protobuf.*;
+import io.libp2p.core.*;
+import io.libp2p.core.multiformats.*;
+import org.peergos.protocol.dht.pb.*;
+import org.peergos.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.stream.*;
+
+/**
+ * The closer peers we put in responses to FIND_NODE, GET_PROVIDERS and
+ * GET_VALUE requests, ready built.
+ *
+ * Each peer's protobuf entry, with only its public addresses, is built once and
+ * reused until it expires, so a peer's changed addresses are picked up within
+ * the expiry time. The entries for recently requested keys are cached until
+ * the routing table changes or they expire.
+ */
+class CloserPeersCache {
+    private static final long EXPIRY_MILLIS = 30_000;
+    private static final int MAX_PEERS = 10_000;
+    private static final int MAX_KEYS = 1_000;
+
+    private static final class Entry<V> {
+        final V value;
+        final long version, expiry;
+
+        Entry(V value, long version, long expiry) {
+            this.value = value;
+            this.version = version;
+            this.expiry = expiry;
+        }
+    }
+
+    private final RoutingTable table;
+    private final Function<PeerId, Collection<Multiaddr>> addresses;
+    private final Predicate<Multiaddr> isPublic;
+    // empty for peers with no known addresses, which are left out
+    private final Map<PeerId, Entry<Optional<Dht.Message.Peer>>> peers = new ConcurrentHashMap<>();
+    // guarded by itself
+    private final LRUCache<Pair<ByteString, Integer>, Entry<List<Dht.Message.Peer>>> byKey = new LRUCache<>(MAX_KEYS);
+
+    CloserPeersCache(RoutingTable table,
+                     Function<PeerId, Collection<Multiaddr>> addresses,
+                     Predicate<Multiaddr> isPublic) {
+        this.table = table;
+        this.addresses = addresses;
+        this.isPublic = isPublic;
+    }
+
+    /**
+     * @return Entries for up to k of the peers closest to the key, closest first.
+     */
+    List<Dht.Message.Peer> closest(ByteString key, int k) {
+        long now = System.currentTimeMillis();
+        // read before the table, so a change during the query invalidates the result
+        long version = table.version();
+        Pair<ByteString, Integer> cacheKey = new Pair<>(key, k);
+        synchronized (byKey) {
+            Entry<List<Dht.Message.Peer>> cached = byKey.get(cacheKey);
+            if (cached != null && cached.version == version && cached.expiry > now)
+                return cached.value;
+        }
+        List<Dht.Message.Peer> res = table.closest(key.toByteArray(), k).stream()
+                .map(p -> peer(p, now))
+                .flatMap(Optional::stream)
+                .collect(Collectors.toUnmodifiableList());
+        synchronized (byKey) {
+            byKey.put(cacheKey, new Entry<>(res, version, now + EXPIRY_MILLIS));
+        }
+        return res;
+    }
+
+    /**
+     * @return Entries for up to k of the peers closest to the key, closest first,
+     *         leaving out the given peer, so we don't tell a peer about itself.
+     */
+    List<Dht.Message.Peer> closest(ByteString key, int k, PeerId excluded) {
+        ByteString id = ByteString.copyFrom(excluded.getBytes());
+        return closest(key, k).stream()
+                .filter(p -> !p.getId().equals(id))
+                .collect(Collectors.toList());
+    }
+
+    private Optional<Dht.Message.Peer> peer(PeerId id, long now) {
+        Entry<Optional<Dht.Message.Peer>> cached = peers.get(id);
+        if (cached != null && cached.expiry > now)
+            return cached.value;
+        Collection<Multiaddr> addrs = addresses.apply(id);
+        Optional<Dht.Message.Peer> entry = addrs.isEmpty() ?
+                Optional.empty() :
+                Optional.of(Dht.Message.Peer.newBuilder()
+                        .setId(ByteString.copyFrom(id.getBytes()))
+                        .addAllAddrs(addrs.stream()
+                                .filter(isPublic)
+                                .map(a -> ByteString.copyFrom(a.serialize()))
+                                .collect(Collectors.toList()))
+                        .build());
+        if (peers.size() >= MAX_PEERS)
+            peers.clear();
+        peers.put(id, new Entry<>(entry, 0, now + EXPIRY_MILLIS));
+        return entry;
+    }
+}
@@ -0,0 +1,324 @@
+package org.peergos.protocol.dht;
+
+import com.google.protobuf.*;
+import io.ipfs.multibase.binary.Base32;
+import io.ipfs.multihash.Multihash;
+import io.prometheus.client.*;
+import org.peergos.protocol.dht.pb.*;
+import org.peergos.util.*;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.logging.*;
+
+/**
+ * Provider records stored in H2, so they survive a restart.
+ *
+ * Each record expires 48 hours after it was last added, the provider record
+ * lifetime of the IPFS DHT, and expired records are deleted in the background.
+ * New records are written in batches by a background thread, so a flood of
+ * ADD_PROVIDER requests costs one transaction per batch rather than one per
+ * record. Records waiting to be written are still returned by lookups. If the
+ * database falls behind, new records past a limit are dropped rather than
+ * queued, which costs at most a lookup that misses a provider until it
+ * announces again. The most recently read keys are kept in memory, so repeat
+ * lookups don't go to the database.
+ */
+public class DatabaseProviderStore implements ProviderStore {
+    private static final Logger LOG = Logging.LOG();
+    public static final long PROVIDER_TTL_MILLIS = 48 * 3600_000L;
+    private static final long GC_PERIOD_MILLIS = 3600_000L;
+    private static final int MAX_BATCH = 1_000;
+    private static final int MAX_CACHED_KEYS = 10_000;
+    // records waiting to be written, beyond which new ones are dropped
+    private static final int MAX_PENDING_RECORDS = 100_000;
+
+    private static final Counter droppedRecords = Counter.build()
+            .name("dht_provider_records_dropped_total")
+            .help("Total provider records dropped because too many were waiting to be written")
+            .register();
+
+    private final String connectionStringPrefix = "jdbc:h2:";
+    private final String PROVIDER_TABLE = "providers";
+    private final int SIZE_OF_KEY = 100;
+
+    private static final class Provider {
+        final Dht.Message.Peer peer;
+        final long expiry;
+
+        Provider(Dht.Message.Peer peer, long expiry) {
+            this.peer = peer;
+            this.expiry = expiry;
+        }
+    }
+
+    private final Connection connection;
+    private final long ttlMillis;
+    // records not yet written, keyed by multihash then provider id
+    private final Map<Multihash, Map<ByteString, Provider>> pending = new ConcurrentHashMap<>();
+    // the number of records in pending
+    private final AtomicInteger pendingRecords = new AtomicInteger();
+    // each key in pending, once
+    private final BlockingQueue<Multihash> toWrite = new LinkedBlockingQueue<>();
+    // guarded by itself
+    private final LRUCache<Multihash, Map<ByteString, Provider>> cache = new LRUCache<>(MAX_CACHED_KEYS);
+    // incremented after each write, so a read that overlaps one doesn't cache what it read; guarded by cache
+    private long writes = 0;
+    private volatile boolean closed = false;
+    private final Thread writer, collector;
+
+    /*
+     * @param location - location of the database on disk (See: https://h2database.com/html/cheatSheet.html for options)
+     */
+    public DatabaseProviderStore(String location, long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+        try {
+            this.connection = DriverManager.getConnection(connectionStringPrefix + location);
+            this.connection.setAutoCommit(true);
+            createTable();
+        } catch (SQLException sqle) {
+            throw new IllegalStateException(sqle);
+        }
+        this.writer = new Thread(this::writeLoop, "Provider store writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+        this.collector = new Thread(this::collectLoop, "Provider store GC");
+        this.collector.setDaemon(true);
+        this.collector.start();
+    }
+
+    public DatabaseProviderStore(String location) {
+        this(location, PROVIDER_TTL_MILLIS);
+    }
+
+    private void createTable() throws SQLException {
+        String createSQL = "create table if not exists " + PROVIDER_TABLE
+                + " (hash VARCHAR(" + SIZE_OF_KEY + ") not null, peerId VARCHAR(" + SIZE_OF_KEY + ") not null, "
+                + "peer BLOB not null, expiryMillis BIGINT not null, primary key (hash, peerId));";
+        String indexSQL = "create index if not exists providers_expiry on " + PROVIDER_TABLE + " (expiryMillis);";
+        try (Statement create = connection.createStatement()) {
+            create.execute(createSQL);
+            create.execute(indexSQL);
+        }
+    }
+
+    private static String toKey(byte[] bytes) {
+        String padded = new Base32().encodeAsString(bytes);
+        int padStart = padded.indexOf("=");
+        return padStart > 0 ? padded.substring(0, padStart) : padded;
+    }
+
+    @Override
+    public void addProvider(Multihash block, Dht.Message.Peer peer) {
+        // a cid and its multihash are the same key
+        Multihash m = block.bareMultihash();
+        Provider p = new Provider(peer, System.currentTimeMillis() + ttlMillis);
+        // atomic with the writer removing written records
+        pending.compute(m, (k, providers) -> {
+            if (providers == null || !providers.containsKey(peer.getId())) {
+                if (pendingRecords.get() >= MAX_PENDING_RECORDS) {
+                    droppedRecords.inc();
+                    return providers;
+                }
+                pendingRecords.incrementAndGet();
+            }
+            if (providers == null) {
+                providers = new ConcurrentHashMap<>();
+                toWrite.add(m);
+            }
+            providers.put(peer.getId(), p);
+            return providers;
+        });
+    }
+
+    /**
+     * @return The number of records waiting to be written.
+     */
+    public int pendingRecords() {
+        return pendingRecords.get();
+    }
+
+    @Override
+    public Set<Dht.Message.Peer> getProviders(Multihash block) {
+        Multihash m = block.bareMultihash();
+        long now = System.currentTimeMillis();
+        Map<ByteString, Dht.Message.Peer> res = new HashMap<>();
+        // pending first, as records only leave it once they are in the database and cache
+        Map<ByteString, Provider> unwritten = pending.get(m);
+        if (unwritten != null)
+            unwritten.forEach((id, p) -> {
+                if (p.expiry > now)
+                    res.put(id, p.peer);
+            });
+        Map<ByteString, Provider> stored;
+        long writesBefore;
+        synchronized (cache) {
+            stored = cache.get(m);
+            writesBefore = writes;
+        }
+        if (stored == null) {
+            stored = read(m);
+            synchronized (cache) {
+                // a write since we started reading may not be in what we read
+                if (writes == writesBefore)
+                    cache.putIfAbsent(m, stored);
+            }
+        }
+        stored.forEach((id, p) -> {
+            if (p.expiry > now)
+                res.putIfAbsent(id, p.peer);
+        });
+        return new HashSet<>(res.values());
+    }
+
+    private Map<ByteString, Provider> read(Multihash m) {
+        String selectSQL = "SELECT peer, expiryMillis FROM " + PROVIDER_TABLE + " WHERE hash=? AND expiryMillis>?";
+        Map<ByteString, Provider> res = new ConcurrentHashMap<>();
+        try (PreparedStatement pstmt = connection.prepareStatement(selectSQL)) {
+            pstmt.setString(1, toKey(m.toBytes()));
+            pstmt.setLong(2, System.currentTimeMillis());
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    Dht.Message.Peer peer = Dht.Message.Peer.parseFrom(rs.getBytes("peer"));
+                    res.put(peer.getId(), new Provider(peer, rs.getLong("expiryMillis")));
+                }
+            }
+        } catch (SQLException | InvalidProtocolBufferException e) {
+            throw new IllegalStateException(e);
+        }
+        return res;
+    }
+
+    private void writeLoop() {
+        List<Multihash> batch = new ArrayList<>();
+        while (!closed) {
+            try {
+                Multihash first = toWrite.poll(1, TimeUnit.SECONDS);
+                if (first == null)
+                    continue;
+                batch.add(first);
+                toWrite.drainTo(batch, MAX_BATCH - 1);
+                write(new LinkedHashSet<>(batch));
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                LOG.log(Level.WARNING, "Couldn't write provider records", e);
+                // they are still pending, so try again shortly
+                toWrite.addAll(batch);
+                try {
+                    Thread.sleep(1_000);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void write(Set<Multihash> keys) throws SQLException {
+        Map<Multihash, Map<ByteString, Provider>> written = new HashMap<>();
+        String mergeSQL = "MERGE INTO " + PROVIDER_TABLE + " (hash, peerId, peer, expiryMillis) VALUES (?, ?, ?, ?);";
+        synchronized (connection) {
+            connection.setAutoCommit(false);
+            try (PreparedStatement pstmt = connection.prepareStatement(mergeSQL)) {
+                for (Multihash m : keys) {
+                    Map<ByteString, Provider> providers = pending.get(m);
+                    if (providers == null)
+                        continue;
+                    Map<ByteString, Provider> copy = new HashMap<>(providers);
+                    written.put(m, copy);
+                    String hash = toKey(m.toBytes());
+                    for (Map.Entry<ByteString, Provider> e : copy.entrySet()) {
+                        pstmt.setString(1, hash);
+                        pstmt.setString(2, toKey(e.getKey().toByteArray()));
+                        pstmt.setBytes(3, e.getValue().peer.toByteArray());
+                        pstmt.setLong(4, e.getValue().expiry);
+                        pstmt.addBatch();
+                    }
+                }
+                pstmt.executeBatch();
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        }
+        synchronized (cache) {
+            writes++;
+            for (Map.Entry<Multihash, Map<ByteString, Provider>> e : written.entrySet()) {
+                Map<ByteString, Provider> cached = cache.get(e.getKey());
+                if (cached != null)
+                    cached.putAll(e.getValue());
+            }
+        }
+        for (Map.Entry<Multihash, Map<ByteString, Provider>> e : written.entrySet()) {
+            pending.computeIfPresent(e.getKey(), (k, stillPending) -> {
+                // leave any record re-added while we were writing
+                e.getValue().forEach((id, p) -> {
+                    if (stillPending.remove(id, p))
+                        pendingRecords.decrementAndGet();
+                });
+                if (stillPending.isEmpty())
+                    return null;
+                toWrite.add(k);
+                return stillPending;
+            });
+        }
+    }
+
+    private void collectLoop() {
+        while (!closed) {
+            try {
+                Thread.sleep(GC_PERIOD_MILLIS);
+                collectGarbage();
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                LOG.log(Level.WARNING, "Couldn't delete expired provider records", e);
+            }
+        }
+    }
+
+    /**
+     * Deletes expired provider records.
+     *
+     * @return The number of records deleted.
+     */
+    public int collectGarbage() throws SQLException {
+        long now = System.currentTimeMillis();
+        int deleted;
+        String deleteSQL = "DELETE FROM " + PROVIDER_TABLE + " WHERE expiryMillis<=?";
+        synchronized (connection) {
+            try (PreparedStatement pstmt = connection.prepareStatement(deleteSQL)) {
+                pstmt.setLong(1, now);
+                deleted = pstmt.executeUpdate();
+            }
+        }
+        synchronized (cache) {
+            for (Map<ByteString, Provider> providers : cache.values())
+                providers.values().removeIf(p -> p.expiry <= now);
+            cache.values().removeIf(Map::isEmpty);
+        }
+        return deleted;
+    }
+
+    @Override
+    public synchronized void close() throws Exception {
+        if (closed)
+            return;
+        closed = true;
+        writer.interrupt();
+        collector.interrupt();
+        writer.join();
+        // write anything still queued
+        Set<Multihash> remaining = new LinkedHashSet<>(pending.keySet());
+        if (!remaining.isEmpty())
+            write(remaining);
+        connection.close();
+    }
+}
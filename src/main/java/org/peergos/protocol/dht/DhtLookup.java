@@ -0,0 +1,259 @@
+package org.peergos.protocol.dht;
+
+import io.ipfs.multihash.Multihash;
+import org.peergos.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/**
+ * One iterative Kademlia lookup, run without blocking a thread. At most alpha
+ * queries are in flight at once, and every answer immediately starts a query to
+ * the closest peer not yet asked. The lookup ends when the k closest peers seen
+ * have all answered or failed, or as soon as a response says it has found
+ * what it was looking for.
+ *
+ * A query that takes longer than peers usually take to answer stops counting
+ * towards alpha, and the next closest peer is asked in its place. A late answer
+ * is still used.
+ *
+ * As in S/Kademlia, the lookup can be split into disjoint paths, each with its
+ * own alpha queries and k closest peers, which never query the same peer. This
+ * stops a few misbehaving peers from steering the whole lookup.
+ *
+ * Distances are the XOR of the sha256 of the key and of each peer id.
+ *
+ * @param <R> The response to each query.
+ */
+class DhtLookup<R> {
+
+    private enum State { NEW, WAITING, SLOW, ANSWERED }
+
+    // Marks queries slow. Its tasks only update lookup state and send queries, which never block.
+    private static final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread t = new Thread(r, "DHT lookup timer");
+        t.setDaemon(true);
+        return t;
+    });
+    static {
+        // most queries are answered before they would be slow
+        timer.setRemoveOnCancelPolicy(true);
+    }
+
+    private static final class Candidate {
+        final byte[] distance;
+        final PeerAddresses peer;
+        final Path path;
+        State state = State.NEW;
+        long queriedAt;
+        volatile ScheduledFuture<?> slowTimer;
+
+        Candidate(byte[] distance, PeerAddresses peer, Path path) {
+            this.distance = distance;
+            this.peer = peer;
+            this.path = path;
+        }
+    }
+
+    private static final Comparator<Candidate> CLOSEST_FIRST = (a, b) -> {
+        int diff = Arrays.compareUnsigned(a.distance, b.distance);
+        if (diff != 0)
+            return diff;
+        return Arrays.compareUnsigned(a.peer.peerId.toBytes(), b.peer.peerId.toBytes());
+    };
+
+    private static final class Path {
+        // failed peers are removed
+        final TreeSet<Candidate> candidates = new TreeSet<>(CLOSEST_FIRST);
+        // queries that are neither answered nor slow
+        int inFlight = 0;
+    }
+
+    private final byte[] target;
+    private final int alpha, k;
+    private final Function<PeerAddresses, CompletableFuture<R>> query;
+    private final Function<R, List<PeerAddresses>> closerPeers;
+    private final BiPredicate<PeerAddresses, R> onAnswer;
+    private final Predicate<PeerAddresses> dialable;
+    private final QueryLatency latency;
+    private final CompletableFuture<List<PeerAddresses>> result = new CompletableFuture<>();
+    // guarded by this
+    private final List<Path> paths = new ArrayList<>();
+    private final Set<Multihash> seen = new HashSet<>();
+
+    /**
+     * @param key         The key being looked up, before hashing.
+     * @param alpha       The most queries in flight at once on each path.
+     * @param k           The number of closest peers on each path that must answer before the lookup ends.
+     * @param paths       The number of disjoint paths.
+     * @param latency     How long queries take, updated with every answer.
+     * @param query       Sends the query to a peer. Must not block.
+     * @param closerPeers Extracts the closer peers from an answer.
+     * @param onAnswer    Called with each answer, one at a time; returns true when
+     *                    the lookup can stop.
+     * @param dialable    Filters out peers we can't dial.
+     */
+    DhtLookup(byte[] key,
+              int alpha,
+              int k,
+              int paths,
+              QueryLatency latency,
+              Function<PeerAddresses, CompletableFuture<R>> query,
+              Function<R, List<PeerAddresses>> closerPeers,
+              BiPredicate<PeerAddresses, R> onAnswer,
+              Predicate<PeerAddresses> dialable) {
+        this.target = Hash.sha256(key);
+        this.alpha = alpha;
+        this.k = k;
+        this.latency = latency;
+        this.query = query;
+        this.closerPeers = closerPeers;
+        this.onAnswer = onAnswer;
+        this.dialable = dialable;
+        for (int i = 0; i < Math.max(1, paths); i++)
+            this.paths.add(new Path());
+    }
+
+    /**
+     * @param seeds The closest peers we already know about, which are dealt out
+     *              between the paths, closest first.
+     * @return The k closest peers that answered, closest first.
+     */
+    CompletableFuture<List<PeerAddresses>> run(Collection<PeerAddresses> seeds) {
+        List<PeerAddresses> sorted = new ArrayList<>(seeds);
+        sorted.sort(Comparator.comparing(this::distance, Arrays::compareUnsigned));
+        synchronized (this) {
+            int added = 0;
+            for (PeerAddresses seed : sorted) {
+                if (addCandidate(seed, paths.get(added % paths.size())))
+                    added++;
+            }
+        }
+        pump();
+        return result;
+    }
+
+    private byte[] distance(PeerAddresses peer) {
+        byte[] peerKey = Hash.sha256(peer.peerId.toBytes());
+        byte[] distance = new byte[target.length];
+        for (int i = 0; i < distance.length; i++)
+            distance[i] = (byte) (peerKey[i] ^ target[i]);
+        return distance;
+    }
+
+    // Must hold the lock
+    private boolean addCandidate(PeerAddresses peer, Path path) {
+        if (!seen.add(peer.peerId) || !dialable.test(peer))
+            return false;
+        return path.candidates.add(new Candidate(distance(peer), peer, path));
+    }
+
+    private void pump() {
+        List<Candidate> toQuery = new ArrayList<>();
+        synchronized (this) {
+            if (result.isDone())
+                return;
+            boolean unfinished = false;
+            for (Path path : paths) {
+                int rank = 0;
+                for (Candidate c : path.candidates) {
+                    // slow peers are replaced by the next closest
+                    if (c.state == State.SLOW)
+                        continue;
+                    if (rank++ >= k)
+                        break;
+                    if (c.state == State.NEW) {
+                        if (path.inFlight >= alpha) {
+                            unfinished = true;
+                            break;
+                        }
+                        c.state = State.WAITING;
+                        path.inFlight++;
+                        toQuery.add(c);
+                    } else if (c.state == State.WAITING)
+                        unfinished = true;
+                }
+                if (path.inFlight > 0)
+                    unfinished = true;
+            }
+            if (!unfinished) {
+                finish();
+                return;
+            }
+        }
+        long slowAfter = latency.slowAfterMillis();
+        for (Candidate c : toQuery) {
+            c.queriedAt = System.nanoTime();
+            CompletableFuture<R> answer;
+            try {
+                answer = query.apply(c.peer);
+            } catch (Exception e) {
+                answer = CompletableFuture.failedFuture(e);
+            }
+            c.slowTimer = timer.schedule(() -> slow(c), slowAfter, TimeUnit.MILLISECONDS);
+            answer.whenComplete((r, t) -> answered(c, r, t));
+        }
+    }
+
+    private void slow(Candidate c) {
+        synchronized (this) {
+            if (result.isDone() || c.state != State.WAITING)
+                return;
+            c.state = State.SLOW;
+            c.path.inFlight--;
+        }
+        pump();
+    }
+
+    private void answered(Candidate c, R response, Throwable error) {
+        boolean failed = error != null || response == null;
+        c.slowTimer.cancel(false);
+        if (!failed)
+            latency.record(System.nanoTime() - c.queriedAt);
+        synchronized (this) {
+            if (c.state == State.WAITING)
+                c.path.inFlight--;
+            if (result.isDone())
+                return;
+            if (failed) {
+                c.path.candidates.remove(c);
+            } else {
+                c.state = State.ANSWERED;
+                boolean done;
+                try {
+                    done = onAnswer.test(c.peer, response);
+                } catch (Exception e) {
+                    done = false;
+                }
+                if (done) {
+                    finish();
+                    return;
+                }
+                closerPeers.apply(response).forEach(p -> addCandidate(p, c.path));
+            }
+        }
+        pump();
+    }
+
+    // Must hold the lock
+    private void finish() {
+        List<Candidate> answered = new ArrayList<>();
+        for (Path path : paths) {
+            int rank = 0;
+            for (Candidate c : path.candidates) {
+                if (c.state == State.SLOW)
+                    continue;
+                if (rank++ >= k)
+                    break;
+                if (c.state == State.ANSWERED)
+                    answered.add(c);
+            }
+        }
+        answered.sort(CLOSEST_FIRST);
+        List<PeerAddresses> closest = new ArrayList<>();
+        for (Candidate c : answered.subList(0, Math.min(k, answered.size())))
+            closest.add(c.peer);
+        result.complete(closest);
+    }
+}
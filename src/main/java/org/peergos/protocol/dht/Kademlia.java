@@ -1,6 +1,5 @@
 package org.peergos.protocol.dht;
 
-import com.offbynull.kademlia.*;
 import io.ipfs.multiaddr.*;
 import io.ipfs.multihash.Multihash;
 import io.libp2p.core.*;
@@ -14,6 +13,9 @@ import org.peergos.*;
 import org.peergos.protocol.dnsaddr.*;
 import org.peergos.protocol.ipns.*;
 import org.peergos.util.Logging;
+import org.peergos.util.Pair;
+import org.peergos.util.TraceLogger;
+import org.peergos.util.TraceType;
 
 import java.time.*;
 import java.util.*;
@@ -30,8 +32,20 @@ public class Kademlia extends StrictProtocolBinding<KademliaController> implemen
     public static final int BOOTSTRAP_PERIOD_MILLIS = 300_000;
     public static final String WAN_DHT_ID = "/ipfs/kad/1.0.0";
     public static final String LAN_DHT_ID = "/ipfs/lan/kad/1.0.0";
+    // Queries in flight at once in each lookup.
+    private static final int ALPHA = 3;
+    // A lookup ends once this many of the closest peers it has heard of have answered.
+    private static final int K = 20;
+    private static final int IPNS_REPLICAS = 30;
+    private static final long DIAL_TIMEOUT_MILLIS = 2_000;
+    private static final long QUERY_TIMEOUT_MILLIS = 2_000;
+    // Lookups never give up on a peer as slow any sooner than this.
+    private static final long MIN_SLOW_QUERY_MILLIS = 250;
     private final KademliaEngine engine;
     private final boolean localDht;
+    private final ConcurrentHashMap<Pair<Multihash, Integer>, ProviderWalk> providerWalks = new ConcurrentHashMap<>();
+    private final QueryLatency queryLatency = new QueryLatency(MIN_SLOW_QUERY_MILLIS, DIAL_TIMEOUT_MILLIS + QUERY_TIMEOUT_MILLIS);
+    private volatile int lookupPaths = 1;
     private AddressBook addressBook;
 
     public Kademlia(KademliaEngine dht, boolean localOnly) {
@@ -45,6 +59,17 @@ public class Kademlia extends StrictProtocolBinding<KademliaController> implemen
         this.addressBook = addrs;
     }
 
+    /**
+     * @param paths The number of disjoint paths each lookup takes, as in S/Kademlia.
+     *              More paths are harder for malicious peers to divert, at the
+     *              cost of more queries.
+     */
+    public void setLookupPaths(int paths) {
+        if (paths < 1)
+            throw new IllegalArgumentException("Lookups need at least one path");
+        this.lookupPaths = paths;
+    }
+
     public int bootstrapRoutingTable(Host host, List<MultiAddress> addrs, Predicate<String> filter) {
         List<String> resolved = addrs.stream()
                 .parallel()
@@ -57,17 +82,21 @@ public class Kademlia extends StrictProtocolBinding<KademliaController> implemen
                 })
                 .filter(filter)
                 .collect(Collectors.toList());
-        List<? extends Future<? extends KademliaController>> futures = resolved.stream()
+        List<CompletableFuture<? extends KademliaController>> futures = resolved.stream()
                 .map(addr -> {
                     Multiaddr addrWithPeer = Multiaddr.fromString(addr);
                     addressBook.setAddrs(addrWithPeer.getPeerId(), 0, addrWithPeer);
-                    return ioExec.submit(() -> dial(host, addrWithPeer).getController().join());
+                    try {
+                        return dial(host, addrWithPeer).getController().orTimeout(5, TimeUnit.SECONDS);
+                    } catch (Exception e) {
+                        return CompletableFuture.<KademliaController>failedFuture(e);
+                    }
                 })
                 .collect(Collectors.toList());
         int successes = 0;
-        for (Future<? extends KademliaController> future : futures) {
+        for (CompletableFuture<? extends KademliaController> future : futures) {
             try {
-                future.get(5, TimeUnit.SECONDS);
+                future.join();
                 successes++;
             } catch (Exception e) {
             }
@@ -95,17 +124,25 @@ public class Kademlia extends StrictProtocolBinding<KademliaController> implemen
         running.set(false);
     }
 
-    private boolean connectTo(Host us, PeerAddresses peer) {
+    /**
+     * Closes the provider store, which may still be writing records.
+     */
+    public void close() throws Exception {
+        engine.close();
+    }
+
+    private CompletableFuture<Boolean> connectTo(Host us, PeerAddresses peer) {
         try {
-            new Identify().dial(us, PeerId.fromBase58(peer.peerId.toBase58()), getPublic(peer)).getController().join()
-                    .id().join();
-            return true;
+            return new Identify().dial(us, PeerId.fromBase58(peer.peerId.toBase58()), getPublic(peer)).getController()
+                    .thenCompose(c -> c.id())
+                    .thenApply(id -> true)
+                    .exceptionally(t -> {
+                        LOG.fine("Couldn't connect to " + peer.peerId);
+                        return false;
+                    });
         } catch (Exception e) {
-            if (e.getCause() instanceof NothingToCompleteException || e.getCause() instanceof NonCompleteException)
-                LOG.fine("Couldn't connect to " + peer.peerId);
-            else
-                e.printStackTrace();
-            return false;
+            LOG.fine("Couldn't connect to " + peer.peerId);
+            return CompletableFuture.completedFuture(false);
         }
     }
 
@@ -119,32 +156,27 @@ public class Kademlia extends StrictProtocolBinding<KademliaController> implemen
         // lookup our own peer id to keep our nearest neighbours up-to-date,
         // and connect to all of them, so they know about our addresses
         List<PeerAddresses> closestToUs = findClosestPeers(Multihash.deserialize(us.getPeerId().getBytes()), 20, us);
-        int connectedClosest = 0;
-        for (PeerAddresses peer : closestToUs) {
-            if (connectTo(us, peer))
-                connectedClosest++;
-        }
-    }
-
-    static class RoutingEntry {
-        public final Id key;
-        public final PeerAddresses addresses;
-
-        public RoutingEntry(Id key, PeerAddresses addresses) {
-            this.key = key;
-            this.addresses = addresses;
-        }
+        CompletableFuture.allOf(closestToUs.stream()
+                .map(peer -> connectTo(us, peer))
+                .toArray(CompletableFuture[]::new))
+                .join();
     }
 
-    private int compareKeys(RoutingEntry a, RoutingEntry b, Id keyId) {
-        int prefixDiff = b.key.getSharedPrefixLength(keyId) - a.key.getSharedPrefixLength(keyId);
-        if (prefixDiff != 0)
-            return prefixDiff;
-        return a.addresses.peerId.toBase58().compareTo(b.addresses.peerId.toBase58());
+    /**
+     * Dials a peer and sends it one query, failing if either takes too long.
+     */
+    private <R> CompletableFuture<R> queryPeer(PeerAddresses peer,
+                                               Host us,
+                                               Function<KademliaController, CompletableFuture<R>> query) {
+        return dialPeer(peer, us)
+                .orTimeout(DIAL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+                .thenCompose(c -> query.apply(c).orTimeout(QUERY_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS))
+                .whenComplete((r, t) -> {
+                    if (t != null)
+                        LOG.fine("Couldn't query " + peer.peerId + " addrs: " + peer.addresses);
+                });
     }
 
-    private final ExecutorService ioExec = Executors.newFixedThreadPool(16);
-
     public List<PeerAddresses> findClosestPeers(Multihash peerIdkey, int maxCount, Host us) {
         if (maxCount == 1) {
             Collection<Multiaddr> existing = addressBook.get(PeerId.fromBase58(peerIdkey.toBase58())).join();
@@ -156,140 +188,160 @@ public class Kademlia extends StrictProtocolBinding<KademliaController> implemen
     }
 
     public List<PeerAddresses> findClosestPeers(byte[] key, int maxCount, Host us) {
-        Id keyId = Id.create(Hash.sha256(key), 256);
-        SortedSet<RoutingEntry> closest = Collections
-                .synchronizedSortedSet(new TreeSet<>((a, b) -> compareKeys(a, b, keyId)));
-        SortedSet<RoutingEntry> toQuery = Collections
-                .synchronizedSortedSet(new TreeSet<>((a, b) -> compareKeys(a, b, keyId)));
-        List<PeerAddresses> localClosest = engine.getKClosestPeers(key, Math.max(6, maxCount));
+        return findClosestPeersAsync(key, maxCount, us).join();
+    }
+
+    /**
+     * Finds the peers closest to a key. If only one is wanted, the lookup stops
+     * as soon as we hear of the peer whose id is the key.
+     */
+    public CompletableFuture<List<PeerAddresses>> findClosestPeersAsync(byte[] key, int maxCount, Host us) {
+        List<PeerAddresses> localClosest = engine.getKClosestPeers(key, Math.max(K, maxCount));
         if (maxCount == 1) {
             Optional<PeerAddresses> match = localClosest.stream().filter(p -> Arrays.equals(p.peerId.toBytes(), key))
                     .findFirst();
             if (match.isPresent())
-                return Collections.singletonList(match.get());
-        }
-        closest.addAll(localClosest.stream()
-                .map(p -> new RoutingEntry(Id.create(Hash.sha256(p.peerId.toBytes()), 256), p))
-                .collect(Collectors.toList()));
-        toQuery.addAll(closest);
-        Set<Multihash> queried = Collections.synchronizedSet(new HashSet<>());
-        int queryParallelism = 3;
-        while (true) {
-            List<RoutingEntry> thisRound = toQuery.stream()
-                    .filter(r -> hasTransportOverlap(r.addresses)) // don't waste time trying to dial nodes we can't
-                    .limit(queryParallelism)
-                    .collect(Collectors.toList());
-            List<Future<List<PeerAddresses>>> futures = thisRound.stream()
-                    .map(r -> {
-                        toQuery.remove(r);
-                        queried.add(r.addresses.peerId);
-                        return ioExec.submit(() -> getCloserPeers(key, r.addresses, us).join());
-                    })
-                    .collect(Collectors.toList());
-            boolean foundCloser = false;
-            for (Future<List<PeerAddresses>> future : futures) {
-                try {
-                    List<PeerAddresses> result = future.get();
-                    for (PeerAddresses peer : result) {
-                        if (!queried.contains(peer.peerId)) {
-                            // exit early if we are looking for the specific node
-                            if (maxCount == 1 && Arrays.equals(peer.peerId.toBytes(), key))
-                                return Collections.singletonList(peer);
-                            queried.add(peer.peerId);
-                            Id peerKey = Id.create(Hash.sha256(peer.peerId.toBytes()), 256);
-                            RoutingEntry e = new RoutingEntry(peerKey, peer);
-                            toQuery.add(e);
-                            closest.add(e);
-                            foundCloser = true;
-                        }
-                    }
-                } catch (Exception e) {
-                    // couldn't contact peer
-                }
-            }
-            // if no new peers in top k were returned we are done
-            if (!foundCloser)
-                break;
+                return CompletableFuture.completedFuture(Collections.singletonList(match.get()));
         }
-        return closest.stream()
-                .limit(maxCount).map(r -> r.addresses)
-                .collect(Collectors.toList());
+        AtomicReference<PeerAddresses> exact = new AtomicReference<>();
+        DhtLookup<List<PeerAddresses>> lookup = new DhtLookup<>(key, ALPHA, Math.max(K, maxCount),
+                lookupPaths, queryLatency,
+                peer -> queryPeer(peer, us, c -> c.closerPeers(key)),
+                closer -> closer,
+                (peer, closer) -> {
+                    if (maxCount != 1)
+                        return false;
+                    Optional<PeerAddresses> match = closer.stream()
+                            .filter(p -> Arrays.equals(p.peerId.toBytes(), key))
+                            .findFirst();
+                    match.ifPresent(exact::set);
+                    return match.isPresent();
+                },
+                this::hasTransportOverlap);
+        return lookup.run(localClosest).thenApply(closest -> exact.get() != null ?
+                Collections.singletonList(exact.get()) :
+                closest.subList(0, Math.min(maxCount, closest.size())));
     }
 
     public CompletableFuture<List<PeerAddresses>> findProviders(Multihash block, Host us, int desiredCount) {
+        return findProviders(block, us, desiredCount, p -> {});
+    }
+
+    /**
+     * Finds providers of a block, passing each one to a listener as soon as we
+     * know about it, so it can be used while the lookup carries on. Concurrent
+     * lookups of the same key share one walk of the DHT, and a lookup that joins
+     * a walk is passed the providers it has already found.
+     *
+     * @param onProvider Called once for each distinct provider, possibly
+     *                   concurrently from different threads. Must not block.
+     * @return All the providers found, once the lookup is finished.
+     */
+    public CompletableFuture<List<PeerAddresses>> findProviders(Multihash block,
+                                                                Host us,
+                                                                int desiredCount,
+                                                                Consumer<PeerAddresses> onProvider) {
+        Pair<Multihash, Integer> key = new Pair<>(block.bareMultihash(), desiredCount);
+        ProviderWalk ours = new ProviderWalk();
+        ProviderWalk existing = providerWalks.putIfAbsent(key, ours);
+        if (existing != null) {
+            existing.listen(onProvider);
+            // callers mustn't be able to complete each other's result
+            return existing.result.thenApply(Function.identity());
+        }
+        ours.listen(onProvider);
+        try {
+            walkProviders(block, us, desiredCount, ours).whenComplete((res, err) -> {
+                providerWalks.remove(key, ours);
+                if (err != null)
+                    ours.result.completeExceptionally(err);
+                else
+                    ours.result.complete(res);
+            });
+        } catch (Throwable t) {
+            providerWalks.remove(key, ours);
+            ours.result.completeExceptionally(t);
+        }
+        return ours.result.thenApply(Function.identity());
+    }
+
+    private CompletableFuture<List<PeerAddresses>> walkProviders(Multihash block,
+                                                                 Host us,
+                                                                 int desiredCount,
+                                                                 ProviderWalk walk) {
         byte[] key = block.bareMultihash().toBytes();
-        Id keyId = Id.create(key, 256);
-        List<PeerAddresses> providers = new ArrayList<>();
-        providers.addAll(engine.getProviders(block));
-
-        SortedSet<RoutingEntry> toQuery = new TreeSet<>(
-                (a, b) -> b.key.getSharedPrefixLength(keyId) - a.key.getSharedPrefixLength(keyId));
-        toQuery.addAll(engine.getKClosestPeers(key, 20).stream()
-                .map(p -> new RoutingEntry(Id.create(Hash.sha256(p.peerId.toBytes()), 256), p))
-                .collect(Collectors.toList()));
-
-        Set<Multihash> queried = new HashSet<>();
-        int queryParallelism = 3;
-        while (true) {
-            if (providers.size() >= desiredCount)
-                return CompletableFuture.completedFuture(providers);
-            List<RoutingEntry> queryThisRound = toQuery.stream().limit(queryParallelism).collect(Collectors.toList());
-            toQuery.removeAll(queryThisRound);
-            queryThisRound.forEach(r -> queried.add(r.addresses.peerId));
-            List<CompletableFuture<Providers>> futures = queryThisRound.stream()
-                    .parallel()
-                    .map(r -> {
-                        KademliaController res = null;
-                        try {
-                            res = dialPeer(r.addresses, us).join();
-                            return res.getProviders(block).orTimeout(2, TimeUnit.SECONDS);
-                        } catch (Exception e) {
-                            return null;
-                        }
-                    }).filter(prov -> prov != null)
-                    .collect(Collectors.toList());
-            boolean foundCloser = false;
-            for (CompletableFuture<Providers> future : futures) {
-                try {
-                    Providers newProviders = future.join();
-                    providers.addAll(newProviders.providers);
-                    for (PeerAddresses peer : newProviders.closerPeers) {
-                        if (!queried.contains(peer.peerId)) {
-                            queried.add(peer.peerId);
-                            RoutingEntry e = new RoutingEntry(Id.create(Hash.sha256(peer.peerId.toBytes()), 256), peer);
-                            toQuery.add(e);
-                            foundCloser = true;
-                        }
-                    }
-                } catch (Exception e) {
-                    if (!(e.getCause() instanceof TimeoutException))
-                        e.printStackTrace();
+        walk.found(engine.getProviders(block));
+        if (walk.size() >= desiredCount)
+            return CompletableFuture.completedFuture(walk.providers());
+
+        TraceLogger tracer = TraceLogger.getInstance();
+        TraceLogger.Span span = tracer.startAsyncSpan(TraceType.DHT_LOOKUP_START);
+        Function<KademliaController, CompletableFuture<Providers>> getProviders =
+                tracer.inSpan(span, c -> c.getProviders(block));
+        DhtLookup<Providers> lookup = new DhtLookup<>(key, ALPHA, K, lookupPaths, queryLatency,
+                // hand on providers before the lookup picks the next peers to query
+                peer -> queryPeer(peer, us, getProviders).thenApply(p -> {
+                    walk.found(p.providers);
+                    return p;
+                }),
+                p -> p.closerPeers,
+                (peer, p) -> walk.size() >= desiredCount,
+                this::hasTransportOverlap);
+        CompletableFuture<List<PeerAddresses>> res = lookup.run(engine.getKClosestPeers(key, K))
+                .thenApply(closest -> walk.providers());
+        res.whenComplete((r, t) -> span.close());
+        return res;
+    }
+
+    /**
+     * The providers found so far by one walk of the DHT, and the listeners of
+     * every lookup sharing it. Each listener is passed each provider once,
+     * whether it was found before or after the listener joined.
+     */
+    private static final class ProviderWalk {
+        final CompletableFuture<List<PeerAddresses>> result = new CompletableFuture<>();
+        // guarded by this
+        private final Map<Multihash, PeerAddresses> providers = new LinkedHashMap<>();
+        private final List<Consumer<PeerAddresses>> listeners = new ArrayList<>();
+
+        void listen(Consumer<PeerAddresses> listener) {
+            List<PeerAddresses> known;
+            synchronized (this) {
+                listeners.add(listener);
+                known = new ArrayList<>(providers.values());
+            }
+            for (PeerAddresses provider : known)
+                tell(listener, provider);
+        }
+
+        void found(Collection<PeerAddresses> newProviders) {
+            for (PeerAddresses provider : newProviders) {
+                List<Consumer<PeerAddresses>> toNotify;
+                synchronized (this) {
+                    if (providers.putIfAbsent(provider.peerId, provider) != null)
+                        continue;
+                    toNotify = new ArrayList<>(listeners);
                 }
+                for (Consumer<PeerAddresses> listener : toNotify)
+                    tell(listener, provider);
             }
-            // if no new peers in top k were returned we are done
-            if (!foundCloser)
-                break;
         }
 
-        return CompletableFuture.completedFuture(providers);
-    }
+        synchronized int size() {
+            return providers.size();
+        }
 
-    private CompletableFuture<List<PeerAddresses>> getCloserPeers(byte[] key, PeerAddresses target, Host us) {
-        try {
-            return dialPeer(target, us).orTimeout(2, TimeUnit.SECONDS).join().closerPeers(key);
-        } catch (Exception e) {
-            // we can't dial quic only nodes until it's implemented
-            if (target.addresses.stream().allMatch(a -> a.toString().contains("quic")))
-                return CompletableFuture.completedFuture(Collections.emptyList());
-            if (e.getCause() instanceof NothingToCompleteException || e.getCause() instanceof NonCompleteException) {
-                LOG.fine("Couldn't dial " + target.peerId + " addrs: " + target.addresses);
-            } else if (e.getCause() instanceof TimeoutException)
-                LOG.fine("Timeout dialing " + target.peerId + " addrs: " + target.addresses);
-            else if (e.getCause() instanceof ConnectionClosedException) {
-            } else
-                e.printStackTrace();
+        synchronized List<PeerAddresses> providers() {
+            return new ArrayList<>(providers.values());
+        }
+
+        private static void tell(Consumer<PeerAddresses> listener, PeerAddresses provider) {
+            try {
+                listener.accept(provider);
+            } catch (Exception e) {
+                LOG.log(Level.WARNING, "Provider listener failed", e);
+            }
         }
-        return CompletableFuture.completedFuture(Collections.emptyList());
     }
 
     private Multiaddr[] getPublic(PeerAddresses target) {
@@ -299,21 +351,38 @@ public class Kademlia extends StrictProtocolBinding<KademliaController> implemen
     }
 
     private CompletableFuture<? extends KademliaController> dialPeer(PeerAddresses target, Host us) {
-        // System.out.println("Dialing: " + target.toString() + " " + us.toString());
         Multiaddr[] multiaddrs = target.addresses.stream()
                 .map(a -> Multiaddr.fromString(a.toString()))
                 .filter(a -> !a.has(Protocol.DNS) && !a.has(Protocol.DNS4) && !a.has(Protocol.DNS6))
                 .collect(Collectors.toList()).toArray(new Multiaddr[0]);
-        return dial(us, PeerId.fromBase58(target.peerId.toBase58()), multiaddrs).getController();
+        TraceLogger.Span span = TraceLogger.getInstance().startAsyncSpan(TraceType.DIAL_PEER_START);
+        try {
+            CompletableFuture<? extends KademliaController> controller =
+                    dial(us, PeerId.fromBase58(target.peerId.toBase58()), multiaddrs).getController();
+            controller.whenComplete((c, t) -> span.close());
+            return controller;
+        } catch (RuntimeException e) {
+            span.close();
+            throw e;
+        }
     }
 
     public CompletableFuture<Void> provideBlock(Multihash block, Host us, PeerAddresses ourAddrs) {
-        List<PeerAddresses> closestPeers = findClosestPeers(block, 20, us);
-        List<CompletableFuture<Boolean>> provides = closestPeers.stream()
-                .parallel()
-                .map(p -> dialPeer(p, us).join().provide(block, ourAddrs))
-                .collect(Collectors.toList());
-        return CompletableFuture.allOf(provides.toArray(new CompletableFuture[0]));
+        return findClosestPeersAsync(block.bareMultihash().toBytes(), K, us).thenCompose(closestPeers ->
+                CompletableFuture.allOf(closestPeers.stream()
+                        .map(p -> queryPeer(p, us, c -> c.provide(block, ourAddrs)).exceptionally(t -> false))
+                        .toArray(CompletableFuture[]::new)));
+    }
+
+    /**
+     * Sends a peer provider records for many blocks over one stream, rather than
+     * finding the closest peers to each block separately.
+     */
+    public CompletableFuture<Boolean> provideBlocks(List<Multihash> blocks,
+                                                    PeerAddresses target,
+                                                    Host us,
+                                                    PeerAddresses ourAddrs) {
+        return queryPeer(target, us, c -> c.provide(blocks, ourAddrs)).exceptionally(t -> false);
     }
 
     public CompletableFuture<Integer> publishIpnsValue(PrivKey priv,
@@ -329,23 +398,15 @@ public class Kademlia extends StrictProtocolBinding<KademliaController> implemen
         return publishValue(publisher, signedRecord, us);
     }
 
-    private CompletableFuture<Boolean> putValue(Multihash publisher,
-            byte[] signedRecord,
-            PeerAddresses peer,
-            Host us) {
-        try {
-            KademliaController controller = dialPeer(peer, us).join();
-            return controller.putValue(publisher, signedRecord);
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-        return CompletableFuture.completedFuture(false);
-    }
-
     private boolean hasTransportOverlap(PeerAddresses p) {
         return p.addresses.stream().anyMatch(a -> a.has(Protocol.TCP) && !a.has(Protocol.P2PCIRCUIT));
     }
 
+    /**
+     * Stores a signed IPNS record on the peers closest to its key.
+     *
+     * @return The number of peers that accepted it.
+     */
     public CompletableFuture<Integer> publishValue(Multihash publisher,
             byte[] signedRecord,
             Host us) {
@@ -359,169 +420,49 @@ public class Kademlia extends StrictProtocolBinding<KademliaController> implemen
             engine.addRecord(publisher, parsed.get().value);
         }
 
-        Set<Multihash> publishes = Collections.synchronizedSet(new HashSet<>());
-        int minPublishes = 30;
-
-        Id keyId = Id.create(Hash.sha256(key), 256);
-        SortedSet<RoutingEntry> toQuery = new TreeSet<>((a, b) -> compareKeys(a, b, keyId));
-        List<PeerAddresses> localClosest = engine.getKClosestPeers(key, minPublishes);
-        int queryParallelism = 3;
-        toQuery.addAll(localClosest.stream()
-                .limit(queryParallelism)
-                .map(p -> new RoutingEntry(Id.create(Hash.sha256(p.peerId.toBytes()), 256), p))
-                .collect(Collectors.toList()));
-        Set<Multihash> queried = Collections.synchronizedSet(new HashSet<>());
-        while (!toQuery.isEmpty()) {
-            int remaining = toQuery.size() - 3;
-            List<RoutingEntry> thisRound = toQuery.stream()
-                    .filter(r -> hasTransportOverlap(r.addresses)) // don't waste time trying to dial nodes we can't
-                    .limit(queryParallelism)
-                    .collect(Collectors.toList());
-            List<? extends CompletableFuture<List<RoutingEntry>>> futures = thisRound.stream()
-                    .map(r -> {
-                        toQuery.remove(r);
-                        queried.add(r.addresses.peerId);
-                        return CompletableFuture
-                                .supplyAsync(() -> getCloserPeers(key, r.addresses, us).thenApply(res -> {
-                                    List<RoutingEntry> more = new ArrayList<>();
-                                    for (PeerAddresses peer : res) {
-                                        if (!queried.contains(peer.peerId)) {
-                                            Id peerKey = Id.create(Hash.sha256(IPNS.getKey(peer.peerId)), 256);
-                                            RoutingEntry e = new RoutingEntry(peerKey, peer);
-                                            more.add(e);
-                                        }
-                                    }
-                                    CompletableFuture
-                                            .supplyAsync(() -> putValue(publisher, signedRecord, r.addresses, us)
-                                                    .thenAccept(done -> {
-                                                        if (done)
-                                                            publishes.add(r.addresses.peerId);
-                                                    }), ioExec);
-                                    return more;
-                                }).join(), ioExec);
-                    })
+        return findClosestPeersAsync(key, IPNS_REPLICAS, us).thenCompose(closest -> {
+            List<CompletableFuture<Boolean>> puts = closest.stream()
+                    .map(p -> queryPeer(p, us, c -> c.putValue(publisher, signedRecord)).exceptionally(t -> false))
                     .collect(Collectors.toList());
-            futures.forEach(f -> {
-                try {
-                    if (publishes.size() >= minPublishes)
-                        return;
-                    toQuery.addAll(f.orTimeout(2, TimeUnit.SECONDS).join());
-                } catch (Exception e) {
-                }
-            });
-            // exit early if we have enough results
-            if (publishes.size() >= minPublishes)
-                break;
-            if (toQuery.size() == remaining) {
-                // publish to closest remaining nodes
-                while (publishes.size() < minPublishes && !toQuery.isEmpty()) {
-                    List<RoutingEntry> closest = toQuery.stream()
-                            .limit(minPublishes - publishes.size() + 5)
-                            .collect(Collectors.toList());
-                    List<? extends CompletableFuture<?>> lastFutures = closest.stream()
-                            .map(r -> {
-                                toQuery.remove(r);
-                                queried.add(r.addresses.peerId);
-                                return CompletableFuture
-                                        .supplyAsync(() -> putValue(publisher, signedRecord, r.addresses, us)
-                                                .thenAccept(done -> {
-                                                    if (done)
-                                                        publishes.add(r.addresses.peerId);
-                                                }), ioExec);
-                            })
-                            .collect(Collectors.toList());
-                    lastFutures.forEach(f -> {
-                        try {
-                            f.orTimeout(2, TimeUnit.SECONDS).join();
-                        } catch (Exception e) {
-                        }
-                    });
-                }
-                break;
-            }
-        }
-        return CompletableFuture.completedFuture(publishes.size());
+            return CompletableFuture.allOf(puts.toArray(new CompletableFuture[0]))
+                    .thenApply(x -> (int) puts.stream().filter(CompletableFuture::join).count());
+        });
     }
 
     public CompletableFuture<String> resolveIpnsValue(Multihash publisher, Host us, int minResults) {
-        List<IpnsRecord> candidates = resolveValue(publisher, minResults, us);
-        List<IpnsRecord> records = candidates.stream().sorted().collect(Collectors.toList());
-        if (records.isEmpty())
-            return CompletableFuture
-                    .failedFuture(new IllegalStateException("Couldn't find IPNS value for " + publisher));
-        return CompletableFuture.completedFuture(new String(records.get(records.size() - 1).value));
+        return resolveValueAsync(publisher, minResults, us).thenCompose(candidates -> {
+            List<IpnsRecord> records = candidates.stream().sorted().collect(Collectors.toList());
+            if (records.isEmpty())
+                return CompletableFuture
+                        .failedFuture(new IllegalStateException("Couldn't find IPNS value for " + publisher));
+            return CompletableFuture.completedFuture(new String(records.get(records.size() - 1).value));
+        });
     }
 
-    private CompletableFuture<Optional<GetResult>> getValueFromPeer(PeerAddresses peer, Multihash publisher, Host us) {
-        try {
-            return dialPeer(peer, us)
-                    .orTimeout(1, TimeUnit.SECONDS)
-                    .join()
-                    .getValue(publisher)
-                    .orTimeout(1, TimeUnit.SECONDS)
-                    .thenApply(Optional::of);
-        } catch (Exception e) {
-            return CompletableFuture.completedFuture(Optional.empty());
-        }
+    public List<IpnsRecord> resolveValue(Multihash publisher, int minResults, Host us) {
+        return resolveValueAsync(publisher, minResults, us).join();
     }
 
-    public List<IpnsRecord> resolveValue(Multihash publisher, int minResults, Host us) {
+    /**
+     * Collects IPNS records for a publisher from the peers closest to its key,
+     * stopping once we have minResults of them.
+     */
+    public CompletableFuture<List<IpnsRecord>> resolveValueAsync(Multihash publisher, int minResults, Host us) {
         byte[] key = IPNS.getKey(publisher);
-        List<IpnsRecord> candidates = Collections.synchronizedList(new ArrayList<>());
-        Optional<IpnsRecord> local = engine.getRecord(publisher);
-        local.ifPresent(candidates::add);
-
-        Id keyId = Id.create(Hash.sha256(key), 256);
-        SortedSet<RoutingEntry> toQuery = Collections
-                .synchronizedSortedSet(new TreeSet<>((a, b) -> compareKeys(a, b, keyId)));
-        List<PeerAddresses> localClosest = engine.getKClosestPeers(key, 20);
-        int queryParallelism = 3;
-        toQuery.addAll(localClosest.stream()
-                .filter(p -> hasTransportOverlap(p)) // don't waste time trying to dial nodes we can't
-                .map(p -> new RoutingEntry(Id.create(Hash.sha256(p.peerId.toBytes()), 256), p))
-                .collect(Collectors.toList()));
-        Set<Multihash> queried = Collections.synchronizedSet(new HashSet<>());
-        int countdown = 20;
-        while (!toQuery.isEmpty()) {
-            int remaining = toQuery.size() - 3;
-            List<RoutingEntry> thisRound = toQuery.stream()
-                    .limit(queryParallelism)
-                    .collect(Collectors.toList());
-            List<CompletableFuture<CompletableFuture<Void>>> futures = thisRound.stream()
-                    .map(r -> {
-                        toQuery.remove(r);
-                        queried.add(r.addresses.peerId);
-                        return CompletableFuture.supplyAsync(() -> getValueFromPeer(r.addresses, publisher, us)
-                                .thenAccept(get -> get.ifPresent(g -> {
-                                    if (g.record.isPresent() && g.record.get().publisher.equals(publisher))
-                                        candidates.add(g.record.get().value);
-                                    for (PeerAddresses peer : g.closerPeers) {
-                                        if (!queried.contains(peer.peerId) && hasTransportOverlap(peer)) {
-                                            Id peerKey = Id.create(Hash.sha256(IPNS.getKey(peer.peerId)), 256);
-                                            RoutingEntry e = new RoutingEntry(peerKey, peer);
-                                            toQuery.add(e);
-                                        }
-                                    }
-                                })), ioExec);
-                    })
-                    .collect(Collectors.toList());
-            futures.forEach(f -> {
-                try {
-                    if (candidates.size() >= minResults)
-                        return;
-                    f.orTimeout(5, TimeUnit.SECONDS).join()
-                            .orTimeout(5, TimeUnit.SECONDS).join();
-                } catch (Exception e) {
-                }
-            });
-            // exit early if we have enough results
-            if (candidates.size() >= minResults)
-                break;
-            if (toQuery.size() == remaining)
-                countdown--;
-            if (countdown <= 0)
-                break;
-        }
-        return candidates;
+        // guarded by the lookup until it completes
+        List<IpnsRecord> candidates = new ArrayList<>();
+        engine.getRecord(publisher).ifPresent(candidates::add);
+        if (candidates.size() >= minResults)
+            return CompletableFuture.completedFuture(candidates);
+        DhtLookup<GetResult> lookup = new DhtLookup<>(key, ALPHA, K, lookupPaths, queryLatency,
+                peer -> queryPeer(peer, us, c -> c.getValue(publisher)),
+                g -> g.closerPeers,
+                (peer, g) -> {
+                    if (g.record.isPresent() && g.record.get().publisher.equals(publisher))
+                        candidates.add(g.record.get().value);
+                    return candidates.size() >= minResults;
+                },
+                this::hasTransportOverlap);
+        return lookup.run(engine.getKClosestPeers(key, K)).thenApply(closest -> candidates);
     }
 }
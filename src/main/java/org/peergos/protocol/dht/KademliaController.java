@@ -16,6 +16,8 @@ public interface KademliaController {
 
     CompletableFuture<Boolean> send(Dht.Message msg);
 
+    void close();
+
     default CompletableFuture<List<PeerAddresses>> closerPeers(byte[] key) {
         return rpc(Dht.Message.newBuilder()
                 .setType(Dht.Message.MessageType.FIND_NODE)
@@ -35,6 +37,24 @@ public interface KademliaController {
                 .build());
     }
 
+    /**
+     * Sends one ADD_PROVIDER message per block, all over this stream, then closes it.
+     */
+    default CompletableFuture<Boolean> provide(List<Multihash> blocks, PeerAddresses us) {
+        Dht.Message.Peer provider = us.toProtobuf();
+        List<CompletableFuture<Boolean>> sent = blocks.stream()
+                .map(block -> send(Dht.Message.newBuilder()
+                        .setType(Dht.Message.MessageType.ADD_PROVIDER)
+                        .setKey(ByteString.copyFrom(block.bareMultihash().toBytes()))
+                        .addProviderPeers(provider)
+                        .build()))
+                .collect(Collectors.toList());
+        // there are no replies to wait for
+        close();
+        return CompletableFuture.allOf(sent.toArray(new CompletableFuture[0]))
+                .thenApply(x -> sent.stream().allMatch(CompletableFuture::join));
+    }
+
     default CompletableFuture<Providers> getProviders(Multihash block) {
         return rpc(Dht.Message.newBuilder()
                 .setType(Dht.Message.MessageType.GET_PROVIDERS)
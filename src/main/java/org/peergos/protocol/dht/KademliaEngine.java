@@ -1,8 +1,6 @@
 package org.peergos.protocol.dht;
 
 import com.google.protobuf.*;
-import com.offbynull.kademlia.*;
-import com.offbynull.kademlia.Node;
 
 import io.ipfs.cid.*;
 import io.ipfs.multihash.Multihash;
@@ -52,7 +50,8 @@ public class KademliaEngine {
 
     private final ProviderStore providersStore;
     private final RecordStore ipnsStore;
-    public final Router router;
+    public final RoutingTable routingTable;
+    private final CloserPeersCache closerPeers;
     private AddressBook addressBook;
     private final Multihash ourPeerId;
     private final byte[] ourPeerIdBytes;
@@ -63,7 +62,8 @@ public class KademliaEngine {
         this.ipnsStore = ipnsStore;
         this.ourPeerId = ourPeerId;
         this.ourPeerIdBytes = ourPeerId.toBytes();
-        this.router = new Router(Id.create(ourPeerId.bareMultihash().toBytes(), 256), 2, 2, 2);
+        this.routingTable = new RoutingTable(ourPeerId, 2, 2, 2);
+        this.closerPeers = new CloserPeersCache(routingTable, p -> addressBook.getAddrs(p).join(), KademliaEngine::isPublic);
         this.blocks = blocks;
     }
 
@@ -71,16 +71,16 @@ public class KademliaEngine {
         this.addressBook = addrs;
     }
 
-    public synchronized void addOutgoingConnection(PeerId peer) {
-        addToRoutingTable(peer);
+    public void close() throws Exception {
+        providersStore.close();
     }
 
-    public synchronized void addIncomingConnection(PeerId peer) {
-        // don't auto add incoming kademlia connections to routing table
+    public void addOutgoingConnection(PeerId peer) {
+        routingTable.add(peer);
     }
 
-    private void addToRoutingTable(PeerId peer) {
-        router.touch(Instant.now(), new Node(Id.create(Hash.sha256(peer.getBytes()), 256), peer.toString()));
+    public void addIncomingConnection(PeerId peer) {
+        // don't auto add incoming kademlia connections to routing table
     }
 
     public Set<PeerAddresses> getProviders(Multihash h) {
@@ -91,15 +91,10 @@ public class KademliaEngine {
     }
 
     public List<PeerAddresses> getKClosestPeers(byte[] key, int k) {
-        List<Node> nodes;
-        synchronized (this) {
-            nodes = router.find(Id.create(Hash.sha256(key), 256), k, false);
-        }
-        return nodes.stream()
-                .map(n -> {
-                    List<Multiaddr> addrs = new ArrayList<>(
-                            addressBook.getAddrs(PeerId.fromBase58(n.getLink())).join());
-                    return new PeerAddresses(Multihash.fromBase58(n.getLink()), addrs);
+        return routingTable.closest(key, k).stream()
+                .map(peer -> {
+                    List<Multiaddr> addrs = new ArrayList<>(addressBook.getAddrs(peer).join());
+                    return new PeerAddresses(Multihash.deserialize(peer.getBytes()), addrs);
                 })
                 .filter(p -> !p.addresses.isEmpty())
                 .collect(Collectors.toList());
@@ -139,10 +134,7 @@ public class KademliaEngine {
                     builder = builder.setRecord(Dht.Record.newBuilder()
                             .setKey(msg.getKey())
                             .setValue(ByteString.copyFrom(ipnsRecord.get().raw)).build());
-                builder = builder.addAllCloserPeers(getKClosestPeers(msg.getKey().toByteArray(), BUCKET_SIZE)
-                        .stream()
-                        .map(p -> p.toProtobuf(a -> isPublic(a)))
-                        .collect(Collectors.toList()));
+                builder = builder.addAllCloserPeers(closerPeers.closest(msg.getKey(), BUCKET_SIZE));
                 Dht.Message reply = builder.build();
                 stream.writeAndFlush(reply);
                 responderSentBytes.inc(reply.getSerializedSize());
@@ -173,10 +165,7 @@ public class KademliaEngine {
                 Dht.Message.Builder builder = msg.toBuilder();
                 builder = builder.addAllProviderPeers(providers.stream()
                         .collect(Collectors.toList()));
-                builder = builder.addAllCloserPeers(getKClosestPeers(msg.getKey().toByteArray(), BUCKET_SIZE)
-                        .stream()
-                        .map(p -> p.toProtobuf(a -> isPublic(a)))
-                        .collect(Collectors.toList()));
+                builder = builder.addAllCloserPeers(closerPeers.closest(msg.getKey(), BUCKET_SIZE));
                 Dht.Message reply = builder.build();
                 stream.writeAndFlush(reply);
                 responderSentBytes.inc(reply.getSerializedSize());
@@ -185,7 +174,6 @@ public class KademliaEngine {
             }
             case FIND_NODE: {
                 Dht.Message.Builder builder = msg.toBuilder();
-                Multihash sourcePeer = Multihash.deserialize(source.getBytes());
                 byte[] target = msg.getKey().toByteArray();
                 if (Arrays.equals(target, ourPeerIdBytes)) {
                     // Only return ourselves (without addresses) if they are querying for us
@@ -193,11 +181,7 @@ public class KademliaEngine {
                     builder = builder
                             .addCloserPeers(new PeerAddresses(ourPeerId, Collections.emptyList()).toProtobuf());
                 } else
-                    builder = builder.addAllCloserPeers(getKClosestPeers(target, BUCKET_SIZE)
-                            .stream()
-                            .filter(p -> !p.peerId.equals(sourcePeer)) // don't tell a peer about themselves
-                            .map(p -> p.toProtobuf(a -> isPublic(a)))
-                            .collect(Collectors.toList()));
+                    builder = builder.addAllCloserPeers(closerPeers.closest(msg.getKey(), BUCKET_SIZE, source));
                 Dht.Message reply = builder.build();
                 stream.writeAndFlush(reply);
                 responderSentBytes.inc(reply.getSerializedSize());
@@ -60,12 +60,17 @@ public class KademliaProtocol extends ProtobufProtocolHandler<KademliaController
 
         @Override
         public CompletableFuture<Dht.Message> rpc(Dht.Message msg) {
-            msg = TraceLogger.getInstance().HandleKademliaClientStart(msg, stream.remotePeerId());
-            stream.writeAndFlush(msg);
-            sentBytes.inc(msg.getSerializedSize());
-            Dht.Message response = resp.join();
-            TraceLogger.getInstance().HandleKademliaClientEnd(msg, stream.remotePeerId());
-            return CompletableFuture.completedFuture(response);
+            Dht.Message traced = TraceLogger.getInstance().HandleKademliaClientStart(msg, stream.remotePeerId());
+            try {
+                stream.writeAndFlush(traced);
+                sentBytes.inc(traced.getSerializedSize());
+            } catch (RuntimeException e) {
+                TraceLogger.getInstance().HandleKademliaClientEnd(traced, stream.remotePeerId());
+                throw e;
+            }
+            // don't wait for the reply here, as this may be running on the stream's own event loop
+            return resp.whenComplete((r, t) ->
+                    TraceLogger.getInstance().HandleKademliaClientEnd(traced, stream.remotePeerId()));
         }
 
         @Override
@@ -75,6 +80,12 @@ public class KademliaProtocol extends ProtobufProtocolHandler<KademliaController
             return CompletableFuture.completedFuture(true);
         }
 
+        @Override
+        public void close() {
+            // queued after any writes, so they are still flushed
+            stream.close();
+        }
+
         @Override
         public void onMessage(@NotNull Stream stream, Dht.Message msg) {
             receivedBytes.inc(msg.getSerializedSize());
@@ -116,5 +127,10 @@ public class KademliaProtocol extends ProtobufProtocolHandler<KademliaController
         public CompletableFuture<Boolean> send(Dht.Message msg) {
             throw new IllegalStateException("Responder only!");
         }
+
+        @Override
+        public void close() {
+            throw new IllegalStateException("Responder only!");
+        }
     }
 }
@@ -5,9 +5,12 @@ import org.peergos.protocol.dht.pb.*;
 
 import java.util.*;
 
-public interface ProviderStore {
+public interface ProviderStore extends AutoCloseable {
 
     void addProvider(Multihash m, Dht.Message.Peer peer);
 
     Set<Dht.Message.Peer> getProviders(Multihash m);
+
+    @Override
+    default void close() throws Exception {}
 }
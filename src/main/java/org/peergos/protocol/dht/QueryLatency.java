@@ -0,0 +1,44 @@
+package org.peergos.protocol.dht;
+
+/**
+ * Tracks how long peers take to answer DHT queries, to decide when a query has
+ * taken long enough that a lookup should stop waiting for it and ask another
+ * peer instead.
+ *
+ * As with TCP's retransmission timeout, this is the smoothed round trip time
+ * plus four times its mean deviation.
+ */
+class QueryLatency {
+    private static final double GAIN = 0.125;
+    private static final double DEVIATION_GAIN = 0.25;
+
+    private final long minMillis, maxMillis;
+    // guarded by this, -1 until the first sample
+    private double smoothedMillis = -1, deviationMillis = 0;
+
+    QueryLatency(long minMillis, long maxMillis) {
+        this.minMillis = minMillis;
+        this.maxMillis = maxMillis;
+    }
+
+    synchronized void record(long nanos) {
+        double sample = nanos / 1_000_000.0;
+        if (smoothedMillis < 0) {
+            smoothedMillis = sample;
+            deviationMillis = sample / 2;
+            return;
+        }
+        deviationMillis = (1 - DEVIATION_GAIN) * deviationMillis + DEVIATION_GAIN * Math.abs(smoothedMillis - sample);
+        smoothedMillis = (1 - GAIN) * smoothedMillis + GAIN * sample;
+    }
+
+    /**
+     * @return How long to wait for an answer before considering a peer slow.
+     */
+    synchronized long slowAfterMillis() {
+        if (smoothedMillis < 0)
+            return maxMillis;
+        long millis = (long) (smoothedMillis + 4 * deviationMillis);
+        return Math.max(minMillis, Math.min(maxMillis, millis));
+    }
+}
@@ -0,0 +1,123 @@
+package org.peergos.protocol.dht;
+
+import com.offbynull.kademlia.*;
+import com.offbynull.kademlia.Node;
+import io.ipfs.multihash.Multihash;
+import io.libp2p.core.*;
+import org.peergos.*;
+
+import java.time.*;
+import java.util.*;
+
+/**
+ * The Kademlia routing table, which every incoming FIND_NODE, GET_PROVIDERS and
+ * GET_VALUE request reads to find the peers closest to a key.
+ *
+ * Additions go through the k-buckets of a {@link Router} one at a time. After
+ * each one that changes which peers are in the buckets, an immutable snapshot of
+ * the bucket contents is published, and closest-peer queries scan the latest
+ * snapshot. Queries therefore never wait for additions, or for each other.
+ */
+public class RoutingTable {
+    private static final int ID_BITS = 256;
+
+    private static final class Entry {
+        final byte[] id;
+        final PeerId peer;
+
+        Entry(byte[] id, PeerId peer) {
+            this.id = id;
+            this.peer = peer;
+        }
+    }
+
+    // guarded by this
+    private final Router router;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private Instant lastTouch = Instant.MIN;
+    private volatile Entry[] snapshot = new Entry[0];
+    // incremented after each new snapshot
+    private volatile long version = 0;
+
+    public RoutingTable(Multihash ourPeerId, int branchesPerLevel, int maxNodesPerBucket, int maxCacheNodesPerBucket) {
+        this.router = new Router(Id.create(ourPeerId.bareMultihash().toBytes(), ID_BITS),
+                branchesPerLevel, maxNodesPerBucket, maxCacheNodesPerBucket);
+    }
+
+    private static byte[] id(byte[] key) {
+        return Hash.sha256(key);
+    }
+
+    public synchronized void add(PeerId peer) {
+        // the router rejects times that go backwards, e.g. after a clock adjustment
+        Instant now = Instant.now();
+        lastTouch = now.isAfter(lastTouch) ? now : lastTouch;
+        byte[] id = id(peer.getBytes());
+        ActivityChangeSet changes = router.touch(lastTouch, new Node(Id.create(id, ID_BITS), peer.toString()))
+                .getRouteTreeChangeSet()
+                .getKBucketChangeSet()
+                .getBucketChangeSet();
+        if (changes.viewAdded().isEmpty() && changes.viewRemoved().isEmpty())
+            return;
+        for (Activity removed : changes.viewRemoved())
+            entries.remove(removed.getNode().getLink());
+        for (Activity added : changes.viewAdded()) {
+            String link = added.getNode().getLink();
+            entries.put(link, link.equals(peer.toString()) ?
+                    new Entry(id, peer) :
+                    new Entry(id(PeerId.fromBase58(link).getBytes()), PeerId.fromBase58(link)));
+        }
+        snapshot = entries.values().toArray(new Entry[0]);
+        version++;
+    }
+
+    /**
+     * @return A number that changes whenever the peers in the table change. A
+     * query made after reading it sees at least the peers as of that version.
+     */
+    public long version() {
+        return version;
+    }
+
+    public int size() {
+        return snapshot.length;
+    }
+
+    /**
+     * @return Up to k peers in the table, closest first by the XOR distance
+     * between the sha256 of their id and of the key.
+     */
+    public List<PeerId> closest(byte[] key, int k) {
+        Entry[] current = snapshot;
+        if (k <= 0 || current.length == 0)
+            return Collections.emptyList();
+        byte[] target = id(key);
+        Comparator<Entry> closestFirst = (a, b) -> compareDistance(a.id, b.id, target);
+        // the k closest seen so far, furthest at the head
+        PriorityQueue<Entry> best = new PriorityQueue<>(Math.min(k, current.length) + 1, closestFirst.reversed());
+        for (Entry e : current) {
+            if (best.size() < k) {
+                best.add(e);
+            } else if (closestFirst.compare(e, best.peek()) < 0) {
+                best.poll();
+                best.add(e);
+            }
+        }
+        List<Entry> sorted = new ArrayList<>(best);
+        sorted.sort(closestFirst);
+        List<PeerId> res = new ArrayList<>(sorted.size());
+        for (Entry e : sorted)
+            res.add(e.peer);
+        return res;
+    }
+
+    private static int compareDistance(byte[] a, byte[] b, byte[] target) {
+        for (int i = 0; i < target.length; i++) {
+            int da = (a[i] ^ target[i]) & 0xff;
+            int db = (b[i] ^ target[i]) & 0xff;
+            if (da != db)
+                return da - db;
+        }
+        return 0;
+    }
+}
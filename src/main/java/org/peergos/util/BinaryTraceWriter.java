@@ -0,0 +1,190 @@
+package org.peergos.util;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Records fixed-size binary trace events into per-thread lock-free ring buffers
+ * and drains them to disk from a single background thread. The writer thread is
+ * the only one that touches the output file, so segment rollover never blocks a
+ * traced thread.
+ *
+ * Records are copied straight from the ring buffers into a pre-sized memory
+ * mapped segment (see {@link TraceSegment} for the layout), so there is no heap
+ * side output buffer.
+ */
+class BinaryTraceWriter {
+    private static final Logger LOG = Logging.LOG();
+
+    private static final int BUFFER_CAPACITY = 4096; // records per thread
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long FORCE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final Path directory;
+    private final long segmentSize;
+    private final int indexInterval;
+    private final Queue<TraceBuffer> buffers = new ConcurrentLinkedQueue<>();
+    private final ThreadLocal<TraceBuffer> localBuffer = ThreadLocal.withInitial(this::register);
+    private final Thread writer;
+    private volatile boolean running = true;
+    private volatile int nodeId = -1;
+
+    private MappedByteBuffer segment;
+    private long recordCount;
+    private long minNanos, maxNanos;
+    private int indexEntries;
+    private long lastForce;
+
+    BinaryTraceWriter(Path directory, long segmentSize) {
+        if (segmentSize <= TraceSegment.HEADER_SIZE + TraceSegment.RECORD_SIZE)
+            throw new IllegalArgumentException("Trace segment size too small: " + segmentSize);
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        long maxRecords = (segmentSize - TraceSegment.HEADER_SIZE) / TraceSegment.RECORD_SIZE;
+        this.indexInterval = (int) Math.max(1, (maxRecords + TraceSegment.MAX_INDEX_ENTRIES - 1)
+                / TraceSegment.MAX_INDEX_ENTRIES);
+        this.writer = new Thread(this::run, "Trace writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    void setNodeId(int nodeId) {
+        this.nodeId = nodeId;
+    }
+
+    /**
+     * Appends an event to the calling thread's ring buffer. Never blocks; if the
+     * writer has fallen behind the event is dropped and counted.
+     */
+    void record(long traceIdHi, long traceIdLo, long spanId, long parentSpanId, int peerIndex, TraceType type,
+                long threadId, long nanoTime) {
+        localBuffer.get().offer(traceIdHi, traceIdLo, spanId, parentSpanId, nodeId, peerIndex, threadId, nanoTime,
+                type.ordinal());
+    }
+
+    void stop() {
+        running = false;
+        LockSupport.unpark(writer);
+    }
+
+    private TraceBuffer register() {
+        TraceBuffer buffer = new TraceBuffer(BUFFER_CAPACITY, Thread.currentThread());
+        buffers.add(buffer);
+        return buffer;
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                if (drainAll() == 0)
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                if (segment != null && System.nanoTime() - lastForce > FORCE_INTERVAL_NANOS) {
+                    segment.force();
+                    lastForce = System.nanoTime();
+                }
+            } catch (Throwable t) {
+                LOG.log(Level.WARNING, "Error writing binary traces", t);
+                closeSegment();
+                LockSupport.parkNanos(TimeUnit.SECONDS.toNanos(1));
+            }
+        }
+        try {
+            drainAll();
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, e.getMessage(), e);
+        }
+        closeSegment();
+    }
+
+    private int drainAll() throws IOException {
+        int total = 0;
+        long dropped = 0;
+        Iterator<TraceBuffer> it = buffers.iterator();
+        while (it.hasNext()) {
+            TraceBuffer buffer = it.next();
+            // check before draining so we can't miss a final record from a dying thread
+            boolean orphaned = buffer.isOrphaned();
+            // bounded so one busy thread can't starve the others
+            int fromBuffer = 0;
+            while (!buffer.isEmpty() && fromBuffer < BUFFER_CAPACITY) {
+                if (segment == null || segment.remaining() < TraceSegment.RECORD_SIZE)
+                    rollover();
+                int start = segment.position();
+                int drained = buffer.drainTo(segment);
+                updateHeader(start, drained);
+                fromBuffer += drained;
+            }
+            total += fromBuffer;
+            dropped += buffer.takeDropped();
+            if (orphaned && buffer.isEmpty())
+                it.remove();
+        }
+        if (dropped > 0)
+            LOG.fine("Dropped " + dropped + " trace records because the trace writer fell behind");
+        return total;
+    }
+
+    /**
+     * Publishes newly appended records in the segment header, maintaining the
+     * time bounds and the sparse time index.
+     */
+    private void updateHeader(int start, int added) {
+        for (int i = 0; i < added; i++) {
+            long nanos = segment.getLong(start + i * TraceSegment.RECORD_SIZE + TraceSegment.RECORD_NANOS_OFFSET);
+            minNanos = Math.min(minNanos, nanos);
+            maxNanos = Math.max(maxNanos, nanos);
+            long index = recordCount + i;
+            if (index % indexInterval == 0 && indexEntries < TraceSegment.MAX_INDEX_ENTRIES) {
+                segment.putLong(TraceSegment.INDEX_OFFSET + indexEntries * Long.BYTES, nanos);
+                indexEntries++;
+            }
+        }
+        recordCount += added;
+        segment.putLong(TraceSegment.MIN_NANOS_OFFSET, minNanos);
+        segment.putLong(TraceSegment.MAX_NANOS_OFFSET, maxNanos);
+        segment.putInt(TraceSegment.INDEX_ENTRIES_OFFSET, indexEntries);
+        // written last so readers never see a record before its header entries
+        segment.putLong(TraceSegment.RECORD_COUNT_OFFSET, recordCount);
+    }
+
+    private void rollover() throws IOException {
+        closeSegment();
+        long creationNanos = System.nanoTime();
+        Path file = directory.resolve(creationNanos + TraceSegment.FILE_SUFFIX);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // The mapping stays valid after the channel is closed.
+            segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+        TraceSegment.writeHeader(segment, nodeId, creationNanos, indexInterval);
+        long records = (segmentSize - TraceSegment.HEADER_SIZE) / TraceSegment.RECORD_SIZE;
+        segment.limit((int) (TraceSegment.HEADER_SIZE + records * TraceSegment.RECORD_SIZE));
+        segment.position(TraceSegment.HEADER_SIZE);
+        recordCount = 0;
+        minNanos = Long.MAX_VALUE;
+        maxNanos = Long.MIN_VALUE;
+        indexEntries = 0;
+        lastForce = creationNanos;
+    }
+
+    private void closeSegment() {
+        if (segment == null)
+            return;
+        try {
+            segment.force();
+        } catch (Exception e) {
+            LOG.log(Level.WARNING, e.getMessage(), e);
+        }
+        segment = null;
+    }
+}
@@ -0,0 +1,56 @@
+package org.peergos.util;
+
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/**
+ * Shares one in-progress computation between everyone who asks for the same key
+ * while it is running, e.g. so concurrent misses for a block issue one read.
+ * Once a computation completes, the next request for its key starts a new one.
+ */
+public class SingleFlight<K, V> {
+
+    private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final Runnable onShared;
+
+    /**
+     * @param onShared Called each time a request joins a computation already in flight.
+     */
+    public SingleFlight(Runnable onShared) {
+        this.onShared = onShared;
+    }
+
+    public SingleFlight() {
+        this(() -> {});
+    }
+
+    /**
+     * @param work Starts the computation, only called if none is in flight for the key.
+     */
+    public CompletableFuture<V> run(K key, Supplier<CompletableFuture<V>> work) {
+        CompletableFuture<V> ours = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, ours);
+        if (existing != null) {
+            onShared.run();
+            // callers mustn't be able to complete each other's result
+            return existing.thenApply(Function.identity());
+        }
+        try {
+            work.get().whenComplete((res, err) -> {
+                inFlight.remove(key, ours);
+                if (err != null)
+                    ours.completeExceptionally(err);
+                else
+                    ours.complete(res);
+            });
+        } catch (Throwable t) {
+            inFlight.remove(key, ours);
+            ours.completeExceptionally(t);
+        }
+        return ours.thenApply(Function.identity());
+    }
+
+    public int inFlight() {
+        return inFlight.size();
+    }
+}
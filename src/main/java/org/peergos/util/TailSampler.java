@@ -0,0 +1,115 @@
+package org.peergos.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Holds back the trace points of in-flight traces until the trace ends, and
+ * only releases them if the end-to-end latency was at or above a percentile of
+ * the recently observed latencies. Fast traces are discarded without ever being
+ * formatted or written.
+ */
+final class TailSampler {
+    private static final int WINDOW_SIZE = 1024;
+    // Keep everything until we have seen enough requests to know what slow is.
+    private static final int MIN_SAMPLES = 100;
+    private static final int MAX_PENDING_TRACES = 10_000;
+    private static final int MAX_POINTS_PER_TRACE = 1024;
+
+    private static final class Pending {
+        final long startNanos;
+        final List<Runnable> points = new ArrayList<>();
+
+        Pending(long startNanos) {
+            this.startNanos = startNanos;
+        }
+    }
+
+    private final double percentile;
+    private final LongSupplier nanoTime;
+    private final Map<String, Pending> pending = new ConcurrentHashMap<>();
+    private final long[] window = new long[WINDOW_SIZE];
+    private int samples = 0;
+
+    /**
+     * @param percentile Traces at or above this latency percentile (0-100) are kept.
+     */
+    TailSampler(double percentile, LongSupplier nanoTime) {
+        if (percentile <= 0 || percentile >= 100)
+            throw new IllegalArgumentException("Tail sampling percentile must be between 0 and 100: " + percentile);
+        this.percentile = percentile;
+        this.nanoTime = nanoTime;
+    }
+
+    TailSampler(double percentile) {
+        this(percentile, System::nanoTime);
+    }
+
+    /**
+     * Starts buffering the trace points of a trace.
+     *
+     * @return false if too many traces are already in flight, in which case the
+     * trace should not be recorded at all.
+     */
+    boolean begin(String traceId) {
+        if (pending.size() >= MAX_PENDING_TRACES)
+            return false;
+        pending.put(traceId, new Pending(nanoTime.getAsLong()));
+        return true;
+    }
+
+    /**
+     * Defers a trace point if its trace is being buffered.
+     *
+     * @return Whether the point was taken, otherwise the caller should write it directly.
+     */
+    boolean defer(String traceId, Runnable point) {
+        Pending trace = pending.get(traceId);
+        if (trace == null)
+            return false;
+        synchronized (trace) {
+            if (trace.points.size() < MAX_POINTS_PER_TRACE)
+                trace.points.add(point);
+        }
+        return true;
+    }
+
+    /**
+     * Ends a buffered trace.
+     *
+     * @return The deferred trace points to write, which is empty if the trace was
+     * not slow enough to keep.
+     */
+    List<Runnable> end(String traceId) {
+        Pending trace = pending.remove(traceId);
+        if (trace == null)
+            return Collections.emptyList();
+        long duration = nanoTime.getAsLong() - trace.startNanos;
+        if (!isSlow(duration))
+            return Collections.emptyList();
+        synchronized (trace) {
+            return new ArrayList<>(trace.points);
+        }
+    }
+
+    private synchronized boolean isSlow(long duration) {
+        boolean slow;
+        int count = Math.min(samples, WINDOW_SIZE);
+        if (count < MIN_SAMPLES) {
+            slow = true;
+        } else {
+            long[] sorted = Arrays.copyOf(window, count);
+            Arrays.sort(sorted);
+            int index = (int) Math.min(count - 1, Math.ceil(percentile / 100 * count) - 1);
+            slow = duration >= sorted[Math.max(0, index)];
+        }
+        window[samples % WINDOW_SIZE] = duration;
+        samples = samples == Integer.MAX_VALUE ? WINDOW_SIZE : samples + 1;
+        return slow;
+    }
+}
@@ -0,0 +1,106 @@
+package org.peergos.util;
+
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A single producer, single consumer ring of fixed-size trace records. Each
+ * thread that records a trace event owns exactly one buffer, and the binary
+ * trace writer is the only consumer, so neither side ever takes a lock.
+ */
+final class TraceBuffer {
+    /**
+     * Number of longs in a record: trace id (hi, lo), span id, parent span id,
+     * thread id, nanoTime, node id and peer index packed together, and the
+     * trace type.
+     */
+    static final int FIELDS = 8;
+    static final int RECORD_SIZE = FIELDS * Long.BYTES;
+
+    private final long[] slots;
+    private final int mask;
+    private final WeakReference<Thread> owner;
+    // Next slot the producer will write. Only written by the owning thread.
+    private final AtomicLong head = new AtomicLong(0);
+    // Next slot the consumer will read. Only written by the writer thread.
+    private final AtomicLong tail = new AtomicLong(0);
+    private final AtomicLong dropped = new AtomicLong(0);
+
+    /**
+     * @param capacity Number of records, must be a power of two.
+     */
+    TraceBuffer(int capacity, Thread owner) {
+        if (Integer.bitCount(capacity) != 1)
+            throw new IllegalArgumentException("Trace buffer capacity must be a power of two: " + capacity);
+        this.slots = new long[capacity * FIELDS];
+        this.mask = capacity - 1;
+        this.owner = new WeakReference<>(owner);
+    }
+
+    /**
+     * Appends a record, or drops it if the writer has fallen a full ring behind.
+     * Must only be called from the owning thread.
+     *
+     * @return Whether the record was stored.
+     */
+    boolean offer(long traceIdHi, long traceIdLo, long spanId, long parentSpanId, int nodeId, int peerIndex,
+                  long threadId, long nanoTime, int type) {
+        long h = head.get();
+        if (h - tail.get() > mask) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        int base = (int) (h & mask) * FIELDS;
+        slots[base] = traceIdHi;
+        slots[base + 1] = traceIdLo;
+        slots[base + 2] = spanId;
+        slots[base + 3] = parentSpanId;
+        slots[base + 4] = threadId;
+        slots[base + 5] = nanoTime;
+        slots[base + 6] = ((long) nodeId << 32) | (peerIndex & 0xFFFFFFFFL);
+        slots[base + 7] = type;
+        // publish the record to the writer
+        head.lazySet(h + 1);
+        return true;
+    }
+
+    /**
+     * Copies as many pending records as fit into the target buffer. Must only be
+     * called from the writer thread.
+     *
+     * @return The number of records copied.
+     */
+    int drainTo(ByteBuffer target) {
+        long t = tail.get();
+        long h = head.get();
+        int count = 0;
+        while (t < h && target.remaining() >= RECORD_SIZE) {
+            int base = (int) (t & mask) * FIELDS;
+            for (int i = 0; i < FIELDS; i++)
+                target.putLong(slots[base + i]);
+            t++;
+            count++;
+        }
+        // release the slots back to the producer
+        tail.lazySet(t);
+        return count;
+    }
+
+    boolean isEmpty() {
+        return tail.get() == head.get();
+    }
+
+    /**
+     * Whether the owning thread has terminated, after which no more records
+     * can arrive.
+     */
+    boolean isOrphaned() {
+        Thread t = owner.get();
+        return t == null || !t.isAlive();
+    }
+
+    long takeDropped() {
+        return dropped.getAndSet(0);
+    }
+}
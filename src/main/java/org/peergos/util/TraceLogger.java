@@ -5,10 +5,16 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.charset.Charset;
+import java.nio.file.Path;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 import org.peergos.Client;
 import org.peergos.protocol.bitswap.pb.MessageOuterClass;
@@ -37,7 +43,55 @@ public class TraceLogger {
      * @param peerId Identity of the current node.
      */
     public void setIdentity(PeerId peerId) {
-        currentNodeId = nodeIdMap.get(peerId.toString());
+        currentNodeId = nodeIdMap.getOrDefault(peerId.toString(), -1);
+        if (binaryWriter != null)
+            binaryWriter.setNodeId(currentNodeId);
+    }
+
+    /**
+     * Selects how trace points are recorded. Must be called before the first
+     * trace point is written.
+     *
+     * @param binary       Write fixed-size binary records through per-thread ring
+     *                     buffers drained by a background writer, instead of
+     *                     tab-separated text.
+     * @param echoToStdout Also print each trace point to stdout.
+     */
+    public synchronized void setOutputFormat(boolean binary, boolean echoToStdout) {
+        this.echoToStdout = echoToStdout;
+        if (binary && binaryWriter == null) {
+            writeBinaryTo(Client.DEFAULT_IPFS_DIR_PATH.toAbsolutePath(), MAX_LOG_FILE_SIZE_MB);
+        } else if (!binary && binaryWriter != null) {
+            binaryWriter.stop();
+            binaryWriter = null;
+        }
+    }
+
+    /**
+     * Writes binary trace segments of the given size to a directory, in place of
+     * any current binary output.
+     */
+    synchronized void writeBinaryTo(Path directory, long segmentSize) {
+        if (binaryWriter != null)
+            binaryWriter.stop();
+        BinaryTraceWriter writer = new BinaryTraceWriter(directory, segmentSize);
+        writer.setNodeId(currentNodeId);
+        binaryWriter = writer;
+    }
+
+    /**
+     * Configures sampling of requests that didn't explicitly ask to be traced.
+     *
+     * @param headSampleRate Fraction (0-1) of requests to trace. 0 disables sampling.
+     * @param tailPercentile If above 0, sampled traces are held in memory until
+     *                       they end and only written if their latency is at or
+     *                       above this percentile (0-100) of recent requests.
+     */
+    public synchronized void setSampling(double headSampleRate, double tailPercentile) {
+        if (headSampleRate < 0 || headSampleRate > 1)
+            throw new IllegalArgumentException("Trace sample rate must be between 0 and 1: " + headSampleRate);
+        this.tailSampler = tailPercentile > 0 ? new TailSampler(tailPercentile) : null;
+        this.headSampleRate = headSampleRate;
     }
 
     /**
@@ -46,14 +100,49 @@ public class TraceLogger {
      * Also propagates the trace context to servers.
      */
     public void startTrace() {
-        TraceContext.setTraceId(generateTraceId());
+        TraceContext.set(TraceContext.root(generateTraceId()));
     }
 
     /**
-     * Ends recording the traces for the current thread.
+     * Starts a trace if it was explicitly requested, or if the head sampler picks
+     * this request. Sampled traces go through the tail sampler, if enabled.
+     *
+     * @param requested Whether the caller asked for this request to be traced.
+     * @return Whether a trace was started, in which case endTrace() must be called.
+     */
+    public boolean startTrace(boolean requested) {
+        if (requested) {
+            startTrace();
+            return true;
+        }
+        double rate = headSampleRate;
+        if (rate <= 0 || (rate < 1 && ThreadLocalRandom.current().nextDouble() >= rate))
+            return false;
+        String traceId = generateTraceId();
+        TailSampler tail = tailSampler;
+        if (tail != null && !tail.begin(traceId))
+            return false;
+        TraceContext.set(TraceContext.root(traceId));
+        return true;
+    }
+
+    /**
+     * Ends recording the traces for the current thread. If the trace was held
+     * back by the tail sampler, its trace points are written now if it was slow.
      */
     public void endTrace() {
-        TraceContext.clearTraceId();
+        TailSampler tail = tailSampler;
+        if (tail != null && TraceContext.isSet())
+            tail.end(TraceContext.getTraceId()).forEach(Runnable::run);
+        TraceContext.clear();
+    }
+
+    /**
+     * Drops the trace context of the current thread without ending the trace,
+     * e.g. when a pooled thread has finished handling a traced message.
+     */
+    public void clearTrace() {
+        TraceContext.clear();
     }
 
     /**
@@ -63,16 +152,91 @@ public class TraceLogger {
         return TraceContext.getTraceId();
     }
 
+    /**
+     * Starts a span on the current thread, if it is being traced. Spans started on
+     * this thread are its children until it is closed, so it should be used with
+     * try-with-resources.
+     *
+     * @param start The *_START trace type of the span.
+     */
+    public Span startSpan(TraceType start) {
+        return startSpan(start, true);
+    }
+
+    /**
+     * Starts a span for an operation that completes on another thread. It doesn't
+     * become the parent of subsequent spans on the current thread.
+     *
+     * @param start The *_START trace type of the span.
+     */
+    public Span startAsyncSpan(TraceType start) {
+        return startSpan(start, false);
+    }
+
+    /**
+     * Returns a function that runs with the trace context of the calling thread,
+     * for work handed to pooled threads such as parallel streams.
+     */
+    public <T, R> Function<T, R> inCurrentTrace(Function<T, R> f) {
+        TraceContext ctx = TraceContext.get();
+        if (ctx == TraceContext.NONE)
+            return f;
+        return t -> {
+            TraceContext previous = TraceContext.get();
+            TraceContext.set(ctx);
+            try {
+                return f.apply(t);
+            } finally {
+                TraceContext.set(previous);
+            }
+        };
+    }
+
+    /**
+     * Returns a function that runs as a child of a span, e.g. for the callbacks
+     * of an operation traced with an async span.
+     */
+    public <T, R> Function<T, R> inSpan(Span span, Function<T, R> f) {
+        TraceContext ctx = span.context;
+        if (ctx == null)
+            return f;
+        return t -> {
+            TraceContext previous = TraceContext.get();
+            TraceContext.set(ctx);
+            try {
+                return f.apply(t);
+            } finally {
+                TraceContext.set(previous);
+            }
+        };
+    }
+
+    public <T> Supplier<T> inCurrentTrace(Supplier<T> s) {
+        Function<Void, T> f = inCurrentTrace(x -> s.get());
+        return () -> f.apply(null);
+    }
+
+    public Runnable inCurrentTrace(Runnable r) {
+        Function<Void, Void> f = inCurrentTrace(x -> {
+            r.run();
+            return null;
+        });
+        return () -> f.apply(null);
+    }
+
     /**
      * Logs (if trace context is available) the client start of a kademlia lookup.
+     * The reply arrives on another thread, so the span id travels with the
+     * request, and the returned message must be passed to HandleKademliaClientEnd.
      */
     public Dht.Message HandleKademliaClientStart(Dht.Message msg, PeerId remotePeerId) {
         if (msg.getType() != Dht.Message.MessageType.GET_PROVIDERS || !TraceContext.isSet()) {
             return msg;
         }
-        writeLog(TraceType.GET_PROVIDERS_CLIENT_START, remotePeerId,
-                "Peer nodeId: " + nodeIdMap.get(remotePeerId.toString()));
-        return msg.toBuilder().setTraceId(TraceContext.getTraceId()).build();
+        TraceContext span = TraceContext.get().child(TraceType.GET_PROVIDERS_CLIENT_START, newSpanId());
+        writeLog(TraceType.GET_PROVIDERS_CLIENT_START, span, remotePeerId,
+                () -> "Peer nodeId: " + nodeIdOf(remotePeerId));
+        return msg.toBuilder().setTraceId(span.toWire()).build();
     }
 
     /**
@@ -82,9 +246,11 @@ public class TraceLogger {
         if (msg.getType() != Dht.Message.MessageType.GET_PROVIDERS || msg.getTraceId().isEmpty()) {
             return;
         }
-        TraceContext.setTraceId(msg.getTraceId());
-        writeLog(TraceType.GET_PROVIDERS_SERVER_START, remotePeerId,
-                "Peer nodeId: " + nodeIdMap.get(remotePeerId.toString()));
+        TraceContext span = TraceContext.fromWire(msg.getTraceId())
+                .child(TraceType.GET_PROVIDERS_SERVER_START, newSpanId());
+        TraceContext.set(span);
+        writeLog(TraceType.GET_PROVIDERS_SERVER_START, span, remotePeerId,
+                () -> "Peer nodeId: " + nodeIdOf(remotePeerId));
     }
 
     /**
@@ -94,54 +260,61 @@ public class TraceLogger {
         if (msg.getType() != Dht.Message.MessageType.GET_PROVIDERS || !TraceContext.isSet()) {
             return;
         }
-        writeLog(TraceType.GET_PROVIDERS_SERVER_END, remotePeerId,
-                "Peer nodeId: " + nodeIdMap.get(remotePeerId.toString()));
-        TraceContext.clearTraceId();
+        writeLog(TraceType.GET_PROVIDERS_SERVER_END, TraceContext.get(), remotePeerId,
+                () -> "Peer nodeId: " + nodeIdOf(remotePeerId));
+        TraceContext.clear();
     }
 
     /**
-     * Logs (if trace context is available) the client end of a kademlia lookup.
+     * Logs (if trace context is available) the client end of a kademlia lookup,
+     * given the request returned by HandleKademliaClientStart. It can be called
+     * on any thread.
      */
-    public void HandleKademliaClientEnd(Dht.Message msg, PeerId remotePeerId) {
-        if (msg.getType() != Dht.Message.MessageType.GET_PROVIDERS || !TraceContext.isSet()) {
+    public void HandleKademliaClientEnd(Dht.Message request, PeerId remotePeerId) {
+        if (request.getType() != Dht.Message.MessageType.GET_PROVIDERS || request.getTraceId().isEmpty()) {
             return;
         }
-        writeLog(TraceType.GET_PROVIDERS_CLIENT_END, remotePeerId,
-                "Peer nodeId: " + nodeIdMap.get(remotePeerId.toString()));
+        writeLog(TraceType.GET_PROVIDERS_CLIENT_END, TraceContext.fromWire(request.getTraceId()), remotePeerId,
+                () -> "Peer nodeId: " + nodeIdOf(remotePeerId));
     }
 
     /**
      * Logs (if trace context is available) the client start of a bitswap protocol.
+     * The response arrives on another thread, so the span id travels with the
+     * request and is echoed back by the server.
      */
     public MessageOuterClass.Message HandleBitswapClientStart(MessageOuterClass.Message msg, PeerId remotePeerId) {
         if (!TraceContext.isSet()) {
             return msg;
         }
-        writeLog(TraceType.BITSWAP_CLIENT_START, remotePeerId,
-                "Want " + msg.getWantlist().getEntriesCount() + " hashes. Peer nodeId: "
-                        + nodeIdMap.get(remotePeerId.toString()));
-        return msg.toBuilder().setTraceId(TraceContext.getTraceId()).build();
+        TraceContext span = TraceContext.get().child(TraceType.BITSWAP_CLIENT_START, newSpanId());
+        writeLog(TraceType.BITSWAP_CLIENT_START, span, remotePeerId,
+                () -> "Want " + msg.getWantlist().getEntriesCount() + " hashes. Peer nodeId: "
+                        + nodeIdOf(remotePeerId));
+        return msg.toBuilder().setTraceId(span.toWire()).build();
     }
 
     /**
      * Logs (if trace context is available) the server start or client end of a
-     * bitswap protocol.
+     * bitswap protocol. The caller must call clearTrace() once it has finished
+     * handling the message.
      */
     public void HandleBitswapReceive(MessageOuterClass.Message msg, PeerId remotePeerId) {
         if (msg.getTraceId().isEmpty()) {
             return;
         }
-        TraceContext.setTraceId(msg.getTraceId());
         boolean isServer = msg.hasWantlist();
+        TraceContext remote = TraceContext.fromWire(msg.getTraceId());
+        // A reply carries the id of our own client span.
+        TraceContext span = isServer ? remote.child(TraceType.BITSWAP_SERVER_START, newSpanId()) : remote;
+        TraceContext.set(span);
         writeLog(
                 isServer ? TraceType.BITSWAP_SERVER_START : TraceType.BITSWAP_CLIENT_END,
+                span,
                 remotePeerId,
-                isServer ? "Want " + msg.getWantlist().getEntriesCount() + " hashes. Peer nodeId: "
-                        + nodeIdMap.get(remotePeerId.toString())
-                        : msg.getPayloadCount() + " blocks. Peer nodeId: " + nodeIdMap.get(remotePeerId.toString()));
-        if (!isServer) {
-            TraceContext.clearTraceId();
-        }
+                () -> isServer ? "Want " + msg.getWantlist().getEntriesCount() + " hashes. Peer nodeId: "
+                        + nodeIdOf(remotePeerId)
+                        : msg.getPayloadCount() + " blocks. Peer nodeId: " + nodeIdOf(remotePeerId));
     }
 
     /**
@@ -151,9 +324,9 @@ public class TraceLogger {
         if (!TraceContext.isSet()) {
             return;
         }
-        writeLog(TraceType.BITSWAP_SERVER_END, remotePeerId,
-                msg.getPayloadCount() + " blocks. Peer nodeId: " + nodeIdMap.get(remotePeerId.toString()));
-        TraceContext.clearTraceId();
+        // Only the first reply ends the span if the reply was split into several messages.
+        closeSpan(TraceType.BITSWAP_SERVER_START, remotePeerId,
+                () -> msg.getPayloadCount() + " blocks. Peer nodeId: " + nodeIdOf(remotePeerId));
     }
 
     /**
@@ -163,7 +336,9 @@ public class TraceLogger {
      */
     public void HandleFileReadStart(Cid cid) {
         if (TraceContext.isSet()) {
-            writeLog(TraceType.READ_FROM_FILE_STORE_START, "Cid: " + cid.toString());
+            TraceContext span = TraceContext.get().child(TraceType.READ_FROM_FILE_STORE_START, newSpanId());
+            TraceContext.set(span);
+            writeLog(TraceType.READ_FROM_FILE_STORE_START, span, null, () -> "Cid: " + cid.toString());
         }
     }
 
@@ -174,19 +349,81 @@ public class TraceLogger {
      */
     public void HandleFileReadEnd(Cid cid) {
         if (TraceContext.isSet()) {
-            writeLog(TraceType.READ_FROM_FILE_STORE_END, "Cid: " + cid.toString());
+            closeSpan(TraceType.READ_FROM_FILE_STORE_START, null, () -> "Cid: " + cid.toString());
+        }
+    }
+
+    /**
+     * A span of work within a trace. Closing it records its end; closing a span
+     * more than once, or closing {@link #NONE}, does nothing.
+     */
+    public static final class Span implements AutoCloseable {
+        public static final Span NONE = new Span(null, null, null, false);
+
+        private final TraceLogger logger;
+        private final TraceContext context;
+        private final TraceContext previous;
+        private final boolean scoped;
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+
+        private Span(TraceLogger logger, TraceContext context, TraceContext previous, boolean scoped) {
+            this.logger = logger;
+            this.context = context;
+            this.previous = previous;
+            this.scoped = scoped;
+        }
+
+        @Override
+        public void close() {
+            if (context == null || !closed.compareAndSet(false, true))
+                return;
+            logger.writeLog(context.openedBy.end(), context, null, () -> "");
+            // spans closed out of order, or on another thread, leave the context alone
+            if (scoped && TraceContext.get() == context)
+                TraceContext.set(previous);
         }
     }
 
     // -------------- PRIVATE MEMBERS -------------
 
+    private Span startSpan(TraceType start, boolean scoped) {
+        TraceContext previous = TraceContext.get();
+        if (previous == TraceContext.NONE)
+            return Span.NONE;
+        TraceContext span = previous.child(start, newSpanId());
+        if (scoped)
+            TraceContext.set(span);
+        writeLog(start, span, null, () -> "");
+        return new Span(this, span, previous, scoped);
+    }
+
+    /**
+     * Records the end of the innermost span on this thread if it was opened by
+     * the given start type, and makes its parent the current span again.
+     */
+    private void closeSpan(TraceType start, PeerId remotePeerId, Supplier<String> debugDetails) {
+        TraceContext span = TraceContext.get();
+        if (span.openedBy != start)
+            return;
+        writeLog(start.end(), span, remotePeerId, debugDetails);
+        TraceContext.set(span.previous);
+    }
+
+    private static long newSpanId() {
+        long id;
+        do {
+            id = ThreadLocalRandom.current().nextLong();
+        } while (id == 0);
+        return id;
+    }
+
     /**
      * Generates a random 32 character hex string.
      * 
      * @return traceId The randomly generated traceId.
      */
     private String generateTraceId() {
-        Random random = new Random();
+        Random random = ThreadLocalRandom.current();
         StringBuilder builder = new StringBuilder();
 
         byte[] bytes = new byte[16]; // length will be length 32 hex chars
@@ -200,68 +437,129 @@ public class TraceLogger {
     }
 
     /**
-     * Holds the context for the current thread trace. The context contains the
-     * trace Id.
+     * A trace id along with its binary form, so binary records don't re-parse
+     * the hex string on every trace point.
      */
-    private static class TraceContext {
-        private static final ThreadLocal<String> traceId = new InheritableThreadLocal<String>() {
+    private static final class TraceId {
+        static final TraceId NONE = new TraceId("", 0, 0);
+
+        final String hex;
+        final long hi, lo;
+
+        private TraceId(String hex, long hi, long lo) {
+            this.hex = hex;
+            this.hi = hi;
+            this.lo = lo;
+        }
+
+        static TraceId parse(String hex) {
+            if (hex.isEmpty())
+                return NONE;
+            try {
+                if (hex.length() == 32)
+                    return new TraceId(hex, Long.parseUnsignedLong(hex.substring(0, 16), 16),
+                            Long.parseUnsignedLong(hex.substring(16), 16));
+            } catch (NumberFormatException e) {
+            }
+            // Not one of ours, keep the text but fall back to a hash for binary records.
+            return new TraceId(hex, hex.hashCode(), 0);
+        }
+    }
+
+    /**
+     * Holds the context for the current thread trace: the trace id and the span
+     * that new spans on this thread are children of. Contexts are immutable, a
+     * child span links back to the context to restore when it ends.
+     *
+     * On the wire the trace id is followed by the id of the span that sent the
+     * message, e.g. "<32 hex chars>-<16 hex chars>".
+     */
+    private static final class TraceContext {
+        static final TraceContext NONE = new TraceContext(TraceId.NONE, 0, 0, TraceType.UNKNOWN, null);
+
+        private static final ThreadLocal<TraceContext> current = new InheritableThreadLocal<TraceContext>() {
             @Override
-            protected String initialValue() {
-                return "";
+            protected TraceContext initialValue() {
+                return NONE;
             }
         };
 
+        final TraceId id;
+        final long spanId, parentSpanId;
+        final TraceType openedBy;
+        final TraceContext previous;
+
+        private TraceContext(TraceId id, long spanId, long parentSpanId, TraceType openedBy, TraceContext previous) {
+            this.id = id;
+            this.spanId = spanId;
+            this.parentSpanId = parentSpanId;
+            this.openedBy = openedBy;
+            this.previous = previous;
+        }
+
+        static TraceContext root(String traceId) {
+            return new TraceContext(TraceId.parse(traceId), 0, 0, TraceType.UNKNOWN, NONE);
+        }
+
+        static TraceContext fromWire(String wire) {
+            int sep = wire.indexOf('-');
+            if (sep < 0)
+                return root(wire);
+            long span;
+            try {
+                span = Long.parseUnsignedLong(wire.substring(sep + 1), 16);
+            } catch (NumberFormatException e) {
+                return root(wire);
+            }
+            return new TraceContext(TraceId.parse(wire.substring(0, sep)), span, 0, TraceType.UNKNOWN, NONE);
+        }
+
+        TraceContext child(TraceType openedBy, long spanId) {
+            return new TraceContext(id, spanId, this.spanId, openedBy, this);
+        }
+
+        String toWire() {
+            return spanId == 0 ? id.hex : id.hex + "-" + String.format("%016x", spanId);
+        }
+
         public static boolean isSet() {
-            return !traceId.get().isEmpty();
+            return current.get() != NONE;
         }
 
         public static String getTraceId() {
-            return traceId.get();
+            return current.get().id.hex;
         }
 
-        public static void setTraceId(String newTraceId) {
-            traceId.set(newTraceId);
+        public static TraceContext get() {
+            return current.get();
         }
 
-        public static void clearTraceId() {
-            traceId.set("");
+        public static void set(TraceContext ctx) {
+            current.set(ctx);
         }
-    }
 
-    /**
-     * Represents different types of log points that are captured by the trace
-     * logger.
-     */
-    private enum TraceType {
-        // Catch all.
-        UNKNOWN,
-
-        // Kademlia lookup.
-        GET_PROVIDERS_CLIENT_START,
-        GET_PROVIDERS_SERVER_START,
-        GET_PROVIDERS_SERVER_END,
-        GET_PROVIDERS_CLIENT_END,
-
-        // Bitswap.
-        BITSWAP_CLIENT_START,
-        BITSWAP_SERVER_START,
-        BITSWAP_SERVER_END,
-        BITSWAP_CLIENT_END,
-
-        // File read.
-        READ_FROM_FILE_STORE_START,
-        READ_FROM_FILE_STORE_END,
-    };
+        public static void clear() {
+            current.set(NONE);
+        }
+    }
 
     private static TraceLogger traceLogger = null;
 
     // Maps peer Id (as string) to node Id.
     private HashMap<String, Integer> nodeIdMap;
+    // The same mapping keyed by peer Id, to avoid base58 encoding on every trace point.
+    private final Map<PeerId, Integer> peerIndex = new HashMap<>();
     private int currentNodeId;
     private final int MAX_LOG_FILE_SIZE_MB = 16 * 1024 * 1024; // 16MB log file size. Inspired by typical PSQL WAL size.
 
+    private volatile boolean echoToStdout = true;
+    private volatile BinaryTraceWriter binaryWriter = null;
+    private volatile double headSampleRate = 0;
+    private volatile TailSampler tailSampler = null;
+
     FileOutputStream outFile = null;
     BufferedOutputStream output = null;
+    long outputBytes = 0;
     Thread flusher;
 
     private TraceLogger() {
@@ -277,14 +575,20 @@ public class TraceLogger {
         nodeIdMap.put("12D3KooWHyor6CQ21vMhtSJ2qb1YEBfv9vgpe1VgA5iMYT4DTd9T", 7);
         nodeIdMap.put("12D3KooWJWcBwDHBo7ecoBCsT8FJWvQax4Wmn2iKTCvG6uhLKZN6", 8);
         nodeIdMap.put("12D3KooWCfWmdJYdAUwm1pTxFKsRDRzGmsbeUMpriNNocMDVMmum", 9);
+        nodeIdMap.forEach((peer, index) -> peerIndex.put(PeerId.fromBase58(peer), index));
         currentNodeId = -1;
+    }
 
-        createAndSetupOutput();
-
+    private Integer nodeIdOf(PeerId peer) {
+        return peerIndex.get(peer);
     }
 
     private void createAndSetupOutput() {
         try {
+            if (output != null) {
+                output.flush();
+                output.close();
+            }
             // Prepend each log file with the creation timestamp
             long logFileCreationTimestampNanos = System.nanoTime();
 
@@ -292,76 +596,81 @@ public class TraceLogger {
                     Client.DEFAULT_IPFS_DIR_PATH.toAbsolutePath().toString() + "/" + logFileCreationTimestampNanos
                             + ".trace.log",
                     /* append= */ true);
+            outputBytes = 0;
 
-            // An output stream with 100 MB buffer.
-            output = new BufferedOutputStream(outFile, 100 * 1024 * 1024);
-            flusher = new Thread(new Thread(new Runnable() {
-                public void run() {
+            // The flusher runs every second, so a small buffer is plenty.
+            output = new BufferedOutputStream(outFile, 1024 * 1024);
+            if (flusher == null) {
+                flusher = new Thread(() -> {
                     try {
                         flushLogs();
                     } catch (IOException e) {
                         e.printStackTrace();
                     } catch (InterruptedException ie) {
                         Thread.currentThread().interrupt();
-                        return;
                     }
-                }
-            }));
-            flusher.start();
-        } catch (FileNotFoundException e) {
+                }, "Trace flusher");
+                flusher.setDaemon(true);
+                flusher.start();
+            }
+        } catch (IOException e) {
             e.printStackTrace();
             return;
         }
     }
 
-    private void writeLog(TraceType type, String debugDetails) {
-        StringBuilder builder = new StringBuilder();
-        builder.append(TraceContext.getTraceId() + "\t");
-        builder.append(currentNodeId + "\t");
-        builder.append(Thread.currentThread().getId() + "\t");
+    private void writeLog(TraceType type, TraceContext ctx, PeerId remotePeerId, Supplier<String> debugDetails) {
+        long threadId = Thread.currentThread().getId();
         long currentTimeNanos = System.nanoTime();
-        builder.append(currentTimeNanos + "\t");
-        builder.append(new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS").format(new Date(currentTimeNanos)) + "\t");
-        builder.append(type.name() + "\t");
-        builder.append(debugDetails);
-        builder.append("\n");
-        String log = builder.toString();
-        // TODO(sonudoo): Turn off logging to stdout.
-        System.out.print(log);
-
-        _writeLog(log);
+        TailSampler tail = tailSampler;
+        if (tail != null && ctx.id != TraceId.NONE
+                && tail.defer(ctx.id.hex, () -> emit(ctx, type, remotePeerId, threadId, currentTimeNanos, debugDetails)))
+            return;
+        emit(ctx, type, remotePeerId, threadId, currentTimeNanos, debugDetails);
     }
 
-    private void writeLog(TraceType type, PeerId remotePeerId, String debugDetails) {
+    private void emit(TraceContext ctx, TraceType type, PeerId remotePeerId, long threadId, long currentTimeNanos,
+                      Supplier<String> debugDetails) {
+        BinaryTraceWriter binary = binaryWriter;
+        if (binary != null) {
+            Integer peer = remotePeerId == null ? null : nodeIdOf(remotePeerId);
+            binary.record(ctx.id.hi, ctx.id.lo, ctx.spanId, ctx.parentSpanId, peer == null ? -1 : peer, type,
+                    threadId, currentTimeNanos);
+            if (!echoToStdout)
+                return;
+        }
         StringBuilder builder = new StringBuilder();
-        builder.append(TraceContext.getTraceId() + "\t");
+        builder.append(ctx.id.hex + "\t");
+        builder.append(String.format("%016x\t%016x\t", ctx.spanId, ctx.parentSpanId));
         builder.append(currentNodeId + "\t");
-        builder.append(remotePeerId.toString() + "\t");
-        builder.append(Thread.currentThread().getId() + "\t");
-        long currentTimeNanos = System.nanoTime();
+        if (remotePeerId != null)
+            builder.append(remotePeerId.toString() + "\t");
+        builder.append(threadId + "\t");
         builder.append(currentTimeNanos + "\t");
         builder.append(new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS").format(new Date(currentTimeNanos)) + "\t");
         builder.append(type.name() + "\t");
-        builder.append(debugDetails);
+        builder.append(debugDetails.get());
         builder.append("\n");
         String log = builder.toString();
-        // TODO(sonudoo): Turn off logging to stdout.
-        System.out.print(log);
+        if (echoToStdout)
+            System.out.print(log);
 
-        _writeLog(log);
+        if (binary == null)
+            _writeLog(log);
     }
 
     private void _writeLog(String log) {
+        byte[] bytes = log.getBytes(Charset.forName("UTF-8"));
         synchronized (this) {
             try {
-                synchronized (this) {
-                    // Rollover to a new log file after log file limit is exceeded.
-                    if (outFile.getChannel().size() > MAX_LOG_FILE_SIZE_MB) {
-                        flusher.interrupt();
-                        createAndSetupOutput();
-                    }
-                    output.write(log.getBytes(Charset.forName("UTF-8")));
-                }
+                // The text output is only created once something is traced in text mode.
+                if (output == null)
+                    createAndSetupOutput();
+                // Rollover to a new log file after log file limit is exceeded.
+                if (outputBytes > MAX_LOG_FILE_SIZE_MB)
+                    createAndSetupOutput();
+                output.write(bytes);
+                outputBytes += bytes.length;
             } catch (IOException e) {
                 e.printStackTrace();
             }
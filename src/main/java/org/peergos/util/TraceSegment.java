@@ -0,0 +1,160 @@
+package org.peergos.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The on-disk layout of a binary trace segment, and a reader for it.
+ *
+ * A segment is a pre-sized file that is written through a memory mapping. It
+ * starts with a fixed {@link #HEADER_SIZE} byte header:
+ *
+ * <pre>
+ *  0  magic            int
+ *  4  format version   int
+ *  8  record size      int
+ * 12  node id          int
+ * 16  creation nanos   long
+ * 24  creation millis  long (wall clock)
+ * 32  record count     long
+ * 40  min nanoTime     long
+ * 48  max nanoTime     long
+ * 56  index interval   int
+ * 60  index entries    int
+ * 64  index            long[] nanoTime of every index interval'th record
+ * </pre>
+ *
+ * followed by back to back records of {@link #RECORD_SIZE} bytes. The record
+ * count is updated after every batch the writer appends, so a reader only sees
+ * complete records even if the node died mid-segment.
+ */
+public final class TraceSegment {
+    public static final int MAGIC = 0x4E545243; // "NTRC"
+    public static final int FORMAT_VERSION = 3;
+    public static final int HEADER_SIZE = 4096;
+    public static final int RECORD_SIZE = TraceBuffer.RECORD_SIZE;
+    public static final String FILE_SUFFIX = ".trace.bin";
+
+    static final int RECORD_COUNT_OFFSET = 32;
+    static final int MIN_NANOS_OFFSET = 40;
+    static final int MAX_NANOS_OFFSET = 48;
+    static final int INDEX_INTERVAL_OFFSET = 56;
+    static final int INDEX_ENTRIES_OFFSET = 60;
+    static final int INDEX_OFFSET = 64;
+    static final int MAX_INDEX_ENTRIES = (HEADER_SIZE - INDEX_OFFSET) / Long.BYTES;
+    // Offset of the nanoTime field within a record.
+    static final int RECORD_NANOS_OFFSET = 5 * Long.BYTES;
+
+    /**
+     * A single decoded trace event.
+     */
+    public static final class Record {
+        public final long traceIdHi, traceIdLo;
+        public final long spanId, parentSpanId;
+        public final long threadId;
+        public final long nanoTime;
+        public final int nodeId;
+        public final int peerIndex;
+        public final TraceType type;
+
+        public Record(long traceIdHi, long traceIdLo, long spanId, long parentSpanId, long threadId, long nanoTime,
+                      int nodeId, int peerIndex, TraceType type) {
+            this.traceIdHi = traceIdHi;
+            this.traceIdLo = traceIdLo;
+            this.spanId = spanId;
+            this.parentSpanId = parentSpanId;
+            this.threadId = threadId;
+            this.nanoTime = nanoTime;
+            this.nodeId = nodeId;
+            this.peerIndex = peerIndex;
+            this.type = type;
+        }
+
+        public boolean hasTrace() {
+            return traceIdHi != 0 || traceIdLo != 0;
+        }
+
+        public String traceId() {
+            return String.format("%016x%016x", traceIdHi, traceIdLo);
+        }
+    }
+
+    public final Path file;
+    public final int nodeId;
+    public final long creationNanos;
+    public final long creationMillis;
+    public final long minNanos, maxNanos;
+    public final List<Record> records;
+
+    private TraceSegment(Path file, int nodeId, long creationNanos, long creationMillis, long minNanos,
+                         long maxNanos, List<Record> records) {
+        this.file = file;
+        this.nodeId = nodeId;
+        this.creationNanos = creationNanos;
+        this.creationMillis = creationMillis;
+        this.minNanos = minNanos;
+        this.maxNanos = maxNanos;
+        this.records = records;
+    }
+
+    /**
+     * Writes the header of a new, empty segment.
+     */
+    static void writeHeader(ByteBuffer segment, int nodeId, long creationNanos, int indexInterval) {
+        segment.putInt(0, MAGIC);
+        segment.putInt(4, FORMAT_VERSION);
+        segment.putInt(8, RECORD_SIZE);
+        segment.putInt(12, nodeId);
+        segment.putLong(16, creationNanos);
+        segment.putLong(24, System.currentTimeMillis());
+        segment.putLong(RECORD_COUNT_OFFSET, 0);
+        segment.putLong(MIN_NANOS_OFFSET, Long.MAX_VALUE);
+        segment.putLong(MAX_NANOS_OFFSET, Long.MIN_VALUE);
+        segment.putInt(INDEX_INTERVAL_OFFSET, indexInterval);
+        segment.putInt(INDEX_ENTRIES_OFFSET, 0);
+    }
+
+    public static TraceSegment read(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE)
+                throw new IOException("Truncated trace segment: " + file);
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (in.getInt(0) != MAGIC)
+                throw new IOException("Not a trace segment: " + file);
+            int version = in.getInt(4);
+            if (version != FORMAT_VERSION)
+                throw new IOException("Unsupported trace segment version " + version + ": " + file);
+            int recordSize = in.getInt(8);
+            if (recordSize != RECORD_SIZE)
+                throw new IOException("Unexpected trace record size " + recordSize + ": " + file);
+            int nodeId = in.getInt(12);
+            long count = Math.min(in.getLong(RECORD_COUNT_OFFSET), (size - HEADER_SIZE) / RECORD_SIZE);
+            List<Record> records = new ArrayList<>((int) count);
+            for (long i = 0; i < count; i++) {
+                int offset = (int) (HEADER_SIZE + i * RECORD_SIZE);
+                long nodeAndPeer = in.getLong(offset + 6 * Long.BYTES);
+                records.add(new Record(
+                        in.getLong(offset),
+                        in.getLong(offset + Long.BYTES),
+                        in.getLong(offset + 2 * Long.BYTES),
+                        in.getLong(offset + 3 * Long.BYTES),
+                        in.getLong(offset + 4 * Long.BYTES),
+                        in.getLong(offset + RECORD_NANOS_OFFSET),
+                        (int) (nodeAndPeer >>> 32),
+                        (int) nodeAndPeer,
+                        TraceType.fromOrdinal((int) in.getLong(offset + 7 * Long.BYTES))));
+            }
+            return new TraceSegment(file, nodeId, in.getLong(16), in.getLong(24),
+                    in.getLong(MIN_NANOS_OFFSET), in.getLong(MAX_NANOS_OFFSET),
+                    Collections.unmodifiableList(records));
+        }
+    }
+}
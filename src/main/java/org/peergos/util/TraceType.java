@@ -0,0 +1,89 @@
+package org.peergos.util;
+
+/**
+ * Represents different types of log points that are captured by the trace
+ * logger. The ordinal is written into binary trace records, so new values must
+ * only ever be appended.
+ */
+public enum TraceType {
+    // Catch all.
+    UNKNOWN,
+
+    // Kademlia lookup.
+    GET_PROVIDERS_CLIENT_START,
+    GET_PROVIDERS_SERVER_START,
+    GET_PROVIDERS_SERVER_END,
+    GET_PROVIDERS_CLIENT_END,
+
+    // Bitswap.
+    BITSWAP_CLIENT_START,
+    BITSWAP_SERVER_START,
+    BITSWAP_SERVER_END,
+    BITSWAP_CLIENT_END,
+
+    // File read.
+    READ_FROM_FILE_STORE_START,
+    READ_FROM_FILE_STORE_END,
+
+    // EmbeddedIpfs.getBlocks, local reads and the remote fetch.
+    GET_BLOCKS_START,
+    GET_BLOCKS_END,
+
+    // BitswapBlockService.get, provider lookup and bitswap fetch.
+    BLOCK_SERVICE_GET_START,
+    BLOCK_SERVICE_GET_END,
+
+    // One round of parallel queries in a Kademlia provider lookup. No longer
+    // written, as lookups are no longer done in rounds; see DHT_LOOKUP.
+    FIND_PROVIDERS_ROUND_START,
+    FIND_PROVIDERS_ROUND_END,
+
+    // Dialling a peer, including connection setup when not already connected.
+    DIAL_PEER_START,
+    DIAL_PEER_END,
+
+    // Reading a wanted block from the local store to answer a bitswap request.
+    BITSWAP_STORE_READ_START,
+    BITSWAP_STORE_READ_END,
+
+    // S3 blockstore requests.
+    S3_REQUEST_START,
+    S3_REQUEST_END,
+
+    // H2 block metadata queries.
+    H2_QUERY_START,
+    H2_QUERY_END,
+
+    // EmbeddedIpfs.getDag, fetching a DAG while following its links.
+    DAG_GET_START,
+    DAG_GET_END,
+
+    // A Kademlia provider lookup, with each query as a child.
+    DHT_LOOKUP_START,
+    DHT_LOOKUP_END;
+
+    private static final TraceType[] VALUES = values();
+    private static final TraceType[] ENDS = new TraceType[VALUES.length];
+
+    static {
+        for (TraceType t : VALUES) {
+            String name = t.name();
+            ENDS[t.ordinal()] = name.endsWith("_START")
+                    ? valueOf(name.substring(0, name.length() - "_START".length()) + "_END")
+                    : t;
+        }
+    }
+
+    public static TraceType fromOrdinal(int ordinal) {
+        if (ordinal < 0 || ordinal >= VALUES.length)
+            return UNKNOWN;
+        return VALUES[ordinal];
+    }
+
+    /**
+     * The matching *_END type of a *_START type.
+     */
+    public TraceType end() {
+        return ENDS[ordinal()];
+    }
+}
@@ -0,0 +1,24 @@
+package org.peergos;
+
+import org.junit.*;
+import org.peergos.config.*;
+
+import java.util.*;
+
+public class ConfigTest {
+
+    @Test
+    public void packedMountWithoutAPath() {
+        Map<String, Object> params = new LinkedHashMap<>();
+        params.put("type", "packed");
+        Config config = new Config(() -> new Mount("/blocks", "packed.datastore", "measure", params));
+
+        Config parsed = Config.build(config.toString());
+        Mount blocks = parsed.datastore.blockMount;
+        Assert.assertEquals("packed.datastore", blocks.prefix);
+        Assert.assertEquals("packed", blocks.getParams().get("type"));
+        // EmbeddedIpfs stores the segments in "blocks"
+        Assert.assertFalse(blocks.getParams().containsKey("path"));
+        Assert.assertEquals(config.datastore.blockMount.toJson(), blocks.toJson());
+    }
+}
@@ -0,0 +1,80 @@
+package org.peergos;
+
+import com.google.protobuf.*;
+import io.ipfs.cid.*;
+import io.ipfs.multihash.Multihash;
+import org.junit.*;
+
+import java.io.*;
+import java.util.*;
+
+public class DagFetchTest {
+
+    private static Cid raw(String data) {
+        return new Cid(1, Cid.Codec.Raw, Multihash.Type.sha2_256, Hash.sha256(data.getBytes()));
+    }
+
+    private static byte[] pbLink(byte[] hash, String name, long size) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        CodedOutputStream link = CodedOutputStream.newInstance(bout);
+        link.writeByteArray(1, hash);
+        link.writeString(2, name);
+        link.writeUInt64(3, size);
+        link.flush();
+        return bout.toByteArray();
+    }
+
+    /**
+     * A PBNode, with its links before its data as in canonical dag-pb.
+     */
+    private static byte[] pbNode(List<byte[]> links, byte[] data) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        CodedOutputStream node = CodedOutputStream.newInstance(bout);
+        for (byte[] link : links)
+            node.writeByteArray(2, link);
+        node.writeByteArray(1, data);
+        node.flush();
+        return bout.toByteArray();
+    }
+
+    @Test
+    public void dagPbLinksInOrder() throws IOException {
+        Cid a = raw("a"), b = raw("b");
+        byte[] node = pbNode(List.of(pbLink(a.toBytes(), "a", 1), pbLink(b.toBytes(), "b", 1)), "data".getBytes());
+        Assert.assertEquals(List.of(a, b), DagFetch.dagPbLinks(node));
+    }
+
+    @Test
+    public void dagPbCidV0Links() throws IOException {
+        Multihash v0 = new Multihash(Multihash.Type.sha2_256, Hash.sha256("a".getBytes()));
+        byte[] node = pbNode(List.of(pbLink(v0.toBytes(), "", 1)), new byte[0]);
+        List<Cid> links = DagFetch.dagPbLinks(node);
+        Assert.assertEquals(1, links.size());
+        Assert.assertEquals(0, links.get(0).version);
+        Assert.assertArrayEquals(v0.toBytes(), links.get(0).toBytes());
+    }
+
+    @Test
+    public void dagPbLeafHasNoLinks() throws IOException {
+        Assert.assertEquals(Collections.emptyList(), DagFetch.dagPbLinks(pbNode(List.of(), "leaf".getBytes())));
+        Assert.assertEquals(Collections.emptyList(), DagFetch.dagPbLinks(new byte[0]));
+    }
+
+    @Test
+    public void dagPbSkipsUnknownFields() throws IOException {
+        Cid a = raw("a");
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        CodedOutputStream node = CodedOutputStream.newInstance(bout);
+        node.writeUInt64(7, 42);
+        node.writeByteArray(2, pbLink(a.toBytes(), "a", 1));
+        node.writeString(9, "ignored");
+        node.flush();
+        Assert.assertEquals(List.of(a), DagFetch.dagPbLinks(bout.toByteArray()));
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedDagPbFails() throws IOException {
+        byte[] node = pbNode(List.of(pbLink(raw("a").toBytes(), "a", 1)), "data".getBytes());
+        DagFetch.dagPbLinks(Arrays.copyOf(node, 10));
+    }
+}
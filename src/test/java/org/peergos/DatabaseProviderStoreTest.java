@@ -0,0 +1,83 @@
+package org.peergos;
+
+import com.google.protobuf.*;
+import io.ipfs.cid.Cid;
+import io.ipfs.multihash.Multihash;
+import io.libp2p.core.*;
+import org.junit.Assert;
+import org.junit.Test;
+import org.peergos.protocol.dht.DatabaseProviderStore;
+import org.peergos.protocol.dht.pb.*;
+
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.*;
+
+public class DatabaseProviderStoreTest {
+
+    private static Dht.Message.Peer peer() {
+        return Dht.Message.Peer.newBuilder()
+                .setId(ByteString.copyFrom(PeerId.random().getBytes()))
+                .build();
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 30_000;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline)
+                Assert.fail("Timed out");
+            Thread.sleep(10);
+        }
+    }
+
+    private static void awaitWrites(DatabaseProviderStore store) throws InterruptedException {
+        await(() -> store.pendingRecords() == 0);
+    }
+
+    @Test
+    public void persistsProviders() throws Exception {
+        Path dir = Files.createTempDirectory("providers");
+        String location = dir.resolve("providers").toAbsolutePath().toString();
+        Cid block = Cid.decode("zb2rhYSxw4ZjuzgCnWSt19Q94ERaeFhu9uSqRgjSdx9bsgM6f");
+        Dht.Message.Peer a = peer(), b = peer();
+        try (DatabaseProviderStore store = new DatabaseProviderStore(location)) {
+            store.addProvider(block, a);
+            // visible before it is written
+            Assert.assertEquals(Set.of(a), store.getProviders(block));
+            awaitWrites(store);
+            store.addProvider(block, b);
+            store.addProvider(block, a);
+            Assert.assertEquals(Set.of(a, b), store.getProviders(block));
+        }
+        try (DatabaseProviderStore store = new DatabaseProviderStore(location)) {
+            Assert.assertEquals(Set.of(a, b), store.getProviders(block));
+        }
+    }
+
+    @Test
+    public void expiresProviders() throws Exception {
+        Cid block = Cid.decode("zb2rhYSxw4ZjuzgCnWSt19Q94ERaeFhu9uSqRgjSdx9bsgM6f");
+        try (DatabaseProviderStore store = new DatabaseProviderStore("mem:", 1_000)) {
+            store.addProvider(block, peer());
+            Assert.assertEquals(1, store.getProviders(block).size());
+            awaitWrites(store);
+            await(() -> store.getProviders(block).isEmpty());
+            Assert.assertEquals(1, store.collectGarbage());
+        }
+    }
+
+    @Test
+    public void batchesManyProviders() throws Exception {
+        try (DatabaseProviderStore store = new DatabaseProviderStore("mem:")) {
+            List<Cid> blocks = new ArrayList<>();
+            for (int i = 0; i < 5_000; i++) {
+                Cid block = new Cid(1, Cid.Codec.Raw, Multihash.Type.sha2_256, Hash.sha256(("block" + i).getBytes()));
+                blocks.add(block);
+                store.addProvider(block, peer());
+            }
+            awaitWrites(store);
+            for (Cid block : blocks)
+                Assert.assertEquals(1, store.getProviders(block).size());
+        }
+    }
+}
@@ -55,6 +55,11 @@ public class FindProviderTest {
             List<PeerAddresses> providers = dht.findProviders(block, node1, 10).join();
             if (providers.isEmpty())
                 throw new IllegalStateException("Couldn't find provider of block!");
+
+            List<PeerAddresses> streamed = Collections.synchronizedList(new ArrayList<>());
+            List<PeerAddresses> found = dht.findProviders(block, node1, 10, streamed::add).join();
+            if (streamed.size() != found.size())
+                throw new IllegalStateException("Providers weren't all streamed!");
         } finally {
             node1.stop();
         }
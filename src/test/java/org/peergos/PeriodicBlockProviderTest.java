@@ -0,0 +1,72 @@
+package org.peergos;
+
+import org.junit.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+public class PeriodicBlockProviderTest {
+
+    private static byte[] id(int... prefix) {
+        byte[] id = new byte[32];
+        for (int i = 0; i < prefix.length; i++)
+            id[i] = (byte) prefix[i];
+        return id;
+    }
+
+    @Test
+    public void commonPrefixLength() {
+        Assert.assertEquals(256, PeriodicBlockProvider.commonPrefixLength(id(0x12, 0x34), id(0x12, 0x34)));
+        Assert.assertEquals(0, PeriodicBlockProvider.commonPrefixLength(id(0x80), id(0x00)));
+        Assert.assertEquals(7, PeriodicBlockProvider.commonPrefixLength(id(0x01), id(0x00)));
+        Assert.assertEquals(12, PeriodicBlockProvider.commonPrefixLength(id(0x00, 0x10), id(0x00, 0x18)));
+        Assert.assertEquals(255, PeriodicBlockProvider.commonPrefixLength(id(), id(0, 0, 0, 0, 0, 0, 0, 0,
+                0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0x01)));
+    }
+
+    @Test
+    public void regionsEndWhereTheFurthestPeerDiverges() {
+        // prefixes of 15, 8, 7 and 0 bits with the first key
+        List<byte[]> ids = List.of(id(0x00, 0x00), id(0x00, 0x01), id(0x00, 0x80), id(0x01), id(0x80));
+
+        // the furthest peer shares 8 bits, so only keys sharing more are in the region
+        Assert.assertEquals(2, PeriodicBlockProvider.regionEnd(ids, 0, List.of(id(0x00, 0x20), id(0x00, 0x80))));
+        // a peer sharing 7 bits takes in the key sharing 8
+        Assert.assertEquals(3, PeriodicBlockProvider.regionEnd(ids, 0, List.of(id(0x00, 0x20), id(0x01))));
+        // a peer in the other half of the keyspace takes in every key in this half
+        Assert.assertEquals(4, PeriodicBlockProvider.regionEnd(ids, 0, List.of(id(0x80))));
+        // no key shares more than the closest possible peer
+        Assert.assertEquals(1, PeriodicBlockProvider.regionEnd(ids, 0, List.of(id(0x00, 0x00))));
+        // regions start anywhere and can run to the end of the keys
+        Assert.assertEquals(4, PeriodicBlockProvider.regionEnd(ids, 1, List.of(id(0x80))));
+        Assert.assertEquals(5, PeriodicBlockProvider.regionEnd(ids, 4, List.of(id(0x00))));
+    }
+
+    @Test
+    public void noPeersIsARegionOfOne() {
+        List<byte[]> ids = List.of(id(0x00, 0x00), id(0x00, 0x01));
+        Assert.assertEquals(1, PeriodicBlockProvider.regionEnd(ids, 0, Collections.emptyList()));
+    }
+
+    @Test
+    public void sendsArePacedToTheBudget() {
+        PeriodicBlockProvider provider = new PeriodicBlockProvider(1_000, null, null, null,
+                new LinkedBlockingDeque<>(), ReprovideSchedule.NONE, 100);
+        long millis = 1_000_000L;
+        long now = System.nanoTime();
+
+        Assert.assertEquals(0, provider.reserveBudget(10, now));
+        // 10 keys at 100 per second take 100ms
+        Assert.assertEquals(100 * millis, provider.reserveBudget(10, now));
+        Assert.assertEquals(200 * millis, provider.reserveBudget(1, now));
+
+        // budget left unused while idle isn't saved up for a burst
+        long later = now + 1_000 * millis;
+        Assert.assertEquals(0, provider.reserveBudget(5, later));
+        Assert.assertEquals(50 * millis, provider.reserveBudget(1, later));
+
+        provider.setMaxKeysPerSecond(1_000);
+        Assert.assertEquals(60 * millis, provider.reserveBudget(1, later));
+        Assert.assertEquals(61 * millis, provider.reserveBudget(1, later));
+    }
+}
@@ -0,0 +1,107 @@
+package org.peergos;
+
+import io.ipfs.cid.*;
+import io.ipfs.multihash.Multihash;
+import io.libp2p.core.*;
+import org.junit.*;
+import org.peergos.cbor.*;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+public class ProviderCacheTest {
+    private static final long TTL = 10_000, NEGATIVE_TTL = 1_000;
+
+    private final AtomicLong clock = new AtomicLong(0);
+    private final ProviderCache cache = new ProviderCache(100, TTL, NEGATIVE_TTL, clock::get);
+    private final PeerId alice = PeerId.random(), bob = PeerId.random();
+
+    private static Cid raw(String data) {
+        return new Cid(1, Cid.Codec.Raw, Multihash.Type.sha2_256, Hash.sha256(data.getBytes()));
+    }
+
+    private static HashedBlock rawBlock(String data) {
+        return new HashedBlock(raw(data), data.getBytes());
+    }
+
+    @Test
+    public void providersExpireAfterTheTtl() {
+        Cid block = raw("block");
+        cache.put(block, Set.of(alice));
+        clock.set(TTL);
+        Assert.assertEquals(Optional.of(Set.of(alice)), cache.get(block));
+        clock.set(TTL + 1);
+        Assert.assertEquals(Optional.empty(), cache.get(block));
+    }
+
+    @Test
+    public void lookupsThatFoundNobodyExpireSooner() {
+        Cid block = raw("block");
+        cache.put(block, Collections.emptySet());
+        clock.set(NEGATIVE_TTL);
+        Assert.assertEquals(Optional.of(Collections.emptySet()), cache.get(block));
+        clock.set(NEGATIVE_TTL + 1);
+        Assert.assertEquals(Optional.empty(), cache.get(block));
+    }
+
+    @Test
+    public void servingPeersProvideTheLinkedBlocks() {
+        Cid left = raw("left"), right = raw("right");
+        Map<String, Cborable> links = new TreeMap<>();
+        links.put("left", new CborObject.CborMerkleLink(left));
+        links.put("right", new CborObject.CborMerkleLink(right));
+        byte[] data = CborObject.CborMap.build(links).toByteArray();
+        Cid root = new Cid(1, Cid.Codec.DagCbor, Multihash.Type.sha2_256, Hash.sha256(data));
+
+        cache.served(new HashedBlock(root, data), Set.of(alice));
+        Assert.assertEquals(Optional.of(Set.of(alice)), cache.get(root));
+        Assert.assertEquals(Optional.of(Set.of(alice)), cache.get(left));
+        Assert.assertEquals(Optional.of(Set.of(alice)), cache.get(right));
+        // served entries last as long as lookups
+        clock.set(TTL + 1);
+        Assert.assertEquals(Optional.empty(), cache.get(left));
+    }
+
+    @Test
+    public void rawBlocksOnlyProvideThemselves() {
+        HashedBlock block = rawBlock("block");
+        cache.served(block, Set.of(alice));
+        Assert.assertEquals(Optional.of(Set.of(alice)), cache.get(block.hash));
+    }
+
+    @Test
+    public void servedWithoutPeersRecordsNothing() {
+        HashedBlock block = rawBlock("block");
+        cache.served(block, Collections.emptySet());
+        Assert.assertEquals(Optional.empty(), cache.get(block.hash));
+    }
+
+    @Test
+    public void servingPeersJoinUnexpiredProviders() {
+        HashedBlock block = rawBlock("block");
+        cache.put(block.hash, Set.of(alice));
+        clock.set(TTL / 2);
+        cache.served(block, Set.of(bob));
+        Assert.assertEquals(Optional.of(Set.of(alice, bob)), cache.get(block.hash));
+        // and the merged entry lasts a full TTL from when the block was served
+        clock.set(TTL / 2 + TTL);
+        Assert.assertEquals(Optional.of(Set.of(alice, bob)), cache.get(block.hash));
+    }
+
+    @Test
+    public void servingPeersReplaceExpiredProviders() {
+        HashedBlock block = rawBlock("block");
+        cache.put(block.hash, Set.of(alice));
+        clock.set(TTL + 1);
+        cache.served(block, Set.of(bob));
+        Assert.assertEquals(Optional.of(Set.of(bob)), cache.get(block.hash));
+    }
+
+    @Test
+    public void servingPeersReplaceALookupThatFoundNobody() {
+        HashedBlock block = rawBlock("block");
+        cache.put(block.hash, Collections.emptySet());
+        cache.served(block, Set.of(bob));
+        Assert.assertEquals(Optional.of(Set.of(bob)), cache.get(block.hash));
+    }
+}
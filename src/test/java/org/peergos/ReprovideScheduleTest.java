@@ -0,0 +1,52 @@
+package org.peergos;
+
+import io.ipfs.cid.Cid;
+import io.ipfs.multihash.Multihash;
+import org.junit.*;
+import org.peergos.blockstore.metadatadb.BlockMetadataStore;
+import org.peergos.blockstore.metadatadb.JdbcBlockMetadataStore;
+import org.peergos.blockstore.metadatadb.sql.H2BlockMetadataCommands;
+import org.peergos.blockstore.metadatadb.sql.UncloseableConnection;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.util.*;
+
+public class ReprovideScheduleTest {
+
+    private static BlockMetadataStore store() throws Exception {
+        Connection h2Instance = DriverManager.getConnection("jdbc:h2:" +
+                "mem:" + ";MODE=PostgreSQL;DATABASE_TO_LOWER=TRUE;DEFAULT_NULL_ORDERING=HIGH");
+        Connection instance = new UncloseableConnection(h2Instance);
+        instance.setAutoCommit(true);
+        return new JdbcBlockMetadataStore(() -> instance, new H2BlockMetadataCommands());
+    }
+
+    private static List<Cid> blocks(int count) {
+        List<Cid> res = new ArrayList<>();
+        for (int i = 0; i < count; i++)
+            res.add(new Cid(1, Cid.Codec.Raw, Multihash.Type.sha2_256, Hash.sha256(("block" + i).getBytes())));
+        return res;
+    }
+
+    @Test
+    public void onlyStaleBlocksAreDue() throws Exception {
+        BlockMetadataStore schedule = store();
+        List<Cid> blocks = blocks(1_200);
+        Assert.assertEquals(blocks, schedule.providedBefore(blocks, 1_000));
+
+        schedule.setProvided(blocks.subList(0, 700), 500);
+        schedule.setProvided(blocks.subList(700, 1_000), 2_000);
+        List<Cid> due = new ArrayList<>(blocks.subList(0, 700));
+        due.addAll(blocks.subList(1_000, 1_200));
+        Assert.assertEquals(due, schedule.providedBefore(blocks, 1_000));
+
+        // providing again moves a block back
+        schedule.setProvided(blocks.subList(0, 700), 3_000);
+        Assert.assertEquals(blocks.subList(1_000, 1_200), schedule.providedBefore(blocks, 1_000));
+
+        // a removed block is due once it is added again
+        schedule.remove(blocks.get(0));
+        Assert.assertEquals(List.of(blocks.get(0)), schedule.providedBefore(blocks.subList(0, 1), 1_000));
+    }
+}
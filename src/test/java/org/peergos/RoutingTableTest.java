@@ -0,0 +1,98 @@
+package org.peergos;
+
+import io.ipfs.multihash.Multihash;
+import io.libp2p.core.*;
+import org.junit.*;
+import org.peergos.protocol.dht.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class RoutingTableTest {
+
+    private static RoutingTable table(int peers) {
+        RoutingTable table = new RoutingTable(Multihash.deserialize(PeerId.random().getBytes()), 2, 20, 20);
+        for (int i = 0; i < peers; i++)
+            table.add(PeerId.random());
+        return table;
+    }
+
+    private static byte[] distance(PeerId peer, byte[] key) {
+        byte[] a = Hash.sha256(peer.getBytes()), b = Hash.sha256(key);
+        byte[] res = new byte[a.length];
+        for (int i = 0; i < res.length; i++)
+            res[i] = (byte) (a[i] ^ b[i]);
+        return res;
+    }
+
+    @Test
+    public void closestByXorDistance() {
+        RoutingTable table = table(2_000);
+        Random r = new Random(42);
+        for (int i = 0; i < 100; i++) {
+            byte[] key = new byte[32];
+            r.nextBytes(key);
+            List<PeerId> all = table.closest(key, Integer.MAX_VALUE);
+            Assert.assertEquals(table.size(), all.size());
+            for (int j = 1; j < all.size(); j++)
+                Assert.assertTrue(Arrays.compareUnsigned(distance(all.get(j - 1), key), distance(all.get(j), key)) < 0);
+            Assert.assertEquals(all.subList(0, 20), table.closest(key, 20));
+        }
+    }
+
+    @Test
+    public void readsDuringWrites() throws Exception {
+        RoutingTable table = table(100);
+        AtomicBoolean done = new AtomicBoolean();
+        Thread writer = new Thread(() -> {
+            while (!done.get())
+                table.add(PeerId.random());
+        });
+        writer.start();
+        try {
+            for (int i = 0; i < 10_000; i++)
+                Assert.assertEquals(20, table.closest(new byte[]{(byte) i}, 20).size());
+        } finally {
+            done.set(true);
+            writer.join();
+        }
+    }
+
+    @Ignore
+    @Test
+    public void closestPeersBenchmark() throws Exception {
+        RoutingTable table = table(10_000);
+        List<byte[]> keys = new ArrayList<>();
+        Random r = new Random(1);
+        for (int i = 0; i < 1024; i++) {
+            byte[] key = new byte[32];
+            r.nextBytes(key);
+            keys.add(key);
+        }
+        for (int threads = 1; threads <= 2 * Runtime.getRuntime().availableProcessors(); threads *= 2) {
+            ExecutorService pool = Executors.newFixedThreadPool(threads + 1);
+            AtomicBoolean done = new AtomicBoolean();
+            AtomicLong queries = new AtomicLong();
+            // one writer adding peers throughout, as new connections do
+            pool.submit(() -> {
+                while (!done.get())
+                    table.add(PeerId.random());
+            });
+            for (int t = 0; t < threads; t++) {
+                pool.submit(() -> {
+                    int i = 0;
+                    while (!done.get()) {
+                        table.closest(keys.get(i++ & 1023), 20);
+                        queries.incrementAndGet();
+                    }
+                });
+            }
+            Thread.sleep(5_000);
+            done.set(true);
+            pool.shutdown();
+            pool.awaitTermination(10, TimeUnit.SECONDS);
+            System.out.println(threads + " threads: " + queries.get() / 5 + " closest-peer queries/s");
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package org.peergos.blockstore;
+
+import io.ipfs.cid.*;
+import org.junit.*;
+
+public class CachingBlockstoreTest {
+
+    @Test
+    public void repeatReadsHitCache() {
+        SlowBlockstore target = new SlowBlockstore();
+        CachingBlockstore cached = new CachingBlockstore(target, 16 * 1024 * 1024);
+        byte[] block = "hello".getBytes();
+        Cid cid = cached.put(block, Cid.Codec.Raw).join();
+        for (int i = 0; i < 10; i++)
+            Assert.assertArrayEquals(block, cached.get(cid).join().get());
+        Assert.assertEquals(1, target.reads.get());
+
+        Assert.assertTrue(cached.rm(cid).join());
+        Assert.assertTrue(cached.get(cid).join().isEmpty());
+    }
+}
@@ -0,0 +1,49 @@
+package org.peergos.blockstore;
+
+import io.ipfs.cid.*;
+import org.junit.*;
+
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class CoalescingBlockstoreTest {
+
+    @Test
+    public void concurrentCacheMissesShareOneRead() {
+        SlowBlockstore target = new SlowBlockstore();
+        Blockstore blocks = new CoalescingBlockstore(new CachingBlockstore(target, 16 * 1024 * 1024));
+        byte[] block = "shared".getBytes();
+        Cid cid = blocks.put(block, Cid.Codec.Raw).join();
+
+        CompletableFuture<Void> gate = new CompletableFuture<>();
+        target.gate = gate;
+        List<CompletableFuture<Optional<byte[]>>> results = new ArrayList<>();
+        for (int i = 0; i < 10; i++)
+            results.add(blocks.get(cid));
+        gate.complete(null);
+        for (CompletableFuture<Optional<byte[]>> res : results)
+            Assert.assertArrayEquals(block, res.join().get());
+        Assert.assertEquals(1, target.reads.get());
+    }
+
+    @Test
+    public void callersCantChangeEachOthersBlocks() {
+        SlowBlockstore target = new SlowBlockstore();
+        Blockstore blocks = new CoalescingBlockstore(target);
+        byte[] block = "shared".getBytes();
+        Cid cid = blocks.put(block, Cid.Codec.Raw).join();
+
+        CompletableFuture<Void> gate = new CompletableFuture<>();
+        target.gate = gate;
+        CompletableFuture<Optional<byte[]>> first = blocks.get(cid);
+        CompletableFuture<Optional<byte[]>> second = blocks.get(cid);
+        CompletableFuture<Optional<ByteBuffer>> buffer = blocks.getBuffer(cid);
+        gate.complete(null);
+        Assert.assertEquals(1, target.reads.get());
+
+        Arrays.fill(first.join().get(), (byte) 0);
+        Assert.assertArrayEquals("shared".getBytes(), second.join().get());
+        Assert.assertTrue(buffer.join().get().isReadOnly());
+    }
+}
@@ -0,0 +1,80 @@
+package org.peergos.blockstore;
+
+import io.ipfs.cid.*;
+import org.junit.*;
+
+import java.util.*;
+
+public class OffHeapBlockstoreTest {
+    private static Random r = new Random(42);
+
+    @Test
+    public void putGetRemove() {
+        OffHeapBlockstore bs = new OffHeapBlockstore(64 * 1024 * 1024);
+        Map<Cid, byte[]> blocks = new HashMap<>();
+        for (int i = 0; i < 1000; i++) {
+            byte[] block = randomBlock(1 + r.nextInt(10_000));
+            blocks.put(bs.put(block, Cid.Codec.Raw).join(), block);
+        }
+        for (Map.Entry<Cid, byte[]> e : blocks.entrySet())
+            Assert.assertArrayEquals(e.getValue(), bs.get(e.getKey()).join().get());
+        Assert.assertEquals(blocks.size(), bs.refs(false).join().size());
+
+        for (Cid cid : blocks.keySet()) {
+            Assert.assertTrue(bs.rm(cid).join());
+            Assert.assertFalse(bs.has(cid).join());
+        }
+        Assert.assertTrue(bs.refs(false).join().isEmpty());
+    }
+
+    @Test
+    public void boundedWithLruEviction() {
+        long capacity = 8 * 1024 * 1024;
+        OffHeapBlockstore bs = new OffHeapBlockstore(capacity);
+        byte[] hotBlock = randomBlock(1000);
+        Cid hot = bs.put(hotBlock, Cid.Codec.Raw).join();
+        for (int i = 0; i < 100_000; i++) {
+            bs.put(randomBlock(1000), Cid.Codec.Raw);
+            Assert.assertArrayEquals(hotBlock, bs.get(hot).join().get());
+        }
+        Assert.assertTrue(bs.allocatedBytes() <= capacity);
+        Assert.assertTrue(bs.refs(false).join().size() < 100_000);
+
+        // a size class with no pages takes one from another class
+        byte[] big = randomBlock(1024 * 1024);
+        Cid bigCid = bs.put(big, Cid.Codec.Raw).join();
+        Assert.assertArrayEquals(big, bs.get(bigCid).join().get());
+        Assert.assertTrue(bs.allocatedBytes() <= capacity);
+    }
+
+    @Test
+    public void chunksDontWasteHalfTheirSlot() {
+        // one page, which would only fit 8 chunks in 512 KiB slots
+        OffHeapBlockstore bs = new OffHeapBlockstore(4 * 1024 * 1024);
+        List<Cid> chunks = new ArrayList<>();
+        for (int i = 0; i < 15; i++)
+            chunks.add(bs.put(randomBlock(256 * 1024), Cid.Codec.Raw).join());
+        for (Cid chunk : chunks)
+            Assert.assertTrue(bs.has(chunk).join());
+    }
+
+    @Test
+    public void blocksAreFoundByMultihash() {
+        OffHeapBlockstore bs = new OffHeapBlockstore(64 * 1024 * 1024);
+        byte[] block = randomBlock(1000);
+        Cid raw = bs.put(block, Cid.Codec.Raw).join();
+        Cid cbor = new Cid(1, Cid.Codec.DagCbor, raw.getType(), raw.getHash());
+        Assert.assertTrue(bs.hasAny(raw.bareMultihash()).join());
+        Assert.assertArrayEquals(block, bs.get(cbor).join().get());
+        bs.put(cbor, block).join();
+        Assert.assertEquals(List.of(raw), bs.refs(false).join());
+        Assert.assertTrue(bs.rm(cbor).join());
+        Assert.assertFalse(bs.has(raw).join());
+    }
+
+    private static byte[] randomBlock(int size) {
+        byte[] block = new byte[size];
+        r.nextBytes(block);
+        return block;
+    }
+}
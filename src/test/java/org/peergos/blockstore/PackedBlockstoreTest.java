@@ -0,0 +1,115 @@
+package org.peergos.blockstore;
+
+import io.ipfs.cid.*;
+import org.junit.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+public class PackedBlockstoreTest {
+
+    @Test
+    public void putGetRemoveCompactAndReopen() throws IOException {
+        Path dir = Files.createTempDirectory("packed-blocks");
+        Map<Cid, byte[]> blocks = new LinkedHashMap<>();
+        PackedBlockstore store = new PackedBlockstore(dir, 64 * 1024, true);
+        for (byte[] block : readBlocks("blocks.bin")) {
+            Cid cid = store.put(block, Cid.Codec.Raw).join();
+            blocks.put(cid, block);
+        }
+        Assert.assertTrue(blocks.size() > 10);
+        for (Map.Entry<Cid, byte[]> e : blocks.entrySet())
+            Assert.assertArrayEquals(e.getValue(), store.get(e.getKey()).join().get());
+
+        List<Cid> removed = new ArrayList<>();
+        int i = 0;
+        for (Cid cid : blocks.keySet()) {
+            if (i++ % 3 != 0) {
+                Assert.assertTrue(store.rm(cid).join());
+                removed.add(cid);
+            }
+        }
+        store.compact();
+        checkContents(store, blocks, removed);
+        store.close();
+
+        PackedBlockstore reopened = new PackedBlockstore(dir, 64 * 1024, true);
+        checkContents(reopened, blocks, removed);
+        reopened.close();
+    }
+
+    @Test
+    public void truncatedTail() throws IOException {
+        Path dir = Files.createTempDirectory("packed-blocks");
+        PackedBlockstore store = new PackedBlockstore(dir);
+        Cid first = store.put("first".getBytes(), Cid.Codec.Raw).join();
+        Cid second = store.put("second".getBytes(), Cid.Codec.Raw).join();
+        store.close();
+
+        Path segment = Files.list(dir).findFirst().get();
+        try (RandomAccessFile raf = new RandomAccessFile(segment.toFile(), "rw")) {
+            raf.setLength(raf.length() - 2);
+        }
+        PackedBlockstore reopened = new PackedBlockstore(dir);
+        Assert.assertTrue(reopened.has(first).join());
+        Assert.assertFalse(reopened.has(second).join());
+        Cid third = reopened.put("third".getBytes(), Cid.Codec.Raw).join();
+        reopened.close();
+
+        PackedBlockstore again = new PackedBlockstore(dir);
+        Assert.assertTrue(again.has(first).join());
+        Assert.assertArrayEquals("third".getBytes(), again.get(third).join().get());
+        again.close();
+    }
+
+    @Test
+    public void readsAfterAnInterruptedRead() throws IOException {
+        Path dir = Files.createTempDirectory("packed-blocks");
+        PackedBlockstore store = new PackedBlockstore(dir);
+        Cid first = store.put("first".getBytes(), Cid.Codec.Raw).join();
+
+        // an interrupted read closes the segment's channel
+        Thread.currentThread().interrupt();
+        try {
+            store.get(first).join();
+            Assert.fail("Read should have been interrupted");
+        } catch (RuntimeException expected) {
+        } finally {
+            Thread.interrupted();
+        }
+
+        Assert.assertArrayEquals("first".getBytes(), store.get(first).join().get());
+        Cid second = store.put("second".getBytes(), Cid.Codec.Raw).join();
+        Assert.assertArrayEquals("second".getBytes(), store.get(second).join().get());
+        store.close();
+    }
+
+    private static void checkContents(Blockstore store, Map<Cid, byte[]> blocks, List<Cid> removed) {
+        Set<Cid> gone = new HashSet<>(removed);
+        for (Map.Entry<Cid, byte[]> e : blocks.entrySet()) {
+            Optional<byte[]> block = store.get(e.getKey()).join();
+            if (gone.contains(e.getKey()))
+                Assert.assertTrue(block.isEmpty());
+            else
+                Assert.assertArrayEquals(e.getValue(), block.get());
+        }
+        Assert.assertEquals(blocks.size() - gone.size(), store.refs(false).join().size());
+    }
+
+    private static List<byte[]> readBlocks(String file) throws IOException {
+        List<byte[]> res = new ArrayList<>();
+        try (DataInputStream din = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                try {
+                    int cidSize = din.readInt();
+                    din.readNBytes(cidSize);
+                    int len = din.readInt();
+                    res.add(din.readNBytes(len));
+                } catch (EOFException e) {
+                    return res;
+                }
+            }
+        }
+    }
+}
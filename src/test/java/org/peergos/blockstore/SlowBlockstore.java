@@ -0,0 +1,21 @@
+package org.peergos.blockstore;
+
+import io.ipfs.cid.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Counts reads, and holds them until the gate completes.
+ */
+class SlowBlockstore extends RamBlockstore {
+    final AtomicInteger reads = new AtomicInteger();
+    volatile CompletableFuture<Void> gate = CompletableFuture.completedFuture(null);
+
+    @Override
+    public CompletableFuture<Optional<byte[]>> get(Cid c) {
+        reads.incrementAndGet();
+        return gate.thenCompose(x -> super.get(c));
+    }
+}
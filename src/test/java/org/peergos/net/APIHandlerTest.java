@@ -0,0 +1,52 @@
+package org.peergos.net;
+
+import io.ipfs.cid.*;
+import io.ipfs.multihash.Multihash;
+import org.junit.*;
+import org.peergos.*;
+import org.peergos.cbor.*;
+
+import java.io.*;
+import java.util.*;
+
+public class APIHandlerTest {
+
+    private static Cid raw(byte[] data) {
+        return new Cid(1, Cid.Codec.Raw, Multihash.Type.sha2_256, Hash.sha256(data));
+    }
+
+    @Test
+    public void carHeader() throws IOException {
+        Cid root = raw("root".getBytes());
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        long written = APIHandler.writeCarHeader(bout, root);
+        Assert.assertEquals(bout.size(), written);
+
+        ByteArrayInputStream in = new ByteArrayInputStream(bout.toByteArray());
+        long length = Cid.readVarint(in);
+        Assert.assertEquals(in.available(), length);
+        CborObject.CborMap header = (CborObject.CborMap) CborObject.fromByteArray(in.readAllBytes());
+        Assert.assertEquals(1, header.getLong("version"));
+        Assert.assertEquals(List.of(root), header.links());
+    }
+
+    @Test
+    public void carBlocksFollowEachOther() throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        List<byte[]> blocks = List.of("first".getBytes(), new byte[300], new byte[0]);
+        long written = 0;
+        for (byte[] block : blocks)
+            written += APIHandler.writeCarBlock(bout, new HashedBlock(raw(block), block));
+        Assert.assertEquals(bout.size(), written);
+
+        ByteArrayInputStream in = new ByteArrayInputStream(bout.toByteArray());
+        for (byte[] block : blocks) {
+            byte[] cid = raw(block).toBytes();
+            // the length covers the cid and the block, so a 300 byte block needs a two byte varint
+            Assert.assertEquals(cid.length + block.length, Cid.readVarint(in));
+            Assert.assertArrayEquals(cid, in.readNBytes(cid.length));
+            Assert.assertArrayEquals(block, in.readNBytes(block.length));
+        }
+        Assert.assertEquals(0, in.available());
+    }
+}
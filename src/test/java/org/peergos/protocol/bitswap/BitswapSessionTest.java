@@ -0,0 +1,226 @@
+package org.peergos.protocol.bitswap;
+
+import io.ipfs.cid.Cid;
+import io.ipfs.multihash.Multihash;
+import io.libp2p.core.*;
+import org.junit.*;
+import org.peergos.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.stream.*;
+
+public class BitswapSessionTest {
+
+    /**
+     * Records the wants sent to each peer, rather than sending them.
+     */
+    private static class FakeBitswap extends Bitswap {
+        final Set<PeerId> connected;
+        final Set<PeerId> unreachable = ConcurrentHashMap.newKeySet();
+        final Map<PeerId, Set<Want>> wantBlocks = new ConcurrentHashMap<>();
+        final Map<PeerId, Set<Want>> wantHaves = new ConcurrentHashMap<>();
+
+        FakeBitswap(List<PeerId> connected) {
+            super(new BitswapEngine(null, null, Bitswap.MAX_MESSAGE_SIZE));
+            this.connected = new HashSet<>(connected);
+        }
+
+        @Override
+        public Set<PeerId> getBroadcastAudience() {
+            return connected;
+        }
+
+        @Override
+        CompletableFuture<Boolean> sendWants(Host us, PeerId peer, Set<Want> blocks, Set<Want> haves) {
+            if (unreachable.contains(peer))
+                return CompletableFuture.completedFuture(false);
+            wantBlocks.computeIfAbsent(peer, p -> ConcurrentHashMap.newKeySet()).addAll(blocks);
+            wantHaves.computeIfAbsent(peer, p -> ConcurrentHashMap.newKeySet()).addAll(haves);
+            return CompletableFuture.completedFuture(true);
+        }
+
+        Set<PeerId> askedForBlock(Want w) {
+            return askedFor(wantBlocks, w);
+        }
+
+        Set<PeerId> askedIfHave(Want w) {
+            return askedFor(wantHaves, w);
+        }
+
+        private static Set<PeerId> askedFor(Map<PeerId, Set<Want>> sent, Want w) {
+            return sent.entrySet().stream()
+                    .filter(e -> e.getValue().contains(w))
+                    .map(Map.Entry::getKey)
+                    .collect(Collectors.toSet());
+        }
+
+        void clear() {
+            wantBlocks.clear();
+            wantHaves.clear();
+        }
+    }
+
+    private static final long MILLIS = 1_000_000L;
+
+    private final List<PeerId> peers = IntStream.range(0, 6)
+            .mapToObj(i -> PeerId.random())
+            .collect(Collectors.toList());
+    private final FakeBitswap bitswap = new FakeBitswap(peers);
+    private final AtomicLong clock = new AtomicLong(0);
+
+    private BitswapSession session(Set<PeerId> peers) {
+        return new BitswapSession(bitswap, null, peers, clock::get);
+    }
+
+    private static Want want(int i) {
+        return new Want(new Cid(1, Cid.Codec.Raw, Multihash.Type.sha2_256, Hash.sha256(("block" + i).getBytes())));
+    }
+
+    private static PeerId only(Set<PeerId> peers) {
+        Assert.assertEquals(1, peers.size());
+        return peers.iterator().next();
+    }
+
+    @Test
+    public void wantsTheBlockFromOnePeerAndAsksThreeOthers() {
+        BitswapSession session = session(Collections.emptySet());
+        Want w = want(0);
+        session.want(List.of(w));
+
+        PeerId blockPeer = only(bitswap.askedForBlock(w));
+        Set<PeerId> havePeers = bitswap.askedIfHave(w);
+        Assert.assertEquals(3, havePeers.size());
+        Assert.assertFalse(havePeers.contains(blockPeer));
+    }
+
+    @Test
+    public void wantsTheBlockFromTheFastestPeer() {
+        BitswapSession session = session(Collections.emptySet());
+        Want first = want(0);
+        session.want(List.of(first));
+        List<PeerId> asked = new ArrayList<>(bitswap.askedIfHave(first));
+        PeerId fast = asked.get(0), slow = asked.get(1), dontHave = asked.get(2);
+        clock.addAndGet(5 * MILLIS);
+        session.onHave(first, fast);
+        session.onDontHave(first, dontHave);
+        clock.addAndGet(45 * MILLIS);
+        session.onHave(first, slow);
+
+        bitswap.clear();
+        Want second = want(1);
+        session.want(List.of(second));
+        Assert.assertEquals(Set.of(fast), bitswap.askedForBlock(second));
+        // then the other peer that answered, then peers we know nothing about
+        Set<PeerId> haves = bitswap.askedIfHave(second);
+        Assert.assertEquals(3, haves.size());
+        Assert.assertTrue(haves.contains(slow));
+        Assert.assertFalse(haves.contains(dontHave));
+    }
+
+    @Test
+    public void dontHaveMovesTheWantToAPeerThatHasTheBlock() {
+        BitswapSession session = session(Collections.emptySet());
+        Want w = want(0);
+        session.want(List.of(w));
+        PeerId blockPeer = only(bitswap.askedForBlock(w));
+        PeerId hasIt = bitswap.askedIfHave(w).iterator().next();
+        session.onHave(w, hasIt);
+
+        bitswap.clear();
+        session.onDontHave(w, blockPeer);
+        Assert.assertEquals(Set.of(hasIt), bitswap.askedForBlock(w));
+    }
+
+    @Test
+    public void dontHaveFromAnotherPeerKeepsTheWant() {
+        BitswapSession session = session(Collections.emptySet());
+        Want w = want(0);
+        session.want(List.of(w));
+        PeerId other = bitswap.askedIfHave(w).iterator().next();
+
+        bitswap.clear();
+        session.onDontHave(w, other);
+        Assert.assertTrue(bitswap.askedForBlock(w).isEmpty());
+    }
+
+    @Test
+    public void unreachablePeerIsPassedOver() {
+        PeerId unreachable = peers.get(0);
+        bitswap.unreachable.add(unreachable);
+        BitswapSession session = session(Set.of(unreachable, peers.get(1)));
+        Want w = want(0);
+        session.want(List.of(w));
+
+        // the session asks the reachable peer for the block, whichever it tried first
+        Assert.assertEquals(Set.of(peers.get(1)), bitswap.askedForBlock(w));
+    }
+
+    @Test
+    public void timeoutMovesTheWantToTheNextPeer() {
+        BitswapSession session = session(Collections.emptySet());
+        Want w = want(0);
+        session.want(List.of(w));
+        PeerId slow = only(bitswap.askedForBlock(w));
+
+        bitswap.clear();
+        session.retry(List.of(w));
+        PeerId next = only(bitswap.askedForBlock(w));
+        Assert.assertNotEquals(slow, next);
+    }
+
+    @Test
+    public void retriesEveryoneOnceAllHaveBeenTried() {
+        BitswapSession session = session(Set.of(peers.get(0), peers.get(1)));
+        Want w = want(0);
+        session.want(List.of(w));
+        PeerId first = only(bitswap.askedForBlock(w));
+        PeerId second = first.equals(peers.get(0)) ? peers.get(1) : peers.get(0);
+
+        bitswap.clear();
+        session.retry(List.of(w));
+        Assert.assertEquals(Set.of(second), bitswap.askedForBlock(w));
+
+        bitswap.clear();
+        session.retry(List.of(w));
+        Assert.assertEquals(1, bitswap.askedForBlock(w).size());
+    }
+
+    @Test
+    public void offeredPeersAreAskedIfTheyHaveOutstandingWants() {
+        BitswapSession session = session(Set.of(peers.get(0)));
+        Want w = want(0);
+        session.want(List.of(w));
+        Assert.assertEquals(Set.of(peers.get(0)), bitswap.askedForBlock(w));
+
+        session.offerPeers(Set.of(peers.get(1)));
+        Assert.assertEquals(Set.of(peers.get(1)), bitswap.askedIfHave(w));
+        Assert.assertEquals(Set.of(peers.get(0)), bitswap.askedForBlock(w));
+    }
+
+    @Test
+    public void offeredPeerIsAskedForABlockNobodyElseIs() {
+        bitswap.unreachable.add(peers.get(0));
+        BitswapSession session = session(Set.of(peers.get(0)));
+        Want w = want(0);
+        session.want(List.of(w));
+        Assert.assertTrue(bitswap.askedForBlock(w).isEmpty());
+
+        session.offerPeers(Set.of(peers.get(1)));
+        Assert.assertEquals(Set.of(peers.get(1)), bitswap.askedForBlock(w));
+    }
+
+    @Test
+    public void servingPeersSentUsABlock() {
+        BitswapSession session = session(Collections.emptySet());
+        Want w = want(0);
+        session.want(List.of(w));
+        PeerId blockPeer = only(bitswap.askedForBlock(w));
+        session.onHave(w, bitswap.askedIfHave(w).iterator().next());
+        Assert.assertTrue(session.servingPeers().isEmpty());
+
+        session.onBlock(w, blockPeer);
+        Assert.assertEquals(Set.of(blockPeer), session.servingPeers());
+    }
+}
@@ -0,0 +1,103 @@
+package org.peergos.protocol.bitswap;
+
+import io.libp2p.core.*;
+import org.junit.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class ServeSchedulerTest {
+
+    private static void submit(ServeScheduler scheduler, PeerId peer, int cost, Map<PeerId, Long> served) {
+        scheduler.submit(peer, () -> {
+            served.merge(peer, (long) cost, Long::sum);
+            return cost;
+        }, c -> c);
+    }
+
+    @Test
+    public void sharesBytesFairly() {
+        ServeScheduler scheduler = new ServeScheduler(0, 1_000, 0);
+        PeerId big = PeerId.random(), small = PeerId.random();
+        Map<PeerId, Long> served = new HashMap<>();
+        for (int i = 0; i < 100; i++) {
+            submit(scheduler, big, 100_000, served);
+            submit(scheduler, small, 10_000, served);
+        }
+        // run until the peer with small blocks has had everything
+        while (served.getOrDefault(small, 0L) < 100 * 10_000L)
+            Assert.assertTrue(scheduler.runNext());
+        long difference = Math.abs(served.get(big) - served.get(small));
+        Assert.assertTrue("Served " + served, difference <= 2 * 256 * 1024 + 100_000);
+    }
+
+    @Test
+    public void limitsQueuedPerPeer() {
+        ServeScheduler scheduler = new ServeScheduler(0, 3, 0);
+        PeerId peer = PeerId.random();
+        Map<PeerId, Long> served = new HashMap<>();
+        for (int i = 0; i < 3; i++)
+            submit(scheduler, peer, 1, served);
+        Assert.assertThrows(RejectedExecutionException.class, () -> submit(scheduler, peer, 1, served));
+        // other peers are unaffected
+        submit(scheduler, PeerId.random(), 1, served);
+
+        Assert.assertTrue(scheduler.runNext());
+        Assert.assertTrue(scheduler.runNext());
+        submit(scheduler, peer, 1, served);
+    }
+
+    @Test
+    public void enforcesBandwidthBudget() {
+        AtomicLong nanos = new AtomicLong();
+        ServeScheduler scheduler = new ServeScheduler(0, 100, 1_000, nanos::get);
+        PeerId peer = PeerId.random();
+        Map<PeerId, Long> served = new HashMap<>();
+        for (int i = 0; i < 10; i++)
+            submit(scheduler, peer, 600, served);
+
+        // a one second burst, which the second block overdraws
+        Assert.assertTrue(scheduler.runNext());
+        Assert.assertTrue(scheduler.runNext());
+        Assert.assertFalse(scheduler.runNext());
+        Assert.assertEquals(1_200L, (long) served.get(peer));
+
+        nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(100));
+        Assert.assertFalse(scheduler.runNext());
+        nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(200));
+        Assert.assertTrue(scheduler.runNext());
+        Assert.assertEquals(1_800L, (long) served.get(peer));
+    }
+
+    @Test
+    public void keepsBusyPeersWhenForgettingPeers() {
+        AtomicLong nanos = new AtomicLong();
+        ServeScheduler scheduler = new ServeScheduler(0, 1, 1_000, nanos::get);
+        PeerId busy = PeerId.random();
+        Map<PeerId, Long> served = new HashMap<>();
+        // overdraw the budget, so the next want stays queued while the clock is stopped
+        submit(scheduler, busy, 2_000, served);
+        Assert.assertTrue(scheduler.runNext());
+        submit(scheduler, busy, 1, served);
+
+        // many other peers come and go, leaving the busy peer least recently used
+        for (int i = 0; i < 10_001; i++) {
+            PeerId other = PeerId.random();
+            submit(scheduler, other, 1, served);
+            Assert.assertTrue(scheduler.runNext());
+        }
+        Assert.assertEquals(2_000L, (long) served.get(busy));
+        // the busy peer still has its queue, so it is still limited
+        Assert.assertThrows(RejectedExecutionException.class, () -> submit(scheduler, busy, 1, served));
+    }
+
+    @Test
+    public void rejectsWorkOnceClosed() throws Exception {
+        ServeScheduler scheduler = new ServeScheduler(2, 10, 0);
+        PeerId peer = PeerId.random();
+        Assert.assertEquals(1, (int) scheduler.submit(peer, () -> 1, c -> c).get(5, TimeUnit.SECONDS));
+        scheduler.close();
+        Assert.assertThrows(RejectedExecutionException.class, () -> scheduler.submit(peer, () -> 1, c -> c));
+    }
+}
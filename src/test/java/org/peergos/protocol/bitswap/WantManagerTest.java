@@ -0,0 +1,125 @@
+package org.peergos.protocol.bitswap;
+
+import io.ipfs.cid.Cid;
+import io.ipfs.multihash.Multihash;
+import org.junit.*;
+import org.peergos.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+public class WantManagerTest {
+
+    private static class RecordingSession extends BitswapSession {
+        final List<List<Want>> retries = new CopyOnWriteArrayList<>();
+        final Set<Want> cancelled = ConcurrentHashMap.newKeySet();
+
+        RecordingSession() {
+            super(null, null, Collections.emptySet());
+        }
+
+        @Override
+        void want(Collection<Want> added) {}
+
+        @Override
+        void retry(Collection<Want> due) {
+            retries.add(new ArrayList<>(due));
+        }
+
+        @Override
+        synchronized void cancel(Want w) {
+            cancelled.add(w);
+        }
+    }
+
+    private static Want want(int i) {
+        return new Want(new Cid(1, Cid.Codec.Raw, Multihash.Type.sha2_256, Hash.sha256(("block" + i).getBytes())));
+    }
+
+    private static CompletableFuture<HashedBlock> track(WantManager manager, BitswapSession session, Want w) {
+        CompletableFuture<HashedBlock> result = new CompletableFuture<>();
+        manager.track(session, Map.of(w, result));
+        return result;
+    }
+
+    @Test
+    public void backsOffExponentially() {
+        long[] expected = {1_000, 2_000, 4_000, 8_000, 16_000, 30_000, 30_000};
+        for (int attempts = 0; attempts < expected.length; attempts++)
+            Assert.assertEquals(expected[attempts], WantManager.retryDelayMillis(attempts));
+        Assert.assertEquals(30_000, WantManager.retryDelayMillis(Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void retriesAfterBackoff() throws Exception {
+        Set<Want> wanted = ConcurrentHashMap.newKeySet();
+        WantManager manager = new WantManager(peers -> wanted);
+        RecordingSession session = new RecordingSession();
+        Want w = want(0);
+        wanted.add(w);
+        long start = System.currentTimeMillis();
+        track(manager, session, w);
+
+        Thread.sleep(800);
+        Assert.assertTrue(session.retries.isEmpty());
+        Thread.sleep(400);
+        Assert.assertEquals(List.of(List.of(w)), session.retries);
+        // the second retry waits twice as long
+        Thread.sleep(1_600);
+        Assert.assertEquals(1, session.retries.size());
+        while (session.retries.size() < 2 && System.currentTimeMillis() - start < 5_000)
+            Thread.sleep(10);
+        long elapsed = System.currentTimeMillis() - start;
+        Assert.assertTrue("Second retry after " + elapsed + "ms", elapsed >= 3_000 && elapsed < 3_500);
+    }
+
+    @Test
+    public void batchesWantsDueTogether() throws Exception {
+        Set<Want> wanted = ConcurrentHashMap.newKeySet();
+        WantManager manager = new WantManager(peers -> wanted);
+        RecordingSession session = new RecordingSession();
+        Want first = want(1), soon = want(2), later = want(3);
+        wanted.addAll(List.of(first, soon, later));
+        track(manager, session, first);
+        Thread.sleep(50);
+        track(manager, session, soon);
+        Thread.sleep(250);
+        track(manager, session, later);
+
+        while (session.retries.isEmpty())
+            Thread.sleep(10);
+        // the want due 50ms after the first goes with it, the one due 300ms after doesn't
+        Assert.assertEquals(Set.of(first, soon), new HashSet<>(session.retries.get(0)));
+        Thread.sleep(500);
+        Assert.assertEquals(List.of(later), session.retries.get(1));
+    }
+
+    @Test
+    public void forgetsAnsweredWants() {
+        Set<Want> wanted = ConcurrentHashMap.newKeySet();
+        WantManager manager = new WantManager(peers -> wanted);
+        RecordingSession session = new RecordingSession();
+        Want answered = want(4), outstanding = want(5);
+        wanted.addAll(List.of(answered, outstanding));
+        CompletableFuture<HashedBlock> result = track(manager, session, answered);
+        track(manager, session, outstanding);
+        Assert.assertEquals(2, manager.scheduledRetries());
+
+        result.complete(new HashedBlock(answered.cid, new byte[0]));
+        Assert.assertEquals(1, manager.scheduledRetries());
+        Assert.assertEquals(Set.of(answered), session.cancelled);
+    }
+
+    @Test
+    public void dropsExpiredWants() throws Exception {
+        WantManager manager = new WantManager(peers -> Collections.emptySet());
+        RecordingSession session = new RecordingSession();
+        Want expired = want(6);
+        track(manager, session, expired);
+
+        Thread.sleep(1_200);
+        Assert.assertEquals(List.of(List.of()), session.retries);
+        Assert.assertEquals(Set.of(expired), session.cancelled);
+        Assert.assertEquals(0, manager.scheduledRetries());
+    }
+}
@@ -0,0 +1,77 @@
+package org.peergos.protocol.dht;
+
+import com.google.protobuf.*;
+import io.ipfs.multihash.Multihash;
+import io.libp2p.core.*;
+import io.libp2p.core.multiformats.*;
+import org.junit.*;
+import org.peergos.protocol.dht.pb.*;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.stream.*;
+
+public class CloserPeersCacheTest {
+    private static final Multiaddr PUBLIC = new Multiaddr("/ip4/1.2.3.4/tcp/4001");
+    private static final Multiaddr PRIVATE = new Multiaddr("/ip4/10.0.0.1/tcp/4001");
+    private static final ByteString KEY = ByteString.copyFrom(new byte[]{1, 2, 3});
+
+    private final RoutingTable table = new RoutingTable(Multihash.deserialize(PeerId.random().getBytes()), 2, 20, 20);
+    private final AtomicInteger addressLookups = new AtomicInteger();
+    private final CloserPeersCache cache = new CloserPeersCache(table, p -> {
+        addressLookups.incrementAndGet();
+        return List.of(PUBLIC, PRIVATE);
+    }, a -> !a.equals(PRIVATE));
+
+    private static List<ByteString> ids(List<PeerId> peers) {
+        return peers.stream()
+                .map(p -> ByteString.copyFrom(p.getBytes()))
+                .collect(Collectors.toList());
+    }
+
+    private static List<ByteString> ids(Collection<Dht.Message.Peer> entries) {
+        return entries.stream()
+                .map(Dht.Message.Peer::getId)
+                .collect(Collectors.toList());
+    }
+
+    @Test
+    public void reusedUntilTheRoutingTableChanges() {
+        for (int i = 0; i < 10; i++)
+            table.add(PeerId.random());
+        List<Dht.Message.Peer> first = cache.closest(KEY, 20);
+        Assert.assertEquals(ids(table.closest(KEY.toByteArray(), 20)), ids(first));
+        Assert.assertSame(first, cache.closest(KEY, 20));
+        Assert.assertEquals(10, addressLookups.get());
+
+        long version = table.version();
+        table.add(PeerId.random());
+        Assert.assertNotEquals(version, table.version());
+        List<Dht.Message.Peer> second = cache.closest(KEY, 20);
+        Assert.assertNotSame(first, second);
+        Assert.assertEquals(ids(table.closest(KEY.toByteArray(), 20)), ids(second));
+        // only the new peer's entry is built
+        Assert.assertEquals(11, addressLookups.get());
+    }
+
+    @Test
+    public void onlyPublicAddresses() {
+        table.add(PeerId.random());
+        Dht.Message.Peer entry = cache.closest(KEY, 20).get(0);
+        Assert.assertEquals(List.of(ByteString.copyFrom(PUBLIC.serialize())), entry.getAddrsList());
+    }
+
+    @Test
+    public void leavesOutTheSourcePeer() {
+        for (int i = 0; i < 10; i++)
+            table.add(PeerId.random());
+        PeerId source = table.closest(KEY.toByteArray(), 20).get(0);
+        ByteString sourceId = ByteString.copyFrom(source.getBytes());
+
+        List<ByteString> forSource = ids(cache.closest(KEY, 20, source));
+        Assert.assertEquals(9, forSource.size());
+        Assert.assertFalse(forSource.contains(sourceId));
+        // the shared entries still include it for everyone else
+        Assert.assertTrue(ids(cache.closest(KEY, 20)).contains(sourceId));
+    }
+}
@@ -0,0 +1,137 @@
+package org.peergos.protocol.dht;
+
+import io.ipfs.multihash.Multihash;
+import io.libp2p.core.*;
+import org.junit.*;
+import org.peergos.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.stream.*;
+
+public class DhtLookupTest {
+    private static final int K = 20;
+    private static final int ALPHA = 3;
+
+    private final ScheduledExecutorService network = Executors.newScheduledThreadPool(4);
+    private final List<PeerAddresses> peers = new ArrayList<>();
+    private final byte[] key = new byte[32];
+
+    @Before
+    public void setup() {
+        for (int i = 0; i < 500; i++)
+            peers.add(new PeerAddresses(Multihash.deserialize(PeerId.random().getBytes()), Collections.emptyList()));
+        new Random(42).nextBytes(key);
+    }
+
+    @After
+    public void shutdown() {
+        network.shutdownNow();
+    }
+
+    private byte[] distance(PeerAddresses peer) {
+        byte[] a = Hash.sha256(peer.peerId.toBytes()), b = Hash.sha256(key);
+        byte[] res = new byte[a.length];
+        for (int i = 0; i < res.length; i++)
+            res[i] = (byte) (a[i] ^ b[i]);
+        return res;
+    }
+
+    private List<PeerAddresses> closest(Collection<PeerAddresses> candidates, int n) {
+        return candidates.stream()
+                .sorted((a, b) -> Arrays.compareUnsigned(distance(a), distance(b)))
+                .limit(n)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Every peer answers after a few millis with the 2K peers just closer to the
+     * key than itself, so a lookup from far away has to walk towards the key.
+     */
+    private CompletableFuture<List<PeerAddresses>> answer(PeerAddresses peer) {
+        List<PeerAddresses> byDistance = closest(peers, peers.size());
+        int rank = byDistance.indexOf(peer);
+        List<PeerAddresses> known = new ArrayList<>(byDistance.subList(Math.max(0, rank - 2 * K), rank));
+        CompletableFuture<List<PeerAddresses>> res = new CompletableFuture<>();
+        network.schedule(() -> res.complete(known), 5, TimeUnit.MILLISECONDS);
+        return res;
+    }
+
+    private List<PeerAddresses> seeds() {
+        List<PeerAddresses> all = closest(peers, peers.size());
+        return all.subList(all.size() - ALPHA, all.size());
+    }
+
+    @Test
+    public void walksToTheClosestPeers() throws Exception {
+        AtomicInteger inFlight = new AtomicInteger(), maxInFlight = new AtomicInteger();
+        DhtLookup<List<PeerAddresses>> lookup = new DhtLookup<>(key, ALPHA, K, 1, new QueryLatency(1_000, 1_000),
+                p -> {
+                    maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                    return answer(p).whenComplete((r, t) -> inFlight.decrementAndGet());
+                }, r -> r, (p, r) -> false, p -> true);
+
+        List<PeerAddresses> res = lookup.run(seeds()).get(30, TimeUnit.SECONDS);
+        Assert.assertEquals(closest(peers, K), res);
+        Assert.assertTrue(maxInFlight.get() <= ALPHA);
+    }
+
+    @Test
+    public void failedAndUnresponsivePeersAreSkipped() throws Exception {
+        List<PeerAddresses> top = closest(peers, K);
+        Set<PeerAddresses> failed = new HashSet<>(top.subList(0, 2));
+        // these never answer, so the lookup must stop waiting for them
+        Set<PeerAddresses> unresponsive = new HashSet<>(top.subList(2, 4));
+        DhtLookup<List<PeerAddresses>> lookup = new DhtLookup<>(key, ALPHA, K, 1, new QueryLatency(10, 50),
+                p -> {
+                    if (failed.contains(p))
+                        return CompletableFuture.failedFuture(new IllegalStateException("Unreachable"));
+                    if (unresponsive.contains(p))
+                        return new CompletableFuture<>();
+                    return answer(p);
+                }, r -> r, (p, r) -> false, p -> true);
+
+        List<PeerAddresses> res = lookup.run(seeds()).get(30, TimeUnit.SECONDS);
+        List<PeerAddresses> answering = new ArrayList<>(peers);
+        answering.removeAll(failed);
+        answering.removeAll(unresponsive);
+        Assert.assertEquals(closest(answering, K), res);
+    }
+
+    private int queries(PeerAddresses holder) throws Exception {
+        AtomicInteger queries = new AtomicInteger();
+        DhtLookup<List<PeerAddresses>> lookup = new DhtLookup<>(key, ALPHA, K, 1, new QueryLatency(1_000, 1_000),
+                p -> {
+                    queries.incrementAndGet();
+                    return answer(p);
+                }, r -> r, (p, r) -> p.equals(holder), p -> true);
+        lookup.run(seeds()).get(30, TimeUnit.SECONDS);
+        return queries.get();
+    }
+
+    @Test
+    public void stopsOnceFound() throws Exception {
+        PeerAddresses nobody = new PeerAddresses(Multihash.deserialize(PeerId.random().getBytes()), Collections.emptyList());
+        int fullWalk = queries(nobody);
+        int stopped = queries(closest(peers, K).get(K / 2));
+        Assert.assertTrue(stopped < fullWalk);
+    }
+
+    @Test
+    public void disjointPathsNeverShareAPeer() throws Exception {
+        Set<PeerAddresses> queried = ConcurrentHashMap.newKeySet();
+        AtomicBoolean repeated = new AtomicBoolean();
+        DhtLookup<List<PeerAddresses>> lookup = new DhtLookup<>(key, ALPHA, K, 3, new QueryLatency(1_000, 1_000),
+                p -> {
+                    if (!queried.add(p))
+                        repeated.set(true);
+                    return answer(p);
+                }, r -> r, (p, r) -> false, p -> true);
+
+        List<PeerAddresses> res = lookup.run(closest(peers, peers.size()).subList(400, 406)).get(30, TimeUnit.SECONDS);
+        Assert.assertFalse(repeated.get());
+        Assert.assertEquals(K, res.size());
+        Assert.assertEquals(closest(res, K), res);
+    }
+}
@@ -0,0 +1,102 @@
+package org.peergos.util;
+
+import org.junit.*;
+
+import java.nio.*;
+import java.nio.file.*;
+import java.util.*;
+
+public class TraceBufferTest {
+
+    private static boolean offer(TraceBuffer buffer, long n) {
+        return buffer.offer(n, n + 1, n + 2, n + 3, 7, 9, n + 4, n + 5, TraceType.DIAL_PEER_START.ordinal());
+    }
+
+    private static List<Long> drainFirstFields(TraceBuffer buffer, int maxRecords) {
+        ByteBuffer target = ByteBuffer.allocate(maxRecords * TraceBuffer.RECORD_SIZE);
+        int count = buffer.drainTo(target);
+        List<Long> first = new ArrayList<>();
+        for (int i = 0; i < count; i++)
+            first.add(target.getLong(i * TraceBuffer.RECORD_SIZE));
+        return first;
+    }
+
+    @Test
+    public void capacityMustBeAPowerOfTwo() {
+        Assert.assertThrows(IllegalArgumentException.class, () -> new TraceBuffer(3, Thread.currentThread()));
+    }
+
+    @Test
+    public void recordLayout() {
+        TraceBuffer buffer = new TraceBuffer(4, Thread.currentThread());
+        Assert.assertTrue(offer(buffer, 10));
+        ByteBuffer target = ByteBuffer.allocate(TraceBuffer.RECORD_SIZE);
+        Assert.assertEquals(1, buffer.drainTo(target));
+        target.flip();
+        long[] expected = {10, 11, 12, 13, 14, 15, (7L << 32) | 9, TraceType.DIAL_PEER_START.ordinal()};
+        for (long field : expected)
+            Assert.assertEquals(field, target.getLong());
+    }
+
+    @Test
+    public void dropsRecordsOnceFull() {
+        TraceBuffer buffer = new TraceBuffer(4, Thread.currentThread());
+        for (int i = 0; i < 4; i++)
+            Assert.assertTrue(offer(buffer, i));
+        Assert.assertFalse(offer(buffer, 4));
+        Assert.assertFalse(offer(buffer, 5));
+        Assert.assertEquals(2, buffer.takeDropped());
+        Assert.assertEquals(0, buffer.takeDropped());
+
+        // draining frees slots for new records
+        Assert.assertEquals(List.of(0L, 1L), drainFirstFields(buffer, 2));
+        Assert.assertTrue(offer(buffer, 6));
+        Assert.assertTrue(offer(buffer, 7));
+        Assert.assertFalse(offer(buffer, 8));
+        Assert.assertEquals(1, buffer.takeDropped());
+        Assert.assertEquals(List.of(2L, 3L, 6L, 7L), drainFirstFields(buffer, 4));
+        Assert.assertTrue(buffer.isEmpty());
+    }
+
+    @Test
+    public void drainStopsWhenTheTargetIsFull() {
+        TraceBuffer buffer = new TraceBuffer(8, Thread.currentThread());
+        for (int i = 0; i < 3; i++)
+            offer(buffer, i);
+        ByteBuffer target = ByteBuffer.allocate(2 * TraceBuffer.RECORD_SIZE + TraceBuffer.RECORD_SIZE / 2);
+        Assert.assertEquals(2, buffer.drainTo(target));
+        Assert.assertFalse(buffer.isEmpty());
+        Assert.assertEquals(List.of(2L), drainFirstFields(buffer, 8));
+    }
+
+    @Test
+    public void orphanedOnceItsThreadExits() throws Exception {
+        Assert.assertFalse(new TraceBuffer(4, Thread.currentThread()).isOrphaned());
+        Thread owner = new Thread(() -> {});
+        TraceBuffer buffer = new TraceBuffer(4, owner);
+        owner.start();
+        owner.join();
+        Assert.assertTrue(buffer.isOrphaned());
+    }
+
+    @Test
+    public void writesTheLastRecordsOfAThreadThatExited() throws Exception {
+        Path dir = Files.createTempDirectory("traces");
+        BinaryTraceWriter writer = new BinaryTraceWriter(dir, TraceSegment.HEADER_SIZE + 1024L * TraceSegment.RECORD_SIZE);
+        try {
+            Thread owner = new Thread(() -> {
+                for (int i = 0; i < 100; i++)
+                    writer.record(0, 1, i + 1, 0, -1, TraceType.DIAL_PEER_START, 1, i);
+            });
+            owner.start();
+            owner.join();
+
+            List<TraceSegment.Record> records = TraceFiles.awaitRecords(dir, 100);
+            Assert.assertEquals(100, records.size());
+            for (int i = 0; i < 100; i++)
+                Assert.assertEquals(i + 1, records.get(i).spanId);
+        } finally {
+            writer.stop();
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package org.peergos.util;
+
+import org.junit.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.*;
+
+/**
+ * Reads back the binary trace segments in a directory, waiting for the trace
+ * writer to catch up.
+ */
+class TraceFiles {
+
+    /**
+     * @return The records of every segment in the directory, oldest segment first.
+     */
+    static List<TraceSegment.Record> awaitRecords(Path dir, int count) throws Exception {
+        long deadline = System.currentTimeMillis() + 30_000;
+        while (true) {
+            try {
+                List<TraceSegment.Record> records = segments(dir).stream()
+                        .flatMap(s -> s.records.stream())
+                        .collect(Collectors.toList());
+                if (records.size() >= count)
+                    return records;
+            } catch (IOException e) {
+                // a segment whose header hasn't been written yet
+            }
+            if (System.currentTimeMillis() > deadline)
+                Assert.fail("Timed out waiting for " + count + " trace records");
+            Thread.sleep(10);
+        }
+    }
+
+    static List<TraceSegment> segments(Path dir) throws IOException {
+        List<TraceSegment> segments = new ArrayList<>();
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : files.collect(Collectors.toList()))
+                segments.add(TraceSegment.read(file));
+        }
+        segments.sort(Comparator.comparingLong(s -> s.creationNanos));
+        return segments;
+    }
+}
@@ -0,0 +1,139 @@
+package org.peergos.util;
+
+import org.junit.*;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+public class TraceSamplingTest {
+    private static final long MILLIS = 1_000_000L;
+
+    private final AtomicLong clock = new AtomicLong(0);
+    private final TailSampler tail = new TailSampler(90, clock::get);
+    private final TraceLogger tracer = TraceLogger.getInstance();
+
+    @After
+    public void stopSampling() {
+        tracer.setSampling(0, 0);
+        tracer.clearTrace();
+    }
+
+    /**
+     * Runs a trace through the tail sampler with one deferred point.
+     *
+     * @return Whether the point was kept.
+     */
+    private boolean trace(String id, long durationMillis) {
+        Assert.assertTrue(tail.begin(id));
+        AtomicBoolean ran = new AtomicBoolean(false);
+        Assert.assertTrue(tail.defer(id, () -> ran.set(true)));
+        clock.addAndGet(durationMillis * MILLIS);
+        tail.end(id).forEach(Runnable::run);
+        return ran.get();
+    }
+
+    private void warmUp() {
+        // latencies of 1 to 100ms, so the 90th percentile is 90ms
+        for (int i = 1; i <= 100; i++)
+            Assert.assertTrue(trace("warm-up" + i, i));
+    }
+
+    @Test
+    public void tailKeepsEverythingUntilItHasEnoughSamples() {
+        for (int i = 0; i < 99; i++)
+            Assert.assertTrue(trace("slow" + i, 100));
+        Assert.assertTrue(trace("fast", 1));
+        Assert.assertFalse(trace("fast again", 1));
+    }
+
+    @Test
+    public void tailKeepsOnlySlowTraces() {
+        warmUp();
+        Assert.assertFalse(trace("fast", 89));
+        Assert.assertTrue(trace("slow", 90));
+        Assert.assertTrue(trace("slower", 1_000));
+    }
+
+    @Test
+    public void tailReleasesPointsInOrder() {
+        tail.begin("trace");
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            int point = i;
+            tail.defer("trace", () -> order.add(point));
+        }
+        tail.end("trace").forEach(Runnable::run);
+        Assert.assertEquals(List.of(0, 1, 2, 3, 4), order);
+    }
+
+    @Test
+    public void tailOnlyDefersTracesItBegan() {
+        Assert.assertFalse(tail.defer("unknown", () -> {}));
+        Assert.assertTrue(tail.end("unknown").isEmpty());
+
+        tail.begin("trace");
+        tail.end("trace");
+        Assert.assertFalse(tail.defer("trace", () -> {}));
+    }
+
+    @Test
+    public void tailBoundsWhatItHoldsBack() {
+        tail.begin("trace");
+        for (int i = 0; i < 2_000; i++)
+            tail.defer("trace", () -> {});
+        Assert.assertEquals(1024, tail.end("trace").size());
+
+        for (int i = 0; i < 10_000; i++)
+            Assert.assertTrue(tail.begin("trace" + i));
+        Assert.assertFalse(tail.begin("one too many"));
+        tail.end("trace0");
+        Assert.assertTrue(tail.begin("one too many"));
+    }
+
+    @Test
+    public void tailPercentileMustBeAPercentile() {
+        Assert.assertThrows(IllegalArgumentException.class, () -> new TailSampler(0));
+        Assert.assertThrows(IllegalArgumentException.class, () -> new TailSampler(100));
+    }
+
+    @Test
+    public void headTracesRequestedTracesWhenNotSampling() {
+        tracer.setSampling(0, 0);
+        Assert.assertFalse(tracer.startTrace(false));
+        Assert.assertEquals("", tracer.getTraceId());
+
+        Assert.assertTrue(tracer.startTrace(true));
+        Assert.assertEquals(32, tracer.getTraceId().length());
+        tracer.endTrace();
+        Assert.assertEquals("", tracer.getTraceId());
+    }
+
+    @Test
+    public void headTracesEveryRequestAtRateOne() {
+        tracer.setSampling(1, 0);
+        for (int i = 0; i < 100; i++) {
+            Assert.assertTrue(tracer.startTrace(false));
+            Assert.assertEquals(32, tracer.getTraceId().length());
+            tracer.endTrace();
+        }
+    }
+
+    @Test
+    public void headSamplesAFractionOfRequests() {
+        tracer.setSampling(0.25, 0);
+        int sampled = 0;
+        for (int i = 0; i < 10_000; i++) {
+            if (tracer.startTrace(false)) {
+                sampled++;
+                tracer.endTrace();
+            }
+        }
+        Assert.assertTrue("Sampled " + sampled, sampled > 2_000 && sampled < 3_000);
+    }
+
+    @Test
+    public void headSampleRateMustBeAFraction() {
+        Assert.assertThrows(IllegalArgumentException.class, () -> tracer.setSampling(-0.1, 0));
+        Assert.assertThrows(IllegalArgumentException.class, () -> tracer.setSampling(1.1, 0));
+    }
+}
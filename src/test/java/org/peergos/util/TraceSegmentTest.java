@@ -0,0 +1,166 @@
+package org.peergos.util;
+
+import org.junit.*;
+import org.peergos.client.TraceExport;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+
+public class TraceSegmentTest {
+
+    private static long segmentSize(int records) {
+        return TraceSegment.HEADER_SIZE + (long) records * TraceSegment.RECORD_SIZE;
+    }
+
+    private static ByteBuffer header(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, TraceSegment.HEADER_SIZE);
+        }
+    }
+
+    @Test
+    public void recordsRoundTrip() throws Exception {
+        Path dir = Files.createTempDirectory("traces");
+        BinaryTraceWriter writer = new BinaryTraceWriter(dir, segmentSize(2000));
+        writer.setNodeId(5);
+        try {
+            for (int i = 0; i < 1000; i++)
+                writer.record(0x1234, i, i + 1, i, i % 10, TraceType.fromOrdinal(1 + i % 4), 42, 1_000 + i * 10);
+            List<TraceSegment.Record> records = TraceFiles.awaitRecords(dir, 1000);
+
+            Assert.assertEquals(1000, records.size());
+            for (int i = 0; i < 1000; i++) {
+                TraceSegment.Record r = records.get(i);
+                Assert.assertEquals(0x1234, r.traceIdHi);
+                Assert.assertEquals(i, r.traceIdLo);
+                Assert.assertEquals(i + 1, r.spanId);
+                Assert.assertEquals(i, r.parentSpanId);
+                Assert.assertEquals(i % 10, r.peerIndex);
+                Assert.assertEquals(5, r.nodeId);
+                Assert.assertEquals(TraceType.fromOrdinal(1 + i % 4), r.type);
+                Assert.assertEquals(42, r.threadId);
+                Assert.assertEquals(1_000 + i * 10, r.nanoTime);
+            }
+            TraceSegment segment = TraceFiles.segments(dir).get(0);
+            Assert.assertEquals(5, segment.nodeId);
+            Assert.assertEquals(1_000, segment.minNanos);
+            Assert.assertEquals(1_000 + 999 * 10, segment.maxNanos);
+        } finally {
+            writer.stop();
+        }
+    }
+
+    @Test
+    public void headerHasASparseTimeIndex() throws Exception {
+        Path dir = Files.createTempDirectory("traces");
+        // 2000 records fit, so every 4th is indexed to fit the index in the header
+        BinaryTraceWriter writer = new BinaryTraceWriter(dir, segmentSize(2000));
+        try {
+            for (int i = 0; i < 1000; i++)
+                writer.record(0, 1, i + 1, 0, -1, TraceType.DIAL_PEER_START, 1, 1_000 + i * 10);
+            TraceFiles.awaitRecords(dir, 1000);
+
+            ByteBuffer header = header(TraceFiles.segments(dir).get(0).file);
+            Assert.assertEquals(TraceSegment.MAGIC, header.getInt(0));
+            Assert.assertEquals(3, header.getInt(4));
+            Assert.assertEquals(TraceSegment.RECORD_SIZE, header.getInt(8));
+            Assert.assertEquals(4, header.getInt(TraceSegment.INDEX_INTERVAL_OFFSET));
+            Assert.assertEquals(250, header.getInt(TraceSegment.INDEX_ENTRIES_OFFSET));
+            for (int k = 0; k < 250; k++)
+                Assert.assertEquals(1_000 + k * 4 * 10, header.getLong(TraceSegment.INDEX_OFFSET + k * Long.BYTES));
+        } finally {
+            writer.stop();
+        }
+    }
+
+    @Test
+    public void rollsOverToANewSegmentWhenFull() throws Exception {
+        Path dir = Files.createTempDirectory("traces");
+        BinaryTraceWriter writer = new BinaryTraceWriter(dir, segmentSize(100));
+        try {
+            for (int i = 0; i < 250; i++)
+                writer.record(0, 1, i + 1, 0, -1, TraceType.DIAL_PEER_START, 1, i);
+            List<TraceSegment.Record> records = TraceFiles.awaitRecords(dir, 250);
+            for (int i = 0; i < 250; i++)
+                Assert.assertEquals(i + 1, records.get(i).spanId);
+
+            List<TraceSegment> segments = TraceFiles.segments(dir);
+            Assert.assertEquals(3, segments.size());
+            int[] sizes = {100, 100, 50};
+            for (int s = 0; s < 3; s++) {
+                Assert.assertEquals(sizes[s], segments.get(s).records.size());
+                ByteBuffer header = header(segments.get(s).file);
+                Assert.assertEquals(1, header.getInt(TraceSegment.INDEX_INTERVAL_OFFSET));
+                Assert.assertEquals(sizes[s], header.getInt(TraceSegment.INDEX_ENTRIES_OFFSET));
+            }
+        } finally {
+            writer.stop();
+        }
+    }
+
+    @Test
+    public void rejectsOtherFormats() throws Exception {
+        Path dir = Files.createTempDirectory("traces");
+        ByteBuffer header = ByteBuffer.allocate(TraceSegment.HEADER_SIZE);
+        TraceSegment.writeHeader(header, 0, 0, 1);
+        header.putInt(4, 2);
+        Path oldVersion = dir.resolve("1" + TraceSegment.FILE_SUFFIX);
+        Files.write(oldVersion, header.array());
+        Assert.assertThrows(IOException.class, () -> TraceSegment.read(oldVersion));
+
+        Path truncated = dir.resolve("2" + TraceSegment.FILE_SUFFIX);
+        Files.write(truncated, new byte[100]);
+        Assert.assertThrows(IOException.class, () -> TraceSegment.read(truncated));
+
+        // the exporter skips them
+        Assert.assertTrue(TraceExport.readSegments(dir).isEmpty());
+    }
+
+    @Test
+    public void exportNestsSpansByParent() throws Exception {
+        Path dir = Files.createTempDirectory("traces");
+        BinaryTraceWriter writer = new BinaryTraceWriter(dir, segmentSize(100));
+        writer.setNodeId(2);
+        try {
+            writer.record(1, 1, 10, 0, -1, TraceType.GET_BLOCKS_START, 1, 100);
+            writer.record(1, 1, 11, 10, 3, TraceType.DIAL_PEER_START, 1, 110);
+            writer.record(1, 1, 11, 10, 3, TraceType.DIAL_PEER_END, 1, 120);
+            writer.record(1, 1, 12, 10, -1, TraceType.BITSWAP_STORE_READ_END, 1, 130);
+            writer.record(1, 1, 10, 0, -1, TraceType.GET_BLOCKS_END, 1, 140);
+            writer.record(1, 2, 20, 0, -1, TraceType.DAG_GET_START, 1, 150);
+            // not part of any trace
+            writer.record(0, 0, 30, 0, -1, TraceType.DAG_GET_START, 1, 160);
+            TraceFiles.awaitRecords(dir, 7);
+
+            Map<String, List<TraceSegment.Record>> traces = TraceExport.groupByTrace(TraceExport.readSegments(dir));
+            Assert.assertEquals(2, traces.size());
+            List<TraceExport.Span> roots = TraceExport.buildSpans(traces.get(String.format("%016x%016x", 1, 1)));
+            Assert.assertEquals(1, roots.size());
+            TraceExport.Span root = roots.get(0);
+            Assert.assertEquals("GET_BLOCKS", root.name);
+            Assert.assertEquals(2, root.nodeId);
+            Assert.assertEquals(100, root.start);
+            Assert.assertEquals(140, root.end);
+            Assert.assertEquals(2, root.children.size());
+
+            TraceExport.Span dial = root.children.get(0);
+            Assert.assertEquals("DIAL_PEER", dial.name);
+            Assert.assertEquals(3, dial.peerIndex);
+            Assert.assertEquals(110, dial.start);
+            Assert.assertEquals(120, dial.end);
+            // an end without its start is a zero length span
+            TraceExport.Span read = root.children.get(1);
+            Assert.assertEquals("BITSWAP_STORE_READ", read.name);
+            Assert.assertEquals(130, read.start);
+            Assert.assertEquals(130, read.end);
+
+            TraceExport.Span unfinished = TraceExport.buildSpans(traces.get(String.format("%016x%016x", 1, 2))).get(0);
+            Assert.assertEquals(-1, unfinished.end);
+        } finally {
+            writer.stop();
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package org.peergos.util;
+
+import org.junit.*;
+
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+public class TraceSpanTest {
+    private final TraceLogger tracer = TraceLogger.getInstance();
+    private Path dir;
+
+    @Before
+    public void writeToTempDir() throws Exception {
+        dir = Files.createTempDirectory("traces");
+        tracer.writeBinaryTo(dir, TraceSegment.HEADER_SIZE + 1024L * TraceSegment.RECORD_SIZE);
+        tracer.setOutputFormat(true, false);
+    }
+
+    @After
+    public void restoreOutput() {
+        tracer.clearTrace();
+        tracer.setOutputFormat(false, true);
+    }
+
+    /**
+     * @return The records of a trace by type, once all of them are written.
+     */
+    private Map<TraceType, TraceSegment.Record> records(String traceId, int count) throws Exception {
+        List<TraceSegment.Record> records = TraceFiles.awaitRecords(dir, count);
+        Assert.assertEquals(count, records.size());
+        Assert.assertTrue(records.stream().allMatch(r -> r.traceId().equals(traceId)));
+        Map<TraceType, TraceSegment.Record> byType = records.stream()
+                .collect(Collectors.toMap(r -> r.type, r -> r));
+        Assert.assertEquals(count, byType.size());
+        return byType;
+    }
+
+    @Test
+    public void nestedSpansLinkToTheirParent() throws Exception {
+        tracer.startTrace();
+        String traceId = tracer.getTraceId();
+        try (TraceLogger.Span outer = tracer.startSpan(TraceType.GET_BLOCKS_START)) {
+            try (TraceLogger.Span inner = tracer.startSpan(TraceType.BLOCK_SERVICE_GET_START)) {}
+            // closing a span makes its parent the current span again
+            try (TraceLogger.Span sibling = tracer.startSpan(TraceType.DIAL_PEER_START)) {}
+        }
+        try (TraceLogger.Span after = tracer.startSpan(TraceType.DAG_GET_START)) {}
+        tracer.endTrace();
+
+        Map<TraceType, TraceSegment.Record> records = records(traceId, 8);
+        TraceSegment.Record outer = records.get(TraceType.GET_BLOCKS_START);
+        Assert.assertEquals(0, outer.parentSpanId);
+        Assert.assertEquals(outer.spanId, records.get(TraceType.GET_BLOCKS_END).spanId);
+        for (TraceType child : List.of(TraceType.BLOCK_SERVICE_GET_START, TraceType.BLOCK_SERVICE_GET_END,
+                TraceType.DIAL_PEER_START, TraceType.DIAL_PEER_END))
+            Assert.assertEquals(child.name(), outer.spanId, records.get(child).parentSpanId);
+        Assert.assertNotEquals(records.get(TraceType.BLOCK_SERVICE_GET_START).spanId,
+                records.get(TraceType.DIAL_PEER_START).spanId);
+        Assert.assertEquals(0, records.get(TraceType.DAG_GET_START).parentSpanId);
+    }
+
+    @Test
+    public void asyncSpanOnlyParentsWorkRunInIt() throws Exception {
+        ExecutorService other = Executors.newSingleThreadExecutor();
+        try {
+            tracer.startTrace();
+            String traceId = tracer.getTraceId();
+            TraceLogger.Span async = tracer.startAsyncSpan(TraceType.DAG_GET_START);
+            try (TraceLogger.Span next = tracer.startSpan(TraceType.DIAL_PEER_START)) {}
+            other.submit(() -> tracer.inSpan(async, x -> {
+                try (TraceLogger.Span callback = tracer.startSpan(TraceType.S3_REQUEST_START)) {}
+                return null;
+            }).apply(null)).get();
+            // and it can end on another thread
+            other.submit(async::close).get();
+            tracer.endTrace();
+
+            Map<TraceType, TraceSegment.Record> records = records(traceId, 6);
+            long asyncId = records.get(TraceType.DAG_GET_START).spanId;
+            Assert.assertEquals(asyncId, records.get(TraceType.DAG_GET_END).spanId);
+            Assert.assertEquals(0, records.get(TraceType.DIAL_PEER_START).parentSpanId);
+            Assert.assertEquals(asyncId, records.get(TraceType.S3_REQUEST_START).parentSpanId);
+            Assert.assertEquals(asyncId, records.get(TraceType.S3_REQUEST_END).parentSpanId);
+        } finally {
+            other.shutdown();
+        }
+    }
+
+    @Test
+    public void inCurrentTraceCarriesTheSpanToPooledThreads() throws Exception {
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            // start the pooled thread before the trace, so it doesn't inherit it
+            pool.submit(() -> {}).get();
+            tracer.startTrace();
+            String traceId = tracer.getTraceId();
+            try (TraceLogger.Span outer = tracer.startSpan(TraceType.GET_BLOCKS_START)) {
+                pool.submit(tracer.inCurrentTrace(() -> {
+                    try (TraceLogger.Span read = tracer.startSpan(TraceType.BITSWAP_STORE_READ_START)) {}
+                })).get();
+                // spans started by the task don't leak into the caller
+                try (TraceLogger.Span next = tracer.startSpan(TraceType.DIAL_PEER_START)) {}
+            }
+            tracer.endTrace();
+            Assert.assertEquals("", pool.submit(tracer::getTraceId).get());
+
+            Map<TraceType, TraceSegment.Record> records = records(traceId, 6);
+            long outerId = records.get(TraceType.GET_BLOCKS_START).spanId;
+            Assert.assertEquals(outerId, records.get(TraceType.BITSWAP_STORE_READ_START).parentSpanId);
+            Assert.assertEquals(outerId, records.get(TraceType.DIAL_PEER_START).parentSpanId);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void spansOutsideATraceRecordNothing() throws Exception {
+        TraceLogger.Span span = tracer.startSpan(TraceType.GET_BLOCKS_START);
+        Assert.assertSame(TraceLogger.Span.NONE, span);
+        span.close();
+        Assert.assertSame(TraceLogger.Span.NONE, tracer.startAsyncSpan(TraceType.DAG_GET_START));
+
+        // closing a span twice records one end
+        tracer.startTrace();
+        String traceId = tracer.getTraceId();
+        TraceLogger.Span once = tracer.startSpan(TraceType.DIAL_PEER_START);
+        once.close();
+        once.close();
+        tracer.endTrace();
+        records(traceId, 2);
+    }
+}